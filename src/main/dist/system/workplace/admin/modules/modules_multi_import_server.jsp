@@ -0,0 +1,5 @@
+<%@ page import="org.opencmshispano.multimoduleimporter.CmsModulesMultiUploadFromServer" %>
+<%
+    CmsModulesMultiUploadFromServer wp = new CmsModulesMultiUploadFromServer(pageContext, request, response);
+    wp.displayDialog();
+%>
\ No newline at end of file
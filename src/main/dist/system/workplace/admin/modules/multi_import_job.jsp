@@ -0,0 +1,4 @@
+<%@ page session="true" contentType="application/json; charset=UTF-8" import="org.opencmshispano.multimoduleimporter.CmsModuleImportJobApi" %><%
+    CmsModuleImportJobApi api = new CmsModuleImportJobApi(pageContext, request, response, session);
+    out.print(api.handle());
+%>
@@ -0,0 +1,4 @@
+<%@ page session="true" contentType="application/json; charset=UTF-8" import="org.opencmshispano.multimoduleimporter.CmsModuleChunkedUpload" %><%
+    CmsModuleChunkedUpload upload = new CmsModuleChunkedUpload(pageContext, request, response, session);
+    out.print(upload.handle());
+%>
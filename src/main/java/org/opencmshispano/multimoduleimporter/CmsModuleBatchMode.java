@@ -0,0 +1,358 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.opencms.db.CmsPublishedResource;
+import org.opencms.file.CmsObject;
+import org.opencms.flex.CmsFlexCache;
+import org.opencms.main.CmsEvent;
+import org.opencms.main.CmsException;
+import org.opencms.main.CmsLog;
+import org.opencms.main.I_CmsEventListener;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.report.I_CmsReport;
+import org.opencms.search.CmsSearchIndex;
+import org.opencms.search.CmsSearchIndexSource;
+import org.opencms.search.CmsSearchManager;
+import org.opencms.util.CmsStringUtil;
+import org.opencms.util.CmsUUID;
+
+/**
+ * Holds back the search index updates while a batch of modules is deleted and imported.
+ * <p>
+ * Every module import publishes its own project, and for every publish the search manager updates
+ * the online indexes with the published resources, only to do it again for the next module. In batch
+ * mode the search manager does not listen to the publish events and the offline indexing is paused;
+ * the publish events are kept instead. This holds back <b>every</b> publish of the server while the
+ * batch runs, also the content published by an editor in the meantime: its index update comes when
+ * the batch ends. When the last running batch ends:
+ * <ul>
+ * <li>the search manager listens again to {@link #SEARCH_EVENTS}, the events
+ * {@link CmsSearchManager#initialize(CmsObject)} registers it for;</li>
+ * <li>the held events are handed to the search manager in the order they were fired, through its
+ * public {@link I_CmsEventListener#cmsEvent(CmsEvent)}. An event whose resources are all published
+ * again by a later held event is left out: the search manager indexes the online state of a
+ * resource, so the later publish leaves the index as both would. A module deleted and imported
+ * again is therefore indexed once;</li>
+ * <li>the JSP (flex) cache is cleared once, so no page rendered with half of the batch installed is
+ * kept.</li>
+ * </ul>
+ * With the {@link CmsModuleImportSettings#PARAM_BATCH_REBUILD_INDEXES} setting the online indexes with
+ * a source that overlaps the resources of the modules are rebuilt instead as every batch ends, and
+ * the held events that only published resources of the modules are dropped. An index of the whole
+ * site (source <code>/</code>) is always rebuilt then. The VFS caches are still cleared by every
+ * publish: the next module of the batch must see the previous one installed.
+ * <p>
+ * Batches running at the same time (see {@link CmsModuleImportScheduler}) share the batch mode: the
+ * search manager is restored when the last one ends.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleBatchMode {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleBatchMode.class);
+
+    /**
+     * Events the search manager listens to, as registered by {@link CmsSearchManager#initialize(CmsObject)}.
+     */
+    private static final int[] SEARCH_EVENTS = new int[] {I_CmsEventListener.EVENT_CLEAR_CACHES,
+            I_CmsEventListener.EVENT_PUBLISH_PROJECT, I_CmsEventListener.EVENT_REBUILD_SEARCHINDEXES};
+
+    /**
+     * Events the search manager listens to in batch mode: all of {@link #SEARCH_EVENTS} but the publishes.
+     */
+    private static final int[] SEARCH_EVENTS_BATCH = new int[] {I_CmsEventListener.EVENT_CLEAR_CACHES,
+            I_CmsEventListener.EVENT_REBUILD_SEARCHINDEXES};
+
+    /**
+     * Publish events held back, in the order they were fired.
+     */
+    private static final List<CmsEvent> HELD = new ArrayList<CmsEvent>();
+
+    /**
+     * Keeps the publish events while in batch mode.
+     */
+    private static final I_CmsEventListener HOLDER = new I_CmsEventListener() {
+
+        public void cmsEvent(final CmsEvent event) {
+            synchronized (CmsModuleBatchMode.class) {
+                // an event fired while the batch mode ends also reaches the search manager
+                if (active > 0) {
+                    HELD.add(event);
+                }
+            }
+        }
+    };
+
+    /**
+     * Number of batches running.
+     */
+    private static int active;
+
+    /**
+     * Names of the modules of this batch.
+     */
+    private final Collection<String> moduleNames;
+
+    /**
+     * Root paths of the resources of the modules, before and after the batch.
+     */
+    private final TreeSet<String> roots = new TreeSet<String>();
+
+    /**
+     * Resources published by the held events already read, by event.
+     */
+    private final Map<CmsEvent, List<CmsPublishedResource>> published =
+            new HashMap<CmsEvent, List<CmsPublishedResource>>();
+
+    /**
+     * @param moduleNames names of the modules of the batch
+     */
+    private CmsModuleBatchMode(final Collection<String> moduleNames) {
+        this.moduleNames = moduleNames;
+        addRoots();
+    }
+
+    /**
+     * Starts the batch mode.
+     *
+     * @param moduleNames names of the modules the batch deletes or imports
+     * @return the batch, to {@link #end(CmsObject, I_CmsReport)} when it is done
+     */
+    public static CmsModuleBatchMode begin(final Collection<String> moduleNames) {
+        CmsModuleBatchMode batch = new CmsModuleBatchMode(moduleNames);
+        synchronized (CmsModuleBatchMode.class) {
+            if (active++ == 0) {
+                CmsSearchManager searchManager = OpenCms.getSearchManager();
+                searchManager.pauseOfflineIndexing();
+                OpenCms.removeCmsEventListener(searchManager);
+                OpenCms.addCmsEventListener(searchManager, SEARCH_EVENTS_BATCH);
+                OpenCms.addCmsEventListener(HOLDER, new int[] {I_CmsEventListener.EVENT_PUBLISH_PROJECT});
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Ends the batch mode: updates the search indexes and clears the JSP cache.
+     *
+     * @param cms    the cms context of the batch
+     * @param report the report of the batch
+     */
+    public void end(final CmsObject cms, final I_CmsReport report) {
+        addRoots();
+        CmsSearchManager searchManager = OpenCms.getSearchManager();
+        boolean rebuild = CmsModuleImportSettings.isBatchRebuildIndexes();
+        List<CmsEvent> covered = rebuild ? getCovered(cms) : Collections.<CmsEvent>emptyList();
+        List<CmsEvent> pending = Collections.emptyList();
+        synchronized (CmsModuleBatchMode.class) {
+            HELD.removeAll(covered);
+            if (--active == 0) {
+                // back to SEARCH_EVENTS, and before the publishes stop being held: none is lost
+                OpenCms.addCmsEventListener(searchManager, new int[] {I_CmsEventListener.EVENT_PUBLISH_PROJECT});
+                OpenCms.removeCmsEventListener(HOLDER);
+                searchManager.resumeOfflineIndexing();
+                pending = new ArrayList<CmsEvent>(HELD);
+                HELD.clear();
+            }
+        }
+        if (rebuild) {
+            rebuildIndexes(searchManager, covered.size(), report);
+        }
+        updateIndexes(cms, searchManager, pending, report);
+        report.println(Messages.get().container(Messages.RPT_BATCH_CLEAR_FLEX_CACHE_0), I_CmsReport.FORMAT_NOTE);
+        OpenCms.fireCmsEvent(I_CmsEventListener.EVENT_FLEX_CACHE_CLEAR, Collections.<String, Object>singletonMap(
+                CmsFlexCache.CACHE_ACTION, Integer.valueOf(CmsFlexCache.CLEAR_ENTRIES)));
+    }
+
+    /**
+     * Hands the held publish events to the search manager, in the order they were fired, leaving out
+     * the events whose resources are all published again by a later one.
+     */
+    private void updateIndexes(final CmsObject cms, final CmsSearchManager searchManager,
+            final List<CmsEvent> events, final I_CmsReport report) {
+        if (events.isEmpty()) {
+            return;
+        }
+        LinkedList<CmsEvent> needed = new LinkedList<CmsEvent>();
+        Set<String> later = new HashSet<String>();
+        for (int i = events.size() - 1; i >= 0; i--) {
+            CmsEvent event = events.get(i);
+            List<CmsPublishedResource> resources = readPublishedResources(cms, event);
+            if (resources == null) {
+                // the search manager reads the publish lists it may, as usual
+                needed.addFirst(event);
+                continue;
+            }
+            boolean superseded = true;
+            for (CmsPublishedResource resource : resources) {
+                superseded &= !later.add(resource.getRootPath());
+            }
+            if (!superseded) {
+                needed.addFirst(event);
+            }
+        }
+        report.println(Messages.get().container(Messages.RPT_BATCH_UPDATE_INDEXES_2,
+                Integer.valueOf(needed.size()), Integer.valueOf(events.size())), I_CmsReport.FORMAT_HEADLINE);
+        replay(searchManager, needed);
+    }
+
+    /**
+     * Rebuilds the online indexes with a source that overlaps the resources of the modules.
+     */
+    private void rebuildIndexes(final CmsSearchManager searchManager, final int held, final I_CmsReport report) {
+        List<String> indexes = getAffectedIndexes(searchManager);
+        if (indexes.isEmpty()) {
+            return;
+        }
+        report.println(Messages.get().container(Messages.RPT_BATCH_REBUILD_INDEXES_2,
+                CmsStringUtil.collectionAsString(indexes, ", "), Integer.valueOf(held)),
+                I_CmsReport.FORMAT_HEADLINE);
+        try {
+            searchManager.rebuildIndexes(indexes, report);
+        } catch (CmsException e) {
+            report.println(e);
+            LOG.error(e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Hands held publish events to the search manager, one by one, as if they were not held.
+     */
+    private static void replay(final CmsSearchManager searchManager, final List<CmsEvent> events) {
+        for (CmsEvent event : events) {
+            searchManager.cmsEvent(event);
+        }
+    }
+
+    /**
+     * Adds the resources of the installed modules of the batch.
+     */
+    private void addRoots() {
+        for (String name : moduleNames) {
+            CmsModule module = OpenCms.getModuleManager().getModule(name);
+            if (module != null) {
+                roots.addAll(module.getResources());
+            }
+        }
+    }
+
+    /**
+     * @return the held publish events that only published resources of the modules of this batch
+     */
+    private List<CmsEvent> getCovered(final CmsObject cms) {
+        List<CmsEvent> held;
+        synchronized (CmsModuleBatchMode.class) {
+            held = new ArrayList<CmsEvent>(HELD);
+        }
+        // the publish lists are read without blocking the publish events
+        List<CmsEvent> covered = new ArrayList<CmsEvent>();
+        for (CmsEvent event : held) {
+            if (isCovered(cms, event)) {
+                covered.add(event);
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * @return <code>true</code> if a publish event only published resources of the modules
+     */
+    private boolean isCovered(final CmsObject cms, final CmsEvent event) {
+        List<CmsPublishedResource> resources = readPublishedResources(cms, event);
+        if (resources == null) {
+            return false;
+        }
+        for (CmsPublishedResource resource : resources) {
+            if (!isInRoots(resource.getRootPath())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the resources published by a publish event, <code>null</code> if they cannot be read
+     */
+    private List<CmsPublishedResource> readPublishedResources(final CmsObject cms, final CmsEvent event) {
+        List<CmsPublishedResource> resources = published.get(event);
+        if (resources != null) {
+            return resources;
+        }
+        Map<String, Object> data = event.getData();
+        Object id = data == null ? null : data.get(I_CmsEventListener.KEY_PUBLISHID);
+        if (id == null) {
+            return null;
+        }
+        try {
+            resources = cms.readPublishedResources(new CmsUUID(id.toString()));
+        } catch (CmsException e) {
+            LOG.warn("Cannot read the published resources of " + id + ": " + e.getLocalizedMessage(), e);
+            return null;
+        }
+        published.put(event, resources);
+        return resources;
+    }
+
+    /**
+     * @return <code>true</code> if a root path is one of the module resources or inside one
+     */
+    private boolean isInRoots(final String rootPath) {
+        for (String root : roots) {
+            if (rootPath.equals(root) || (root.endsWith("/") && rootPath.startsWith(root))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the names of the online indexes with a source that overlaps the module resources
+     */
+    private List<String> getAffectedIndexes(final CmsSearchManager searchManager) {
+        List<String> names = new ArrayList<String>();
+        for (CmsSearchIndex index : searchManager.getSearchIndexes()) {
+            if (!"Online".equals(index.getProject())) {
+                continue;
+            }
+            for (CmsSearchIndexSource source : index.getSources()) {
+                if (overlapsRoots(source.getResourcesNames())) {
+                    names.add(index.getName());
+                    break;
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return <code>true</code> if any of the paths contains a module resource or is inside one
+     */
+    private boolean overlapsRoots(final List<String> paths) {
+        for (String path : paths) {
+            for (String root : roots) {
+                if (root.startsWith(path) || path.startsWith(root)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
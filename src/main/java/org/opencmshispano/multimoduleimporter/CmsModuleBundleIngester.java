@@ -0,0 +1,397 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.logging.Log;
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.importexport.CmsImportExportManager;
+import org.opencms.main.CmsLog;
+import org.opencms.module.CmsModule;
+import org.opencms.util.CmsFileUtil;
+import org.opencmshispano.multimoduleimporter.util.TeeInputStream;
+import org.opencmshispano.multimoduleimporter.util.Unzipper;
+import org.opencmshispano.multimoduleimporter.util.ZipDirectory;
+
+/**
+ * Reads a multi-module bundle in a single pass.
+ * <p>
+ * The bundle is read only once. When it is read as a stream, each inner module is written to the
+ * target folder while its <code>manifest.xml</code> is read from the very same bytes, so neither the
+ * bundle nor the extracted modules have to be opened again before the import starts.
+ * <p>
+ * The bundle is verified in the same pass, before anything is deleted or imported:
+ * <ul>
+ * <li>the CRC-32 and the size of every module must match the bundle;</li>
+ * <li>if the bundle has a {@link #CHECKSUMS} entry, in the format of <code>sha256sum</code>, every
+ * module must be listed in it with the SHA-256 of its contents, and every module listed must be in
+ * the bundle;</li>
+ * <li>every module must be a well formed zip: the local headers and the central directory are
+ * checked, not the data (see {@link ZipDirectory#verify()}).</li>
+ * </ul>
+ * The modules are extracted to a folder of their own, under the
+ * {@link CmsModuleChunkedUpload#STAGING_FOLDER staging folder}, and moved into the modules folder only
+ * once the whole bundle passed the checks: a damaged bundle never replaces the modules already there.
+ * The SHA-256 of every module is handed to the {@link CmsModuleMetadataIndex}, so it does not read the
+ * modules once more to compute it.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleBundleIngester {
+
+    /**
+     * Optional entry of a bundle with the SHA-256 of its modules.
+     */
+    public static final String CHECKSUMS = "SHA256SUMS";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleBundleIngester.class);
+
+    /**
+     * Size of the buffer used to write the extracted modules.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Length of a hex encoded SHA-256.
+     */
+    private static final int CHECKSUM_LENGTH = 64;
+
+    /**
+     * Extracts every module of a bundle that is already on disk and reads its manifest.
+     * <p>
+     * The bundle is unzipped once by the parallel {@link Unzipper}, which checks the CRC-32 and
+     * computes the SHA-256 of every module while writing it, to a new folder under the
+     * {@link CmsModuleChunkedUpload#STAGING_FOLDER staging folder}. Once every check passed the modules
+     * are {@link #install(File, Collection, Map, File) installed} in the modules folder, and then looked up
+     * in the {@link CmsModuleMetadataIndex} of the folder, so only modules never seen before have their
+     * manifest parsed.
+     *
+     * @param bundle the bundle file
+     * @param folder the modules folder
+     * @return filename -> module read from the manifest of each extracted module
+     * @throws IOException                upon error reading the bundle or writing a module
+     * @throws CmsConfigurationException if an entry of the bundle is not a valid module, or the bundle
+     *                                   is damaged
+     */
+    public static Map<String, CmsModule> ingest(final File bundle, final File folder)
+            throws IOException, CmsConfigurationException {
+
+        Map<String, byte[]> digests = new HashMap<String, byte[]>();
+        Map<String, String> checksums = new HashMap<String, String>();
+        Map<String, File> files;
+        File staging = new File(new File(folder, CmsModuleChunkedUpload.STAGING_FOLDER), "bundle-"
+                + UUID.randomUUID());
+        if (!staging.mkdirs()) {
+            throw new IOException("Cannot create staging folder " + staging);
+        }
+        try {
+            files = Unzipper.unzip(bundle, staging, digests);
+            for (Map.Entry<String, byte[]> e : digests.entrySet()) {
+                checksums.put(e.getKey(), CmsModuleMetadataIndex.toHex(e.getValue()));
+            }
+            File sums = files.remove(CHECKSUMS);
+            if (sums != null) {
+                checksums.remove(CHECKSUMS);
+                InputStream in = new FileInputStream(sums);
+                try {
+                    verifyChecksums(readChecksums(in), checksums);
+                } finally {
+                    in.close();
+                }
+            }
+            for (File file : files.values()) {
+                verifyStructure(file);
+            }
+            install(staging, files.keySet(), checksums, folder);
+        } catch (ZipException e) {
+            throw corrupt(bundle, e);
+        } finally {
+            CmsFileUtil.purgeDirectory(staging);
+        }
+
+        Map<String, CmsModule> modules = new HashMap<String, CmsModule>();
+        CmsModuleMetadataIndex index = CmsModuleMetadataIndex.getInstance(folder);
+        for (String fileName : files.keySet()) {
+            File file = resolve(folder, fileName);
+            CmsModuleDescriptor descriptor = index.getDescriptor(file, checksums.get(fileName));
+            // modules already known by their checksum are not parsed again; invalid ones are read
+            // once more to report the real error
+            CmsModule module = descriptor.isValid() ? descriptor.toModule() : CmsModuleManifestReader.read(file);
+            LOG.debug(String.format("Ingested module \"%s\" from bundle entry %s", module.getName(), fileName));
+            modules.put(fileName, module);
+        }
+        return modules;
+    }
+
+    /**
+     * Extracts every module of a bundle that is read as a stream, reading its manifest in the same
+     * pass. The stream is not closed.
+     * <p>
+     * The CRC-32 and the size of every module are checked by the {@link ZipInputStream} as it reaches
+     * the end of the module. The modules are not registered in any index: a bundle still being read
+     * is extracted to a folder of its own, and its modules are {@link #install(File, Collection, Map, File)
+     * installed} in the modules folder once the whole bundle has been read.
+     *
+     * @param bundle    the bundle contents
+     * @param folder    the folder the modules are extracted to
+     * @param checksums filled with the hex encoded SHA-256 of every module, by filename
+     * @return filename -> module read from the manifest of each extracted module
+     * @throws IOException                upon error reading the bundle or writing a module; a
+     *                                    {@link ZipException} if the bundle is damaged
+     * @throws CmsConfigurationException if an entry of the bundle is not a valid module
+     */
+    public static Map<String, CmsModule> ingest(final InputStream bundle, final File folder,
+            final Map<String, String> checksums) throws IOException, CmsConfigurationException {
+
+        Map<String, CmsModule> modules = new HashMap<String, CmsModule>();
+        Map<String, String> expected = null;
+        List<File> written = new ArrayList<File>();
+        boolean verified = false;
+        try {
+            ZipInputStream zip = new ZipInputStream(bundle);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (CHECKSUMS.equals(entry.getName())) {
+                    // it may come after the modules: they are checked at the end
+                    expected = readChecksums(zip);
+                    continue;
+                }
+                File target = resolve(folder, entry.getName());
+                written.add(target);
+                MessageDigest digest = newDigest();
+                CmsModule module = ingestModule(new DigestInputStream(zip, digest), target);
+                verifyStructure(target);
+                checksums.put(entry.getName(), CmsModuleMetadataIndex.toHex(digest.digest()));
+                LOG.debug(String.format("Ingested module \"%s\" from bundle entry %s", module.getName(),
+                        entry.getName()));
+                modules.put(entry.getName(), module);
+            }
+            if (expected != null) {
+                verifyChecksums(expected, checksums);
+            }
+            verified = true;
+        } finally {
+            if (!verified) {
+                delete(written);
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * Moves the modules extracted from a bundle into the modules folder, replacing the files of the
+     * same name, and registers them in the {@link CmsModuleMetadataIndex} of the folder with their
+     * known checksums.
+     *
+     * @param extracted the folder the modules were extracted to, in the same file system
+     * @param fileNames the filenames of the modules
+     * @param checksums the hex encoded SHA-256 of every module, by filename
+     * @param folder    the modules folder
+     * @throws IOException if a module cannot be moved
+     */
+    public static void install(final File extracted, final Collection<String> fileNames,
+            final Map<String, String> checksums, final File folder) throws IOException {
+
+        CmsModuleMetadataIndex index = CmsModuleMetadataIndex.getInstance(folder);
+        for (String fileName : fileNames) {
+            File source = resolve(extracted, fileName);
+            File target = resolve(folder, fileName);
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Cannot replace module " + target);
+            }
+            if (!source.renameTo(target)) {
+                throw new IOException("Cannot move module " + source + " to " + target);
+            }
+            index.getDescriptor(target, checksums.get(fileName));
+        }
+        index.flush();
+    }
+
+    /**
+     * Writes the current bundle entry to disk, reading its manifest on the way.
+     *
+     * @param entry  the data of the entry to ingest
+     * @param target the file the entry is written to
+     * @return the module read from the manifest
+     * @throws IOException                upon error reading the bundle or writing the module
+     * @throws CmsConfigurationException if the entry has no valid manifest
+     */
+    private static CmsModule ingestModule(final InputStream entry, final File target)
+            throws IOException, CmsConfigurationException {
+
+        TeeInputStream tee = new TeeInputStream(entry, new BufferedOutputStream(new FileOutputStream(target),
+                BUFFER_SIZE));
+        // closing the inner zip closes the tee and therefore the target file, but not the bundle
+        ZipInputStream moduleZip = new ZipInputStream(tee);
+        CmsModule module = null;
+        try {
+            ZipEntry manifest;
+            while ((module == null) && ((manifest = moduleZip.getNextEntry()) != null)) {
+                if (CmsImportExportManager.EXPORT_MANIFEST.equals(manifest.getName())) {
+                    module = CmsModuleManifestReader.read(moduleZip, target.getName());
+                }
+            }
+            // the rest of the module is only copied
+            tee.drain();
+        } finally {
+            moduleZip.close();
+        }
+        if (module == null) {
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_NO_MANIFEST_1,
+                    target.getName()));
+        }
+        return module;
+    }
+
+    /**
+     * Checks that an extracted module is a well formed zip. Module folders are not checked.
+     *
+     * @throws ZipException if it is not
+     */
+    private static void verifyStructure(final File module) throws IOException {
+        if (!module.isFile()) {
+            return;
+        }
+        ZipDirectory zip;
+        try {
+            zip = ZipDirectory.open(module);
+        } catch (ZipException e) {
+            throw new ZipException(module.getName() + ": " + e.getMessage());
+        }
+        try {
+            zip.verify();
+        } catch (ZipException e) {
+            throw new ZipException(module.getName() + ": " + e.getMessage());
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Reads a checksum file in the format of <code>sha256sum</code>: one <code>checksum name</code> per
+     * line, the name optionally preceded by <code>*</code>. Empty lines and lines starting with
+     * <code>#</code> are ignored. The stream is not closed.
+     *
+     * @return entry name -> hex encoded SHA-256
+     * @throws ZipException if a line is invalid
+     */
+    private static Map<String, String> readChecksums(final InputStream in) throws IOException {
+        Map<String, String> checksums = new HashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if ((line.length() == 0) || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.indexOf(' ');
+            if (separator != CHECKSUM_LENGTH) {
+                throw new ZipException("Invalid line in " + CHECKSUMS + ": " + line);
+            }
+            String name = line.substring(separator).trim();
+            if (name.startsWith("*")) {
+                name = name.substring(1);
+            }
+            checksums.put(name, line.substring(0, separator).toLowerCase());
+        }
+        return checksums;
+    }
+
+    /**
+     * Checks the modules of a bundle against its checksum file.
+     *
+     * @param expected entry name -> SHA-256, from the checksum file
+     * @param actual   entry name -> SHA-256, of the extracted modules
+     * @throws ZipException if a module is not listed, is listed with another checksum or is missing
+     */
+    private static void verifyChecksums(final Map<String, String> expected, final Map<String, String> actual)
+            throws ZipException {
+        for (Map.Entry<String, String> e : actual.entrySet()) {
+            String checksum = expected.get(e.getKey());
+            if (checksum == null) {
+                throw new ZipException(e.getKey() + " is not listed in " + CHECKSUMS);
+            }
+            if (!checksum.equals(e.getValue())) {
+                throw new ZipException("SHA-256 of " + e.getKey() + " does not match " + CHECKSUMS);
+            }
+        }
+        for (String name : expected.keySet()) {
+            if (!actual.containsKey(name)) {
+                throw new ZipException(name + " is listed in " + CHECKSUMS + " but missing in the bundle");
+            }
+        }
+    }
+
+    /**
+     * @return the error of a bundle that failed the integrity checks
+     */
+    private static CmsConfigurationException corrupt(final File bundle, final ZipException e) {
+        return new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_CORRUPT_2,
+                bundle.getName(), e.getMessage()), e);
+    }
+
+    /**
+     * Deletes the modules extracted from a bundle that failed.
+     */
+    private static void delete(final Iterable<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                LOG.warn("Cannot delete module " + file + " of a damaged bundle");
+            }
+        }
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides SHA-256
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the file for <code>entryName</code> inside <code>folder</code>, refusing names that escape it
+     */
+    private static File resolve(final File folder, final String entryName) throws IOException {
+        File target = new File(folder, entryName);
+        if (!target.getCanonicalPath().startsWith(folder.getCanonicalPath() + File.separator)) {
+            throw new IOException("Bundle entry outside of the target folder: " + entryName);
+        }
+        target.getParentFile().mkdirs();
+        return target;
+    }
+
+    private CmsModuleBundleIngester() {
+    }
+}
@@ -0,0 +1,496 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.PageContext;
+
+import org.apache.commons.logging.Log;
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.json.JSONException;
+import org.opencms.json.JSONObject;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.main.CmsLog;
+import org.opencms.main.CmsSystemInfo;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.security.CmsRole;
+import org.opencms.security.CmsRoleViolationException;
+import org.opencms.util.CmsFileUtil;
+
+/**
+ * Chunked, resumable upload of multi-module bundles.
+ * <p>
+ * The bundle is sent in chunks as the raw body of several requests, not as a multipart form, so
+ * the server never holds it in memory: every chunk is streamed straight to a staging file with a
+ * {@link FileChannel}. The protocol, driven by the <code>action</code> parameter, is:
+ * <ul>
+ * <li><code>start</code>: returns the <code>upload</code> id of a new upload.</li>
+ * <li><code>status</code>: returns in <code>received</code> how many bytes of the upload are
+ * staged. After a dropped connection the client resumes from there.</li>
+ * <li><code>chunk</code>: writes the request body at <code>offset</code>, which must be the
+ * number of bytes already received. With <code>final=true</code> and the total <code>size</code>
+ * of the bundle, the upload is complete and the response has the <code>report</code> link that
+ * starts the import; the <code>name</code> of the bundle is only used in messages. A last chunk cut
+ * short by a dropped connection gets a <code>409</code> with the bytes <code>received</code>, like a
+ * chunk at a wrong offset, and the client resumes from there. If more than <code>size</code> bytes
+ * were received, the staging file is emptied and the <code>409</code> has <code>restart=true</code>
+ * and <code>received=0</code>: the client sends the bundle again from the beginning.</li>
+ * </ul>
+ * The bundle is scanned while it is uploaded (see {@link CmsModuleUploadScan}): every inner module
+ * is extracted to a folder of the upload as soon as it has arrived, so the modules are known right
+ * after the last chunk. Only then are they moved to the modules folder.
+ * <code>start</code> and <code>chunk</code> change the server state and must be sent with
+ * <code>POST</code>; any other method gets a <code>405</code>.
+ * Every response is a JSON object; errors have an <code>error</code> message and an HTTP error
+ * status. Only users with the {@link CmsRole#DATABASE_MANAGER} role may upload.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleChunkedUpload {
+
+    /**
+     * The JSP of the upload endpoint.
+     */
+    public static final String UPLOAD_URI = "/system/workplace/admin/modules/multi_upload.jsp";
+
+    /** Action parameter. */
+    public static final String PARAM_ACTION = "action";
+
+    /** The only HTTP method of the actions that change the upload. */
+    public static final String METHOD_POST = "POST";
+
+    /** Upload id parameter. */
+    public static final String PARAM_UPLOAD = "upload";
+
+    /** Offset of a chunk parameter. */
+    public static final String PARAM_OFFSET = "offset";
+
+    /** Last chunk parameter. */
+    public static final String PARAM_FINAL = "final";
+
+    /** File name of the bundle parameter. */
+    public static final String PARAM_NAME = "name";
+
+    /** Total size of the bundle parameter, required with the last chunk. */
+    public static final String PARAM_SIZE = "size";
+
+    /** Starts an upload. */
+    public static final String ACTION_START = "start";
+
+    /** Returns the bytes received. */
+    public static final String ACTION_STATUS = "status";
+
+    /** Writes a chunk. */
+    public static final String ACTION_CHUNK = "chunk";
+
+    /**
+     * Folder of the staging files, inside the modules folder.
+     */
+    public static final String STAGING_FOLDER = ".uploads";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleChunkedUpload.class);
+
+    /**
+     * Staging files and folders not written for this long are deleted when a new upload starts.
+     */
+    private static final long STALE_AGE = 24L * 60 * 60 * 1000;
+
+    /**
+     * Largest number of bytes moved by a single transfer.
+     */
+    private static final long TRANSFER_SIZE = 1024L * 1024;
+
+    /**
+     * Valid upload ids.
+     */
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f\\-]{36}");
+
+    /**
+     * Upload id -> scan of the bundle while it is uploaded. The scan is also the lock of the upload,
+     * so chunks of the same upload are never written at the same time.
+     */
+    private static final Map<String, CmsModuleUploadScan> SCANS = new HashMap<String, CmsModuleUploadScan>();
+
+    /**
+     * The JSP action element.
+     */
+    private final CmsJspActionElement jsp;
+
+    /**
+     * HttpSession object.
+     */
+    private final HttpSession session;
+
+    /**
+     * The folder the bundles are extracted to.
+     */
+    private final File modulesFolder;
+
+    /**
+     * Public constructor with JSP variables.
+     * <p>
+     *
+     * @param context the JSP page context
+     * @param req     the JSP request
+     * @param res     the JSP response
+     * @param session the HTTP session
+     */
+    public CmsModuleChunkedUpload(final PageContext context, final HttpServletRequest req,
+            final HttpServletResponse res, final HttpSession session) {
+        this.jsp = new CmsJspActionElement(context, req, res);
+        this.session = session;
+        this.modulesFolder = new File(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator
+                + CmsSystemInfo.FOLDER_MODULES);
+    }
+
+    /**
+     * Constructor without a request, that can only stage chunks.
+     *
+     * @param modulesFolder the folder the bundles are extracted to
+     */
+    CmsModuleChunkedUpload(final File modulesFolder) {
+        this.jsp = null;
+        this.session = null;
+        this.modulesFolder = modulesFolder;
+    }
+
+    /**
+     * Handles a request of the upload protocol.
+     *
+     * @return the JSON response
+     */
+    public String handle() {
+        HttpServletRequest request = jsp.getRequest();
+        HttpServletResponse response = jsp.getResponse();
+        JSONObject result = new JSONObject();
+        try {
+            try {
+                OpenCms.getRoleManager().checkRole(jsp.getCmsObject(), CmsRole.DATABASE_MANAGER);
+                String action = request.getParameter(PARAM_ACTION);
+                if ((ACTION_START.equals(action) || ACTION_CHUNK.equals(action))
+                        && !METHOD_POST.equalsIgnoreCase(request.getMethod())) {
+                    response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                    response.setHeader("Allow", METHOD_POST);
+                    result.put("error", "Action " + action + " requires " + METHOD_POST);
+                } else if (ACTION_START.equals(action)) {
+                    start(result);
+                } else if (ACTION_STATUS.equals(action)) {
+                    String upload = getUploadId(request);
+                    result.put(PARAM_UPLOAD, upload);
+                    result.put("received", getStagingFile(upload).length());
+                } else if (ACTION_CHUNK.equals(action)) {
+                    chunk(request, response, result);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    result.put("error", "Unknown action: " + action);
+                }
+            } catch (CmsRoleViolationException e) {
+                response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                result.put("error", e.getLocalizedMessage(jsp.getCmsObject().getRequestContext().getLocale()));
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                result.put("error", e.getMessage());
+            } catch (CmsConfigurationException e) {
+                LOG.error(e.getLocalizedMessage(), e);
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                result.put("error", e.getLocalizedMessage(jsp.getCmsObject().getRequestContext().getLocale()));
+            } catch (IOException e) {
+                LOG.error(e.getLocalizedMessage(), e);
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                result.put("error", e.getMessage());
+            }
+        } catch (JSONException e) {
+            // only keys and values that are never null are written
+            LOG.error(e.getLocalizedMessage(), e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Starts a new upload, removing the staging files of abandoned ones.
+     *
+     * @return the id of the upload
+     */
+    String start(final JSONObject result) throws IOException, JSONException {
+        File folder = new File(modulesFolder, STAGING_FOLDER);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create staging folder " + folder);
+        }
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String abandoned = file.getName().replace(".part", "");
+                if (file.isDirectory()) {
+                    // the modules extracted while uploading, or from a bundle being ingested: removed
+                    // with the staging file of the upload, or left behind by a restart
+                    boolean scanning;
+                    synchronized (SCANS) {
+                        scanning = SCANS.containsKey(abandoned);
+                    }
+                    if (!scanning && !getStagingFile(abandoned).exists()
+                            && (file.lastModified() < System.currentTimeMillis() - STALE_AGE)) {
+                        CmsFileUtil.purgeDirectory(file);
+                    }
+                } else if (file.lastModified() < System.currentTimeMillis() - STALE_AGE) {
+                    LOG.info("Deleting abandoned upload " + file);
+                    file.delete();
+                    synchronized (SCANS) {
+                        CmsModuleUploadScan scan = SCANS.remove(abandoned);
+                        if (scan != null) {
+                            scan.abort();
+                        }
+                    }
+                    CmsFileUtil.purgeDirectory(new File(folder, abandoned));
+                }
+            }
+        }
+        String upload = UUID.randomUUID().toString();
+        if (!getStagingFile(upload).createNewFile()) {
+            throw new IOException("Upload already exists: " + upload);
+        }
+        result.put(PARAM_UPLOAD, upload);
+        result.put("received", 0L);
+        return upload;
+    }
+
+    /**
+     * Appends the body of the request to the staging file and, after the last chunk, scans the bundle.
+     */
+    private void chunk(final HttpServletRequest request, final HttpServletResponse response,
+            final JSONObject result) throws IOException, CmsConfigurationException, JSONException {
+
+        String upload = getUploadId(request);
+        long offset = getOffset(request);
+        boolean last = Boolean.valueOf(request.getParameter(PARAM_FINAL)).booleanValue();
+        long size = last ? getSize(request) : -1;
+        int status = receive(upload, offset, request.getInputStream(), size, result);
+        if (status != HttpServletResponse.SC_OK) {
+            response.setStatus(status);
+            return;
+        }
+        if (last) {
+            CmsModuleUploadScan scan;
+            synchronized (SCANS) {
+                scan = SCANS.remove(upload);
+            }
+            if (scan == null) {
+                throw new IllegalArgumentException("Upload already completed: " + upload);
+            }
+            String name = request.getParameter(PARAM_NAME);
+            complete(getStagingFile(upload), scan, scan.finish(size), name == null ? upload : name, result);
+        }
+    }
+
+    /**
+     * Writes a chunk to the staging file of an upload.
+     *
+     * @param upload the id of the upload
+     * @param offset where the chunk goes, which must be the number of bytes already received
+     * @param body   the chunk
+     * @param size   the total size of the bundle if this is the last chunk, <code>-1</code> otherwise
+     * @param result the response, with the bytes <code>received</code> and any <code>error</code>
+     * @return {@link HttpServletResponse#SC_OK} if the chunk was written and, for the last one, the
+     * bundle is complete; {@link HttpServletResponse#SC_CONFLICT} if the client has to resume from the
+     * bytes received, or to restart the upload
+     */
+    int receive(final String upload, final long offset, final InputStream body, final long size,
+            final JSONObject result) throws IOException, JSONException {
+
+        File staging = getStagingFile(upload);
+        if (!staging.isFile()) {
+            throw new IllegalArgumentException("Unknown upload: " + upload);
+        }
+        CmsModuleUploadScan scan = getScan(upload, staging);
+        long received;
+        synchronized (scan) {
+            received = staging.length();
+            result.put(PARAM_UPLOAD, upload);
+            if (offset != received) {
+                // the client must resume from what was really received
+                result.put("received", received);
+                result.put("error", "Expected offset " + received);
+                return HttpServletResponse.SC_CONFLICT;
+            }
+            received = write(body, staging, offset, scan);
+            if ((size >= 0) && (received > size)) {
+                // no offset can complete the bundle any more: the upload starts again
+                restart(upload, staging, scan);
+                result.put("received", 0L);
+                result.put("restart", true);
+                result.put("error", "Received " + received + " bytes, more than the size " + size
+                        + ": the upload restarts from 0");
+                return HttpServletResponse.SC_CONFLICT;
+            }
+        }
+        result.put("received", received);
+        if ((size >= 0) && (received != size)) {
+            // the connection dropped during the last chunk: the upload is resumed, not completed
+            result.put("error", "Expected size " + size);
+            return HttpServletResponse.SC_CONFLICT;
+        }
+        return HttpServletResponse.SC_OK;
+    }
+
+    /**
+     * Empties the staging file of an upload and drops its scan, so the next chunk, at offset 0, starts
+     * a new one.
+     */
+    private static void restart(final String upload, final File staging, final CmsModuleUploadScan scan)
+            throws IOException {
+        synchronized (SCANS) {
+            SCANS.remove(upload);
+        }
+        scan.abort();
+        RandomAccessFile file = new RandomAccessFile(staging, "rw");
+        try {
+            file.setLength(0);
+        } finally {
+            file.close();
+        }
+        CmsFileUtil.purgeDirectory(scan.getFolder());
+    }
+
+    /**
+     * Returns the scan of an upload, starting it if this is the first chunk written since the upload
+     * started or since the server restarted: the scan always starts at the beginning of the bundle.
+     */
+    private CmsModuleUploadScan getScan(final String upload, final File staging) throws IOException {
+        synchronized (SCANS) {
+            CmsModuleUploadScan scan = SCANS.get(upload);
+            if (scan == null) {
+                scan = new CmsModuleUploadScan(staging, new File(staging.getParentFile(), upload));
+                scan.setAvailable(staging.length());
+                SCANS.put(upload, scan);
+            }
+            return scan;
+        }
+    }
+
+    /**
+     * Streams a chunk to the staging file at <code>offset</code>, letting the scan read
+     * every part as soon as it is written.
+     *
+     * @return the size of the staging file afterwards
+     */
+    private static long write(final InputStream body, final File staging, final long offset,
+            final CmsModuleUploadScan scan) throws IOException {
+        ReadableByteChannel in = Channels.newChannel(body);
+        RandomAccessFile file = new RandomAccessFile(staging, "rw");
+        long position = offset;
+        try {
+            FileChannel out = file.getChannel();
+            long count;
+            // a dropped connection leaves what was received, the client resumes from there
+            while ((count = out.transferFrom(in, position, TRANSFER_SIZE)) > 0) {
+                position += count;
+                scan.setAvailable(position);
+            }
+            return position;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Moves the modules of the complete bundle to the modules folder and registers them as an import
+     * job, kept in the session for the import report, and returns its plan.
+     *
+     * @param scan    the scan of the upload
+     * @param scanned the modules found while the bundle was uploaded, or <code>null</code> if it has to
+     * be scanned now
+     */
+    private void complete(final File staging, final CmsModuleUploadScan scan, final Map<String, CmsModule> scanned,
+            final String name, final JSONObject result) throws IOException, CmsConfigurationException, JSONException {
+
+        Map<String, CmsModule> modules = scanned;
+        if (modules == null) {
+            modules = CmsModuleBundleIngester.ingest(staging, modulesFolder);
+        } else {
+            // the whole bundle is verified: its modules replace those of the modules folder
+            CmsModuleBundleIngester.install(scan.getFolder(), modules.keySet(), scan.getChecksums(), modulesFolder);
+        }
+        // only now: if the bundle cannot be read, the staging file is kept until it is abandoned
+        staging.delete();
+        CmsFileUtil.purgeDirectory(scan.getFolder());
+        if (modules.isEmpty()) {
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_NO_MODULES_1, name));
+        }
+        CmsModuleImportJob job = CmsModuleImportJobRegistry.getInstance().register(
+                new ArrayList<String>(modules.keySet()));
+        session.setAttribute(CmsModuleImportJobRegistry.SESSION_ATT_NAME_JOB, job.getId());
+        result.put("complete", true);
+        result.put("job", job.getId());
+        result.put("modules", modules.size());
+        // shown before the import is started, and used by it
+        result.put("plan", CmsModuleImportJobApi.toJson(job.getPlan()));
+        result.put("report", jsp.link(CmsModulesListMultiReplaceReport.MULTI_IMPORT_ACTION_REPORT));
+    }
+
+    /**
+     * @return the staging file of an upload
+     */
+    private File getStagingFile(final String upload) {
+        return new File(new File(modulesFolder, STAGING_FOLDER), upload + ".part");
+    }
+
+    /**
+     * @return the valid upload id of the request
+     */
+    private static String getUploadId(final HttpServletRequest request) {
+        String upload = request.getParameter(PARAM_UPLOAD);
+        if ((upload == null) || !UPLOAD_ID.matcher(upload).matches()) {
+            throw new IllegalArgumentException("Invalid upload id: " + upload);
+        }
+        return upload;
+    }
+
+    /**
+     * @return the offset of the chunk of the request
+     */
+    private static long getOffset(final HttpServletRequest request) {
+        try {
+            long offset = Long.parseLong(request.getParameter(PARAM_OFFSET));
+            if (offset >= 0) {
+                return offset;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid offset: " + request.getParameter(PARAM_OFFSET));
+    }
+
+    /**
+     * @return the total size of the bundle, given with the last chunk
+     */
+    private static long getSize(final HttpServletRequest request) {
+        try {
+            long size = Long.parseLong(request.getParameter(PARAM_SIZE));
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid size: " + request.getParameter(PARAM_SIZE));
+    }
+}
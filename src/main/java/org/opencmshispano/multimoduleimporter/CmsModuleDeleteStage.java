@@ -0,0 +1,243 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProject;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.main.CmsException;
+import org.opencms.main.CmsLog;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleManager;
+import org.opencms.report.I_CmsReport;
+
+/**
+ * Deletes installed modules before they are imported again, replacing
+ * {@link org.opencms.workplace.threads.CmsModuleDeleteThread}.
+ * <p>
+ * The modules are deleted level by level, in reverse dependency order (see
+ * {@link CmsModuleDependencyGraph#getDeleteLevels(java.util.Collection)}). With one thread, the
+ * default, every module is deleted by {@link CmsModuleManager#deleteModule}, one after another, as
+ * {@link org.opencms.workplace.threads.CmsModuleDeleteThread} does.
+ * <p>
+ * With more threads, the resources of the modules of a level are deleted at the same time, in a
+ * temporary project holding only their resource folders, and the project is published once for the
+ * level. Then the module configurations are removed through {@link CmsModuleManager#deleteModule},
+ * which finds no resources left to delete but still publishes once per module. This costs one
+ * publish more per level than the sequential delete, so it only pays off for levels of several
+ * modules with many resources: time the delete phase before raising the number of threads.
+ * Everything is written to the report given to {@link #execute(I_CmsReport)}.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleDeleteStage {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleDeleteStage.class);
+
+    /**
+     * The cms context.
+     */
+    private final CmsObject cms;
+
+    /**
+     * The module manager deleting the modules.
+     */
+    private final CmsModuleManager moduleManager;
+
+    /**
+     * Names of the modules to delete, grouped in levels.
+     */
+    private final List<List<String>> levels;
+
+    /**
+     * Number of modules of a level whose resources are deleted at the same time.
+     */
+    private final int threads;
+
+    /**
+     * Where the status of every module is recorded.
+     */
+    private final CmsModuleImportProgress progress;
+
+    /**
+     * @param cms           the cms context
+     * @param moduleManager the module manager deleting the modules
+     * @param levels        names of the installed modules to delete, in reverse dependency order;
+     *                      the modules of a level do not depend on each other
+     * @param threads       number of modules of a level whose resources are deleted at the same time
+     * @param progress      where the status of every module is recorded
+     */
+    public CmsModuleDeleteStage(final CmsObject cms, final CmsModuleManager moduleManager,
+            final List<List<String>> levels, final int threads, final CmsModuleImportProgress progress) {
+        this.cms = cms;
+        this.moduleManager = moduleManager;
+        this.levels = levels;
+        this.threads = Math.max(1, threads);
+        this.progress = progress;
+    }
+
+    /**
+     * Deletes the modules, level after level.
+     *
+     * @param report the report the progress is written to
+     */
+    public void execute(final I_CmsReport report) {
+        if (levels.isEmpty()) {
+            return;
+        }
+        if (threads == 1) {
+            for (int i = 0; i < levels.size(); i++) {
+                reportLevel(levels.get(i), i, report);
+                deleteModules(levels.get(i), report);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < levels.size(); i++) {
+                deleteLevel(levels.get(i), i, executor, report);
+            }
+        } catch (InterruptedException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the headline of a level to the report and marks its modules as being deleted.
+     */
+    private void reportLevel(final List<String> level, final int index, final I_CmsReport report) {
+        report.println(Messages.get().container(Messages.RPT_DELETE_LEVEL_2, Integer.valueOf(index + 1),
+                Integer.valueOf(level.size())), I_CmsReport.FORMAT_HEADLINE);
+        for (String moduleName : level) {
+            progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_DELETING, null);
+        }
+    }
+
+    /**
+     * Deletes the modules of one level, their resources at the same time.
+     */
+    private void deleteLevel(final List<String> level, final int index, final ExecutorService executor,
+            final I_CmsReport report) throws InterruptedException {
+
+        reportLevel(level, index, report);
+        CmsObject levelCms;
+        try {
+            levelCms = OpenCms.initCmsObject(cms);
+            levelCms.getRequestContext().setSiteRoot("/");
+            CmsProject project = levelCms.createProject("Delete modules " + System.currentTimeMillis() + " "
+                    + (index + 1), "", OpenCms.getDefaultUsers().getGroupAdministrators(),
+                    OpenCms.getDefaultUsers().getGroupAdministrators(), CmsProject.PROJECT_TYPE_TEMPORARY);
+            levelCms.getRequestContext().setCurrentProject(project);
+            for (String moduleName : level) {
+                CmsModule module = moduleManager.getModule(moduleName);
+                if (module == null) {
+                    continue;
+                }
+                for (String resourceName : module.getResources()) {
+                    if (levelCms.existsResource(resourceName, CmsResourceFilter.ALL)) {
+                        levelCms.copyResourceToProject(resourceName);
+                    }
+                }
+            }
+        } catch (CmsException e) {
+            // without project the module manager deletes the resources itself, one module at a time
+            report.println(e);
+            LOG.error(e.getLocalizedMessage(), e);
+            levelCms = null;
+        }
+
+        if (levelCms != null) {
+            CompletionService<CmsModuleReportBuffer> completion =
+                    new ExecutorCompletionService<CmsModuleReportBuffer>(executor);
+            for (String moduleName : level) {
+                completion.submit(createDeleteResourcesTask(levelCms, moduleName, report));
+            }
+            for (int i = 0; i < level.size(); i++) {
+                try {
+                    completion.take().get().copyTo(report);
+                } catch (ExecutionException e) {
+                    // the tasks catch their own errors
+                    LOG.error(e.getLocalizedMessage(), e);
+                }
+            }
+            try {
+                OpenCms.getPublishManager().publishProject(levelCms, report);
+                OpenCms.getPublishManager().waitWhileRunning();
+            } catch (CmsException e) {
+                report.println(e);
+                LOG.error(e.getLocalizedMessage(), e);
+            }
+        }
+
+        deleteModules(level, report);
+    }
+
+    /**
+     * Deletes the modules of a level through the module manager, one after another: it is not concurrent.
+     */
+    private void deleteModules(final List<String> level, final I_CmsReport report) {
+        for (String moduleName : level) {
+            try {
+                moduleManager.deleteModule(cms, moduleName, true, report);
+            } catch (Exception e) {
+                report.println(e);
+                LOG.error(e.getLocalizedMessage(), e);
+            }
+            progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_DELETED, null);
+        }
+    }
+
+    /**
+     * @return a task deleting the resources of an installed module, with its own cms context and report
+     */
+    private Callable<CmsModuleReportBuffer> createDeleteResourcesTask(final CmsObject levelCms,
+            final String moduleName, final I_CmsReport report) {
+
+        return new Callable<CmsModuleReportBuffer>() {
+
+            public CmsModuleReportBuffer call() {
+                CmsModuleReportBuffer buffer = new CmsModuleReportBuffer(report.getLocale(), report.getSiteRoot());
+                CmsModule module = moduleManager.getModule(moduleName);
+                if (module == null) {
+                    return buffer;
+                }
+                buffer.println(Messages.get().container(Messages.RPT_DELETE_MODULE_RESOURCES_1, moduleName),
+                        I_CmsReport.FORMAT_NOTE);
+                try {
+                    // CmsObject is not thread safe: every module has its own copy, in the same project
+                    CmsObject moduleCms = OpenCms.initCmsObject(levelCms);
+                    for (String resourceName : module.getResources()) {
+                        if (moduleCms.existsResource(resourceName, CmsResourceFilter.ALL)) {
+                            buffer.println(Messages.get().container(Messages.RPT_DELETE_RESOURCE_1,
+                                    resourceName), I_CmsReport.FORMAT_DEFAULT);
+                            moduleCms.lockResource(resourceName);
+                            moduleCms.deleteResource(resourceName, CmsResource.DELETE_PRESERVE_SIBLINGS);
+                        }
+                    }
+                } catch (CmsException e) {
+                    buffer.println(e);
+                    LOG.error(e.getLocalizedMessage(), e);
+                }
+                return buffer;
+            }
+        };
+    }
+}
@@ -0,0 +1,503 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.logging.Log;
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.db.CmsExportPoint;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProject;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.file.types.I_CmsResourceType;
+import org.opencms.importexport.CmsImportExportManager;
+import org.opencms.importexport.CmsImportParameters;
+import org.opencms.main.CmsException;
+import org.opencms.main.CmsLog;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.module.CmsModuleImportExportHandler;
+import org.opencms.report.I_CmsReport;
+import org.opencms.util.CmsDateUtil;
+import org.opencms.workplace.explorer.CmsExplorerTypeSettings;
+import org.opencmshispano.multimoduleimporter.util.ZipDirectory;
+
+/**
+ * Updates an installed module importing only the resources that changed.
+ * <p>
+ * Every <code>&lt;file&gt;</code> entry of the new manifest is compared with the VFS: resources
+ * that do not exist, or whose date of last modification, structure id or size differ, are written
+ * to a reduced copy of the module. The content is only read from the VFS, to compare its checksum,
+ * when the manifest has no structure id to tell the resources apart. That copy has no
+ * <code>&lt;module&gt;</code> element, so OpenCms imports it as plain VFS resources, without
+ * deleting the module first. Resources of the installed module that are no longer in the manifest
+ * are deleted. As in a module import, all changes are made in a temporary project that is published
+ * at the end. The module description is updated only after that, so a failed import leaves the
+ * installed version registered.
+ * <p>
+ * Module folders are not supported: the importer needs the zip central directory to compare the
+ * checksums without reading the new contents.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleDeltaImporter {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleDeltaImporter.class);
+
+    /** Manifest element with the module description. */
+    private static final String N_MODULE = "module";
+
+    /** Manifest element of a resource. */
+    private static final String N_FILE = "file";
+
+    /** Path of the resource in the VFS, relative to the root. */
+    private static final String N_DESTINATION = "destination";
+
+    /** Name of the zip entry with the content of the resource. */
+    private static final String N_SOURCE = "source";
+
+    /** Date of last modification of the resource. */
+    private static final String N_DATELASTMODIFIED = "datelastmodified";
+
+    /** Structure id of the resource. */
+    private static final String N_UUIDSTRUCTURE = "uuidstructure";
+
+    /**
+     * Size of the buffer used to copy the changed resources.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Factory of the writers of the reduced manifest.
+     */
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * The cms context, working on the root site.
+     */
+    private final CmsObject cms;
+
+    /**
+     * The report the import writes to.
+     */
+    private final I_CmsReport report;
+
+    /**
+     * Paths (without leading slash) of all resources of the new manifest.
+     */
+    private final Set<String> destinations = new HashSet<String>();
+
+    /**
+     * Zip entries of the resources that are imported.
+     */
+    private final List<String> sources = new ArrayList<String>();
+
+    /**
+     * Number of resources added or modified.
+     */
+    private int changed;
+
+    /**
+     * Number of resources that did not change.
+     */
+    private int unchanged;
+
+    /**
+     * @param cms    the cms context; it is copied, so it is not modified
+     * @param report the report the import writes to
+     * @throws CmsException if the cms context cannot be copied
+     */
+    public CmsModuleDeltaImporter(final CmsObject cms, final I_CmsReport report) throws CmsException {
+        this.cms = OpenCms.initCmsObject(cms);
+        this.cms.getRequestContext().setSiteRoot("/");
+        this.report = report;
+    }
+
+    /**
+     * Updates an installed module with the resources of a new module file that changed.
+     *
+     * @param moduleFile the new module zip file
+     * @param module     the module header read from the new manifest
+     * @param installed  the installed module
+     * @throws IOException  upon error reading the module file
+     * @throws CmsException upon error comparing, importing or deleting resources
+     */
+    public void importDelta(final File moduleFile, final CmsModule module, final CmsModule installed)
+            throws IOException, CmsException {
+
+        File delta = File.createTempFile("multimoduleimporter-delta", ".zip");
+        try {
+            ZipDirectory zip = ZipDirectory.open(moduleFile);
+            try {
+                ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(delta),
+                        BUFFER_SIZE));
+                try {
+                    writeManifest(zip, out, moduleFile.getName());
+                    for (String source : sources) {
+                        copyEntry(zip, source, out);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                zip.close();
+            }
+            List<String> removed = findRemoved(installed);
+            report.println(Messages.get().container(Messages.RPT_DELTA_IMPORT_4, new Object[] {module.getName(),
+                    Integer.valueOf(changed), Integer.valueOf(removed.size()), Integer.valueOf(unchanged)}),
+                    I_CmsReport.FORMAT_NOTE);
+
+            if ((changed > 0) || !removed.isEmpty()) {
+                importResources(delta, module, removed);
+            }
+            // export points, parameters, etc. are only read from the complete manifest; the new version
+            // is registered only once its resources are in place
+            CmsModule complete = CmsModuleImportExportHandler.readModuleFromImport(moduleFile.getAbsolutePath());
+            if (isDescriptorChanged(complete, installed)) {
+                OpenCms.getModuleManager().updateModule(cms, complete);
+            }
+        } finally {
+            if (!delta.delete()) {
+                LOG.warn("Cannot delete temporary file " + delta);
+            }
+        }
+    }
+
+    /**
+     * Imports the reduced module and deletes the resources no longer in the module, in a temporary
+     * project that is published.
+     */
+    private void importResources(final File delta, final CmsModule module, final List<String> removed)
+            throws CmsException {
+
+        CmsProject project = cms.createProject("Delta import " + module.getName() + " "
+                + System.currentTimeMillis(), module.getName(), OpenCms.getDefaultUsers()
+                .getGroupAdministrators(), OpenCms.getDefaultUsers().getGroupAdministrators(),
+                CmsProject.PROJECT_TYPE_TEMPORARY);
+        cms.getRequestContext().setCurrentProject(project);
+        cms.copyResourceToProject("/");
+        if (changed > 0) {
+            OpenCms.getImportExportManager().importData(cms, report,
+                    new CmsImportParameters(delta.getAbsolutePath(), "/", true));
+        }
+        for (String path : removed) {
+            report.println(Messages.get().container(Messages.RPT_DELTA_RESOURCE_DELETED_1, path),
+                    I_CmsReport.FORMAT_DEFAULT);
+            cms.lockResource(path);
+            cms.deleteResource(path, CmsResource.DELETE_PRESERVE_SIBLINGS);
+        }
+        OpenCms.getPublishManager().publishProject(cms, report);
+        OpenCms.getPublishManager().waitWhileRunning();
+    }
+
+    /**
+     * Copies the manifest of the module without the module description and with only the resources
+     * that changed.
+     */
+    private void writeManifest(final ZipDirectory zip, final ZipOutputStream out, final String source)
+            throws IOException, CmsException {
+
+        ZipDirectory.Entry manifest = zip.getEntry(CmsImportExportManager.EXPORT_MANIFEST);
+        if (manifest == null) {
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_NO_MANIFEST_1, source));
+        }
+        InputStream in = zip.getInputStream(manifest);
+        try {
+            out.putNextEntry(new ZipEntry(CmsImportExportManager.EXPORT_MANIFEST));
+            XMLEventReader reader = CmsModuleManifestReader.createEventReader(in);
+            XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+
+            // profundidad dentro del elemento <module> que se descarta
+            int skipped = 0;
+            // eventos del elemento <file> en curso, null fuera de él
+            List<XMLEvent> file = null;
+            Map<String, String> fields = null;
+            StringBuilder text = new StringBuilder();
+            int level = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (skipped > 0) {
+                    if (event.isStartElement()) {
+                        skipped++;
+                    } else if (event.isEndElement()) {
+                        skipped--;
+                    }
+                } else if (file != null) {
+                    file.add(event);
+                    if (event.isStartElement()) {
+                        level++;
+                        text.setLength(0);
+                    } else if (event.isCharacters()) {
+                        text.append(event.asCharacters().getData());
+                    } else if (event.isEndElement()) {
+                        if (level == 0) {
+                            // end of the <file> element
+                            if (isChanged(zip, fields)) {
+                                for (XMLEvent e : file) {
+                                    writer.add(e);
+                                }
+                            }
+                            file = null;
+                        } else {
+                            if (level == 1) {
+                                fields.put(event.asEndElement().getName().getLocalPart(), text.toString().trim());
+                            }
+                            level--;
+                        }
+                    }
+                } else if (event.isStartElement()
+                        && N_MODULE.equals(event.asStartElement().getName().getLocalPart())) {
+                    skipped = 1;
+                } else if (event.isStartElement()
+                        && N_FILE.equals(event.asStartElement().getName().getLocalPart())) {
+                    file = new ArrayList<XMLEvent>();
+                    file.add(event);
+                    fields = new HashMap<String, String>();
+                    level = 0;
+                } else {
+                    writer.add(event);
+                }
+            }
+            writer.flush();
+            // the writer does not own the zip stream
+            writer.close();
+            reader.close();
+            out.closeEntry();
+        } catch (XMLStreamException e) {
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_MANIFEST_INVALID_2, source,
+                    e.getMessage()), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compares a resource of the manifest with the VFS.
+     *
+     * @param zip    the new module
+     * @param fields text of the child elements of the <code>&lt;file&gt;</code> element
+     * @return <code>true</code> if the resource is new or changed and must be imported
+     */
+    private boolean isChanged(final ZipDirectory zip, final Map<String, String> fields) throws CmsException {
+        if (fields.get(N_DESTINATION) == null) {
+            // not a valid resource: the import reports it
+            changed++;
+            return true;
+        }
+        String destination = trimSlashes(fields.get(N_DESTINATION));
+        String source = fields.get(N_SOURCE);
+        destinations.add(destination);
+
+        boolean result = true;
+        String path = "/" + destination;
+        ZipDirectory.Entry entry = (source == null) ? null : zip.getEntry(source);
+        if (cms.existsResource(path, CmsResourceFilter.ALL)) {
+            CmsResource resource = cms.readResource(path, CmsResourceFilter.ALL);
+            Boolean metadata = isChanged(fields, resource.getDateLastModified(),
+                    String.valueOf(resource.getStructureId()), resource.isFolder(), resource.getLength(),
+                    entry == null ? -1L : entry.getSize());
+            if (metadata != null) {
+                result = metadata.booleanValue();
+            } else {
+                // same date and size, but nothing tells whether it is the same resource
+                CRC32 crc = new CRC32();
+                crc.update(cms.readFile(resource).getContents());
+                result = crc.getValue() != entry.getCrc();
+            }
+        }
+        if (result) {
+            changed++;
+            if (entry != null) {
+                sources.add(source);
+            }
+        } else {
+            unchanged++;
+        }
+        return result;
+    }
+
+    /**
+     * Compares a resource of the manifest with the one of the VFS at the same path, without reading
+     * its content.
+     *
+     * @param fields      text of the child elements of the <code>&lt;file&gt;</code> element
+     * @param date        date of last modification of the resource in the VFS
+     * @param structureId structure id of the resource in the VFS
+     * @param folder      <code>true</code> if the resource in the VFS is a folder
+     * @param size        size of the resource in the VFS
+     * @param entrySize   size of the content in the new module, <code>-1</code> if it has none
+     * @return {@link Boolean#TRUE} if the resource changed, {@link Boolean#FALSE} if it did not, and
+     * <code>null</code> if only the content can tell: the manifest has no structure id
+     */
+    static Boolean isChanged(final Map<String, String> fields, final long date, final String structureId,
+            final boolean folder, final long size, final long entrySize) {
+        String uuid = fields.get(N_UUIDSTRUCTURE);
+        if ((date != parseDate(fields.get(N_DATELASTMODIFIED))) || ((uuid != null) && !uuid.equals(structureId))) {
+            return Boolean.TRUE;
+        }
+        if (folder || (fields.get(N_SOURCE) == null)) {
+            return Boolean.FALSE;
+        }
+        if ((entrySize < 0) || (size != entrySize)) {
+            return Boolean.TRUE;
+        }
+        return uuid != null ? Boolean.FALSE : null;
+    }
+
+    /**
+     * @return the root paths of the resources of the installed module that are not in the new
+     * manifest; folders go before their contents, which are not listed as they are deleted with them
+     */
+    private List<String> findRemoved(final CmsModule installed) throws CmsException {
+        TreeSet<String> paths = new TreeSet<String>();
+        for (String root : installed.getResources()) {
+            if (!cms.existsResource(root, CmsResourceFilter.ALL)) {
+                continue;
+            }
+            CmsResource resource = cms.readResource(root, CmsResourceFilter.ALL);
+            List<CmsResource> resources = new ArrayList<CmsResource>();
+            resources.add(resource);
+            if (resource.isFolder()) {
+                resources.addAll(cms.readResources(root, CmsResourceFilter.ALL, true));
+            }
+            for (CmsResource r : resources) {
+                if (!destinations.contains(trimSlashes(r.getRootPath()))) {
+                    paths.add(r.getRootPath());
+                }
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        String folder = null;
+        for (String path : paths) {
+            if ((folder == null) || !path.startsWith(folder)) {
+                removed.add(path);
+                folder = path.endsWith("/") ? path : null;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Copies an entry of the new module to the reduced module.
+     */
+    private static void copyEntry(final ZipDirectory zip, final String source, final ZipOutputStream out)
+            throws IOException {
+        ZipDirectory.Entry entry = zip.getEntry(source);
+        InputStream in = zip.getInputStream(entry);
+        try {
+            out.putNextEntry(new ZipEntry(source));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, len);
+            }
+            out.closeEntry();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compares the module descriptions of the new manifest and of the installed module: a module can
+     * change its export points, parameters, resources, dependencies or any other header field without
+     * changing its version.
+     *
+     * @return <code>true</code> if the installed module has to be updated
+     */
+    private static boolean isDescriptorChanged(final CmsModule module, final CmsModule installed) {
+        if ((installed.getVersion().compareTo(module.getVersion()) != 0)
+                || !isEqual(module.getNiceName(), installed.getNiceName())
+                || !isEqual(module.getGroup(), installed.getGroup())
+                || !isEqual(module.getActionClass(), installed.getActionClass())
+                || !isEqual(module.getDescription(), installed.getDescription())
+                || !isEqual(module.getAuthorName(), installed.getAuthorName())
+                || !isEqual(module.getAuthorEmail(), installed.getAuthorEmail())
+                || !isEqual(module.getResources(), installed.getResources())
+                || !isEqual(module.getParameters(), installed.getParameters())) {
+            return true;
+        }
+        return !getDescriptorKeys(module).equals(getDescriptorKeys(installed));
+    }
+
+    /**
+     * @return the dependencies, export points, resource types and explorer types of a module, as text
+     */
+    private static Set<String> getDescriptorKeys(final CmsModule module) {
+        Set<String> keys = new HashSet<String>();
+        for (CmsModuleDependency dependency : module.getDependencies()) {
+            keys.add("dependency:" + dependency.getName() + ":" + dependency.getVersion());
+        }
+        for (CmsExportPoint exportPoint : module.getExportPoints()) {
+            keys.add("exportpoint:" + exportPoint.getUri() + ":" + exportPoint.getConfiguredDestination());
+        }
+        for (I_CmsResourceType type : module.getResourceTypes()) {
+            keys.add("resourcetype:" + type.getTypeName() + ":" + type.getTypeId());
+        }
+        for (CmsExplorerTypeSettings type : module.getExplorerTypes()) {
+            keys.add("explorertype:" + type.getName());
+        }
+        return keys;
+    }
+
+    /**
+     * @return <code>true</code> if both values are <code>null</code> or equal
+     */
+    private static boolean isEqual(final Object a, final Object b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * @return the date of a manifest, either a number or an HTTP date; <code>-1</code> if not valid
+     */
+    private static long parseDate(final String date) {
+        if (date == null) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(date);
+        } catch (NumberFormatException e) {
+            try {
+                return CmsDateUtil.parseHeadDate(date);
+            } catch (ParseException pe) {
+                return -1L;
+            }
+        }
+    }
+
+    /**
+     * @return the path without leading and trailing slashes
+     */
+    private static String trimSlashes(final String path) {
+        int begin = path.startsWith("/") ? 1 : 0;
+        int end = (path.length() > begin) && path.endsWith("/") ? path.length() - 1 : path.length();
+        return path.substring(begin, end);
+    }
+}
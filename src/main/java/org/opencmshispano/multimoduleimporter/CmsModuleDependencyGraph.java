@@ -0,0 +1,348 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.module.CmsModuleManager;
+
+/**
+ * Dependency graph of the modules of an import, built from the dependencies already read from
+ * their manifests.
+ * <p>
+ * The modules are ordered with Kahn's algorithm. Each wave holds the modules whose dependencies
+ * are all either installed or in an earlier wave, so the waves can be imported one after the
+ * other and each module is imported exactly once. Problems are found before anything is touched:
+ * <ul>
+ * <li>missing dependencies: neither in the import nor installed, or with a version too old;</li>
+ * <li>circular dependencies between modules of the import;</li>
+ * <li>modules that depend, directly or not, on a module that cannot be imported.</li>
+ * </ul>
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleDependencyGraph {
+
+    /**
+     * Module name -> module, of the modules to import.
+     */
+    private final Map<String, CmsModule> modules = new TreeMap<String, CmsModule>();
+
+    /**
+     * Module name -> names of the modules of the import that depend on it.
+     */
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    /**
+     * Module name -> names of the modules of the import it depends on.
+     */
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+    /**
+     * Modules in dependency order, grouped in waves.
+     */
+    private final List<List<String>> waves = new ArrayList<List<String>>();
+
+    /**
+     * Module name -> dependencies that cannot be satisfied.
+     */
+    private final Map<String, List<CmsModuleDependency>> missing = new TreeMap<String, List<CmsModuleDependency>>();
+
+    /**
+     * Modules with circular dependencies.
+     */
+    private final Set<String> cycles = new TreeSet<String>();
+
+    /**
+     * Module name -> the module that cannot be imported it depends on.
+     */
+    private final Map<String, String> blocked = new TreeMap<String, String>();
+
+    /**
+     * Builds the graph and orders the modules.
+     *
+     * @param modules       the modules to import; only the header of the manifest is needed
+     * @param moduleManager the module manager, to check the dependencies on installed modules
+     */
+    public CmsModuleDependencyGraph(final Collection<CmsModule> modules, final CmsModuleManager moduleManager) {
+        for (CmsModule module : modules) {
+            this.modules.put(module.getName(), module);
+            dependents.put(module.getName(), new TreeSet<String>());
+            dependencies.put(module.getName(), new TreeSet<String>());
+        }
+        for (CmsModule module : this.modules.values()) {
+            for (CmsModuleDependency dependency : module.getDependencies()) {
+                CmsModule provider = this.modules.get(dependency.getName());
+                if (provider == null) {
+                    // not in the import: the installed module must be enough
+                    provider = moduleManager.getModule(dependency.getName());
+                    if (!satisfies(provider, dependency)) {
+                        addMissing(module.getName(), dependency);
+                    }
+                } else if (satisfies(provider, dependency)) {
+                    dependencies.get(module.getName()).add(provider.getName());
+                    dependents.get(provider.getName()).add(module.getName());
+                } else {
+                    addMissing(module.getName(), dependency);
+                }
+            }
+        }
+        for (String name : missing.keySet()) {
+            block(name);
+        }
+        sort();
+    }
+
+    /**
+     * @return <code>true</code> if <code>module</code> is at least the version required by <code>dependency</code>
+     */
+    private static boolean satisfies(final CmsModule module, final CmsModuleDependency dependency) {
+        return (module != null) && (module.getVersion().compareTo(dependency.getVersion()) >= 0);
+    }
+
+    /**
+     * Records a dependency of a module that cannot be satisfied.
+     */
+    private void addMissing(final String name, final CmsModuleDependency dependency) {
+        List<CmsModuleDependency> list = missing.get(name);
+        if (list == null) {
+            list = new ArrayList<CmsModuleDependency>();
+            missing.put(name, list);
+        }
+        list.add(dependency);
+    }
+
+    /**
+     * Marks every module that depends, directly or not, on <code>name</code> as blocked.
+     */
+    private void block(final String name) {
+        LinkedList<String> pending = new LinkedList<String>();
+        pending.add(name);
+        while (!pending.isEmpty()) {
+            String current = pending.removeFirst();
+            for (String dependent : dependents.get(current)) {
+                if (!missing.containsKey(dependent) && !blocked.containsKey(dependent)) {
+                    blocked.put(dependent, current);
+                    pending.add(dependent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Kahn's algorithm over the modules that are not blocked, one wave per round.
+     */
+    private void sort() {
+        Map<String, Integer> inDegree = new HashMap<String, Integer>();
+        List<String> wave = new ArrayList<String>();
+        for (String name : modules.keySet()) {
+            if (isImportable(name)) {
+                int degree = dependencies.get(name).size();
+                inDegree.put(name, Integer.valueOf(degree));
+                if (degree == 0) {
+                    wave.add(name);
+                }
+            }
+        }
+        while (!wave.isEmpty()) {
+            waves.add(Collections.unmodifiableList(wave));
+            List<String> next = new ArrayList<String>();
+            for (String name : wave) {
+                inDegree.remove(name);
+                for (String dependent : dependents.get(name)) {
+                    Integer degree = inDegree.get(dependent);
+                    if (degree != null) {
+                        inDegree.put(dependent, Integer.valueOf(degree.intValue() - 1));
+                        if (degree.intValue() == 1) {
+                            next.add(dependent);
+                        }
+                    }
+                }
+            }
+            Collections.sort(next);
+            wave = next;
+        }
+
+        // lo que queda depende de un ciclo: se descartan los módulos de los que no depende nadie más
+        // que quede, hasta que sólo quedan los módulos del ciclo
+        Set<String> left = new TreeSet<String>(inDegree.keySet());
+        boolean trimmed = true;
+        while (trimmed) {
+            trimmed = false;
+            for (String name : new ArrayList<String>(left)) {
+                if (Collections.disjoint(dependents.get(name), left)) {
+                    left.remove(name);
+                    trimmed = true;
+                }
+            }
+        }
+        cycles.addAll(left);
+        for (String name : inDegree.keySet()) {
+            if (!cycles.contains(name)) {
+                // depends on a module still pending, which is either in a cycle or blocked by one
+                for (String dependency : dependencies.get(name)) {
+                    if (inDegree.containsKey(dependency)) {
+                        blocked.put(name, dependency);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the module has no missing dependency and is not blocked
+     */
+    private boolean isImportable(final String name) {
+        return !missing.containsKey(name) && !blocked.containsKey(name);
+    }
+
+    /**
+     * @return the modules that can be imported, in dependency order, grouped in waves; the modules of
+     * a wave only depend on installed modules or on modules of earlier waves
+     */
+    public List<List<String>> getWaves() {
+        return Collections.unmodifiableList(waves);
+    }
+
+    /**
+     * @return the modules that can be imported, in dependency order
+     */
+    public List<String> getOrder() {
+        List<String> order = new ArrayList<String>(modules.size());
+        for (List<String> wave : waves) {
+            order.addAll(wave);
+        }
+        return order;
+    }
+
+    /**
+     * Orders modules to be deleted: a module is only deleted after every module of the import that
+     * depends on it, directly or not. Within a level, the modules needed first by the import go first.
+     *
+     * @param names names of modules of the import that are going to be deleted
+     * @return the modules grouped in levels; the modules of a level do not depend on each other
+     */
+    public List<List<String>> getDeleteLevels(final Collection<String> names) {
+        Map<String, Integer> waveIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < waves.size(); i++) {
+            for (String name : waves.get(i)) {
+                waveIndex.put(name, Integer.valueOf(i));
+            }
+        }
+        // Kahn sobre el grafo invertido: primero los módulos de los que no depende ninguno
+        Map<String, Integer> outDegree = new HashMap<String, Integer>();
+        List<String> level = new ArrayList<String>();
+        for (String name : waveIndex.keySet()) {
+            // only the modules that are imported count: the others are never deleted
+            int degree = 0;
+            for (String dependent : dependents.get(name)) {
+                if (waveIndex.containsKey(dependent)) {
+                    degree++;
+                }
+            }
+            outDegree.put(name, Integer.valueOf(degree));
+            if (degree == 0) {
+                level.add(name);
+            }
+        }
+        List<List<String>> levels = new ArrayList<List<String>>();
+        while (!level.isEmpty()) {
+            List<String> next = new ArrayList<String>();
+            List<String> selected = new ArrayList<String>();
+            for (String name : level) {
+                if (names.contains(name)) {
+                    selected.add(name);
+                }
+                for (String dependency : dependencies.get(name)) {
+                    Integer degree = outDegree.get(dependency);
+                    outDegree.put(dependency, Integer.valueOf(degree.intValue() - 1));
+                    if (degree.intValue() == 1) {
+                        next.add(dependency);
+                    }
+                }
+            }
+            if (!selected.isEmpty()) {
+                final Map<String, Integer> index = waveIndex;
+                Collections.sort(selected, new Comparator<String>() {
+
+                    public int compare(final String n1, final String n2) {
+                        int result = index.get(n1).compareTo(index.get(n2));
+                        return result != 0 ? result : n1.compareTo(n2);
+                    }
+                });
+                levels.add(selected);
+            }
+            level = next;
+        }
+        return levels;
+    }
+
+    /**
+     * @return module name -> dependencies that are neither in the import nor installed, or whose
+     * version is too old
+     */
+    public Map<String, List<CmsModuleDependency>> getMissing() {
+        return Collections.unmodifiableMap(missing);
+    }
+
+    /**
+     * @return the modules with circular dependencies
+     */
+    public Set<String> getCycles() {
+        return Collections.unmodifiableSet(cycles);
+    }
+
+    /**
+     * @return module name -> name of the module it depends on that cannot be imported
+     */
+    public Map<String, String> getBlocked() {
+        return Collections.unmodifiableMap(blocked);
+    }
+
+    /**
+     * @param name name of a module of the import
+     * @return the modules of the import that depend directly on it
+     */
+    public Set<String> getDependents(final String name) {
+        Set<String> result = dependents.get(name);
+        return result == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * @param name name of a module of the import
+     * @return the modules of the import it depends on directly
+     */
+    public Set<String> getDependencies(final String name) {
+        Set<String> result = dependencies.get(name);
+        return result == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * @param name name of a module of the import
+     * @return the module
+     */
+    public CmsModule getModule(final String name) {
+        return modules.get(name);
+    }
+
+    /**
+     * @return <code>true</code> if every module of the import can be imported
+     */
+    public boolean isComplete() {
+        return missing.isEmpty() && cycles.isEmpty() && blocked.isEmpty();
+    }
+}
@@ -0,0 +1,189 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opencms.db.CmsExportPoint;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.module.CmsModuleVersion;
+
+/**
+ * Lightweight, immutable description of a module file: the module header from its manifest plus
+ * the size and checksum of the file.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleDescriptor {
+
+    /**
+     * Name of the module file.
+     */
+    private final String fileName;
+
+    /**
+     * Module name, <code>null</code> if the file is not a valid module.
+     */
+    private final String name;
+
+    /**
+     * Module version.
+     */
+    private final String version;
+
+    /**
+     * Dependencies declared in the manifest.
+     */
+    private final List<CmsModuleDependency> dependencies;
+
+    /**
+     * Size of the module file.
+     */
+    private final long size;
+
+    /**
+     * Modification time of the module file.
+     */
+    private final long lastModified;
+
+    /**
+     * SHA-256 of the module file contents.
+     */
+    private final String checksum;
+
+    /**
+     * @param fileName     name of the module file
+     * @param name         module name, <code>null</code> if the file is not a valid module
+     * @param version      module version
+     * @param dependencies dependencies declared in the manifest
+     * @param size         size of the module file
+     * @param lastModified modification time of the module file
+     * @param checksum     SHA-256 of the module file contents
+     */
+    public CmsModuleDescriptor(final String fileName, final String name, final String version,
+            final List<CmsModuleDependency> dependencies, final long size, final long lastModified,
+            final String checksum) {
+        this.fileName = fileName;
+        this.name = name;
+        this.version = version;
+        this.dependencies = Collections.unmodifiableList(new ArrayList<CmsModuleDependency>(dependencies));
+        this.size = size;
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Creates the descriptor of a module read from a module file.
+     *
+     * @param fileName     name of the module file
+     * @param module       the module read from the manifest
+     * @param size         size of the module file
+     * @param lastModified modification time of the module file
+     * @param checksum     SHA-256 of the module file contents
+     * @return the descriptor
+     */
+    public static CmsModuleDescriptor fromModule(final String fileName, final CmsModule module, final long size,
+            final long lastModified, final String checksum) {
+        return new CmsModuleDescriptor(fileName, module.getName(), module.getVersion().toString(),
+                module.getDependencies(), size, lastModified, checksum);
+    }
+
+    /**
+     * Creates the descriptor of a file that is not a valid module, so it is not parsed again.
+     *
+     * @param fileName     name of the file
+     * @param size         size of the file
+     * @param lastModified modification time of the file
+     * @param checksum     SHA-256 of the file contents
+     * @return the descriptor
+     */
+    public static CmsModuleDescriptor invalid(final String fileName, final long size, final long lastModified,
+            final String checksum) {
+        return new CmsModuleDescriptor(fileName, null, null, Collections.<CmsModuleDependency>emptyList(), size,
+                lastModified, checksum);
+    }
+
+    /**
+     * @param otherFileName     name of the other file
+     * @param otherLastModified modification time of the other file
+     * @return a copy of this descriptor for another file with the same contents
+     */
+    public CmsModuleDescriptor forFile(final String otherFileName, final long otherLastModified) {
+        return new CmsModuleDescriptor(otherFileName, name, version, dependencies, size, otherLastModified,
+                checksum);
+    }
+
+    /**
+     * Creates a module holding only the header of the manifest: name, version and dependencies.
+     * <p>
+     * Enough to plan an import; the complete manifest is parsed when the module is imported.
+     *
+     * @return the module
+     */
+    public CmsModule toModule() {
+        return new CmsModule(name, name, null, null, null, new CmsModuleVersion(version), null, null, 0L, null, 0L,
+                new ArrayList<CmsModuleDependency>(dependencies), new ArrayList<CmsExportPoint>(),
+                new ArrayList<String>(), new HashMap<String, String>());
+    }
+
+    /**
+     * @return the name of the module file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return the module name, <code>null</code> if the file is not a valid module
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the module version
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the dependencies declared in the manifest
+     */
+    public List<CmsModuleDependency> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return the size of the module file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the modification time of the module file
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the SHA-256 of the module file contents
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return <code>true</code> if the file is a valid module
+     */
+    public boolean isValid() {
+        return name != null;
+    }
+}
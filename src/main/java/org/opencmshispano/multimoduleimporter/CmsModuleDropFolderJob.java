@@ -0,0 +1,393 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.file.CmsObject;
+import org.opencms.json.JSONArray;
+import org.opencms.json.JSONException;
+import org.opencms.json.JSONObject;
+import org.opencms.main.CmsLog;
+import org.opencms.main.CmsSystemInfo;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.scheduler.I_CmsScheduledJob;
+
+/**
+ * Scheduled job that imports the multi-module bundles copied to a drop folder, for unattended
+ * deploys.
+ * <p>
+ * Every run looks for <code>*.zip</code> bundles in the drop folder. A bundle is taken once it has
+ * not been modified for <code>settle</code> seconds; a deploy that copies the bundle with another
+ * extension and renames it when done is never read half written. Bundles that arrive close together
+ * are imported in a single run: while the newest bundle is younger than <code>coalesce</code>
+ * seconds, the job waits for the next run (but never longer than ten times <code>coalesce</code>
+ * for the oldest one), so the modules of all of them are planned and imported together by one
+ * {@link CmsModuleMultiImportThread}.
+ * <p>
+ * The bundles of a run are first moved, with an atomic rename, to <code>processing/&lt;run&gt;</code>,
+ * so no bundle is imported twice, and afterwards to <code>done/&lt;run&gt;</code> or
+ * <code>failed/&lt;run&gt;</code>. The result of the run is written to
+ * <code>results/&lt;run&gt;.json</code> and the import report to <code>results/&lt;run&gt;.html</code>.
+ * <p>
+ * Job parameters, all optional:
+ * <ul>
+ * <li><code>folder</code>: the drop folder, by default <code>drop</code> in the packages folder;</li>
+ * <li><code>settle</code>: seconds without changes before a bundle is complete, 30 by default;</li>
+ * <li><code>coalesce</code>: seconds to wait for more bundles, 60 by default.</li>
+ * </ul>
+ * The job runs with the user configured for it in the scheduler, who must be allowed to manage
+ * modules.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleDropFolderJob implements I_CmsScheduledJob {
+
+    /**
+     * Drop folder parameter.
+     */
+    public static final String PARAM_FOLDER = "folder";
+
+    /**
+     * Settle time parameter, in seconds.
+     */
+    public static final String PARAM_SETTLE = "settle";
+
+    /**
+     * Coalesce time parameter, in seconds.
+     */
+    public static final String PARAM_COALESCE = "coalesce";
+
+    /**
+     * Folder of the bundles being imported, inside the drop folder.
+     */
+    public static final String FOLDER_PROCESSING = "processing";
+
+    /**
+     * Folder of the bundles imported without errors, inside the drop folder.
+     */
+    public static final String FOLDER_DONE = "done";
+
+    /**
+     * Folder of the bundles imported with errors, inside the drop folder.
+     */
+    public static final String FOLDER_FAILED = "failed";
+
+    /**
+     * Folder of the result files, inside the drop folder.
+     */
+    public static final String FOLDER_RESULTS = "results";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleDropFolderJob.class);
+
+    /**
+     * Default settle time, in seconds.
+     */
+    private static final int DEFAULT_SETTLE = 30;
+
+    /**
+     * Default coalesce time, in seconds.
+     */
+    private static final int DEFAULT_COALESCE = 60;
+
+    /**
+     * The oldest bundle waits at most this many times the coalesce time.
+     */
+    private static final int MAX_COALESCE_FACTOR = 10;
+
+    /**
+     * Milliseconds between two reads of the import report.
+     */
+    private static final long REPORT_INTERVAL = 1000;
+
+    /**
+     * <code>true</code> while a run imports bundles, so that runs never overlap.
+     */
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+
+    /**
+     * @see org.opencms.scheduler.I_CmsScheduledJob#launch(org.opencms.file.CmsObject, java.util.Map)
+     */
+    public String launch(final CmsObject cms, final Map<String, String> parameters) throws Exception {
+
+        File drop = getDropFolder(parameters.get(PARAM_FOLDER));
+        long settle = getSeconds(parameters.get(PARAM_SETTLE), DEFAULT_SETTLE);
+        long coalesce = getSeconds(parameters.get(PARAM_COALESCE), DEFAULT_COALESCE);
+        if (!drop.isDirectory()) {
+            return "Drop folder " + drop + " does not exist";
+        }
+        if (!RUNNING.compareAndSet(false, true)) {
+            return "Previous run still importing";
+        }
+        try {
+            List<File> bundles = findBundles(drop, settle, coalesce);
+            if (bundles.isEmpty()) {
+                return "No bundles ready";
+            }
+            String run = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+            File processing = new File(new File(drop, FOLDER_PROCESSING), run);
+            List<File> taken = take(bundles, processing);
+            if (taken.isEmpty()) {
+                return "No bundles ready";
+            }
+            return importBundles(cms, drop, run, taken);
+        } finally {
+            RUNNING.set(false);
+        }
+    }
+
+    /**
+     * @return the complete bundles of the drop folder, oldest first, or none if more bundles may
+     * still arrive for the same run
+     */
+    private static List<File> findBundles(final File drop, final long settle, final long coalesce) {
+        long now = System.currentTimeMillis();
+        List<File> bundles = new ArrayList<File>();
+        // also counts the bundles still being written: they belong to the same deploy
+        long newest = Long.MIN_VALUE;
+        File[] files = drop.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().toLowerCase().endsWith(".zip") && !file.getName().startsWith(".")) {
+                    newest = Math.max(newest, file.lastModified());
+                    if (file.lastModified() <= now - settle) {
+                        bundles.add(file);
+                    }
+                }
+            }
+        }
+        if (bundles.isEmpty()) {
+            return bundles;
+        }
+        Collections.sort(bundles, new Comparator<File>() {
+
+            public int compare(final File f1, final File f2) {
+                return f1.lastModified() < f2.lastModified() ? -1 : (f1.lastModified() == f2.lastModified() ? 0 : 1);
+            }
+        });
+        long oldest = bundles.get(0).lastModified();
+        if ((newest > now - Math.max(settle, coalesce)) && (oldest > now - (coalesce * MAX_COALESCE_FACTOR))) {
+            // more bundles of the same deploy may follow
+            LOG.debug("Waiting for more bundles in " + drop);
+            return Collections.emptyList();
+        }
+        return bundles;
+    }
+
+    /**
+     * Moves the bundles to the folder of the run. A bundle that cannot be moved, e.g. because it was
+     * taken by another server, is left out.
+     *
+     * @return the moved bundles, in the same order
+     */
+    private static List<File> take(final List<File> bundles, final File processing) throws IOException {
+        if (!processing.mkdirs()) {
+            throw new IOException("Cannot create folder " + processing);
+        }
+        List<File> taken = new ArrayList<File>(bundles.size());
+        for (File bundle : bundles) {
+            File target = new File(processing, bundle.getName());
+            if (bundle.renameTo(target)) {
+                taken.add(target);
+            } else {
+                LOG.warn("Cannot take bundle " + bundle);
+            }
+        }
+        if (taken.isEmpty()) {
+            processing.delete();
+        }
+        return taken;
+    }
+
+    /**
+     * Extracts the bundles, imports all their modules in one run and writes the result files.
+     *
+     * @return a summary of the run
+     */
+    private static String importBundles(final CmsObject cms, final File drop, final String run,
+            final List<File> bundles) throws IOException, JSONException, InterruptedException {
+
+        File modulesFolder = new File(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator
+                + CmsSystemInfo.FOLDER_MODULES);
+        File results = new File(drop, FOLDER_RESULTS);
+        results.mkdirs();
+
+        JSONObject result = new JSONObject();
+        result.put("run", run);
+        result.put("started", System.currentTimeMillis());
+
+        // filename -> module, and filename -> bundle; a module in several bundles is taken from the newest
+        Map<String, CmsModule> modules = new HashMap<String, CmsModule>();
+        Map<String, String> moduleFiles = new HashMap<String, String>();
+        Map<String, String> bundleOf = new HashMap<String, String>();
+        JSONArray bundleResults = new JSONArray();
+        boolean success = true;
+        for (File bundle : bundles) {
+            JSONObject bundleResult = new JSONObject();
+            bundleResult.put("name", bundle.getName());
+            try {
+                Map<String, CmsModule> bundleModules = CmsModuleBundleIngester.ingest(bundle, modulesFolder);
+                if (bundleModules.isEmpty()) {
+                    throw new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_NO_MODULES_1,
+                            bundle.getName()));
+                }
+                for (Map.Entry<String, CmsModule> e : bundleModules.entrySet()) {
+                    String previous = moduleFiles.put(e.getValue().getName(), e.getKey());
+                    if ((previous != null) && !previous.equals(e.getKey())) {
+                        modules.remove(previous);
+                    }
+                    modules.put(e.getKey(), e.getValue());
+                    bundleOf.put(e.getKey(), bundle.getName());
+                }
+                bundleResult.put("modules", bundleModules.size());
+            } catch (CmsConfigurationException e) {
+                LOG.error("Invalid bundle " + bundle + ": " + e.getMessage(), e);
+                bundleResult.put("error", e.getLocalizedMessage());
+                success = false;
+            } catch (IOException e) {
+                LOG.error("Cannot read bundle " + bundle + ": " + e.getMessage(), e);
+                bundleResult.put("error", e.getMessage());
+                success = false;
+            }
+            bundleResults.put(bundleResult);
+        }
+        result.put("bundles", bundleResults);
+
+        if (!modules.isEmpty()) {
+            success &= runImport(cms, modules, bundleOf, new File(results, run + ".html"), result);
+        }
+        result.put("finished", System.currentTimeMillis());
+        result.put("success", success);
+        writeResult(new File(results, run + ".json"), result);
+
+        File processing = bundles.get(0).getParentFile();
+        File target = new File(new File(drop, success ? FOLDER_DONE : FOLDER_FAILED), run);
+        target.getParentFile().mkdirs();
+        if (!processing.renameTo(target)) {
+            LOG.warn("Cannot move " + processing + " to " + target);
+        }
+        String summary = String.format("Run %s: %d bundles, %d modules, %s", run, Integer.valueOf(bundles.size()),
+                Integer.valueOf(modules.size()), success ? "imported" : "failed");
+        LOG.info(summary);
+        return summary;
+    }
+
+    /**
+     * Imports the modules with a {@link CmsModuleMultiImportThread}, waits for it and adds the outcome
+     * of every module to the result.
+     *
+     * @return <code>true</code> if every module is installed in the version of its file
+     */
+    private static boolean runImport(final CmsObject cms, final Map<String, CmsModule> modules,
+            final Map<String, String> bundleOf, final File reportFile, final JSONObject result)
+            throws IOException, JSONException, InterruptedException {
+
+        // no session: the thread runs with the cms context of the job and is waited for here
+        CmsModuleMultiImportThread thread = new CmsModuleMultiImportThread(cms, modules);
+        Writer report = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+        try {
+            thread.start();
+            // the report is read while the import runs, so it does not pile up in memory
+            while (thread.isAlive()) {
+                thread.join(REPORT_INTERVAL);
+                report.write(thread.getReportUpdate());
+            }
+            report.write(thread.getReportUpdate());
+        } finally {
+            report.close();
+        }
+
+        boolean success = true;
+        Map<String, JSONObject> moduleResults = new LinkedHashMap<String, JSONObject>();
+        List<String> fileNames = new ArrayList<String>(modules.keySet());
+        Collections.sort(fileNames);
+        for (String fileName : fileNames) {
+            CmsModule module = modules.get(fileName);
+            CmsModule installed = OpenCms.getModuleManager().getModule(module.getName());
+            boolean ok = (installed != null) && installed.getVersion().equals(module.getVersion());
+            success &= ok;
+            JSONObject moduleResult = new JSONObject();
+            moduleResult.put("name", module.getName());
+            moduleResult.put("version", module.getVersion().toString());
+            moduleResult.put("file", fileName);
+            moduleResult.put("bundle", bundleOf.get(fileName));
+            moduleResult.put("status", ok ? "installed" : "failed");
+            moduleResults.put(module.getName(), moduleResult);
+        }
+        result.put("modules", new ArrayList<JSONObject>(moduleResults.values()));
+
+        List<String> errors = new ArrayList<String>();
+        for (Object error : thread.getReport().getErrors()) {
+            errors.add(error instanceof Throwable ? String.valueOf(((Throwable) error).getMessage())
+                    : String.valueOf(error));
+        }
+        result.put("errors", errors);
+        return success && errors.isEmpty();
+    }
+
+    /**
+     * Writes the result file. It is written to a temporary file first, so a reader never sees it half
+     * written.
+     */
+    private static void writeResult(final File file, final JSONObject result) throws IOException, JSONException {
+        File tmp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            writer.write(result.toString(2));
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @return the drop folder; relative paths are relative to the packages folder
+     */
+    private static File getDropFolder(final String folder) {
+        String packages = OpenCms.getSystemInfo().getPackagesRfsPath();
+        if ((folder == null) || (folder.trim().length() == 0)) {
+            return new File(packages, "drop");
+        }
+        File file = new File(folder.trim());
+        return file.isAbsolute() ? file : new File(packages, folder.trim());
+    }
+
+    /**
+     * @return the milliseconds of a parameter given in seconds
+     */
+    private static long getSeconds(final String value, final int defaultValue) {
+        int seconds = defaultValue;
+        if (value != null) {
+            try {
+                seconds = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn(String.format("Invalid value \"%s\" of job parameter, using %d", value,
+                        Integer.valueOf(defaultValue)));
+            }
+        }
+        return Math.max(0, seconds) * 1000L;
+    }
+}
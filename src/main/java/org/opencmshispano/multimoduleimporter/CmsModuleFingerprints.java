@@ -0,0 +1,208 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.module.CmsModule;
+
+/**
+ * Fingerprints of the modules installed by this importer: module name, version and checksum of
+ * the module file that was imported.
+ * <p>
+ * OpenCms only keeps the version of an installed module, and modules are often rebuilt without
+ * changing it. Comparing the checksum as well tells when a module in a bundle is really the one
+ * already installed, so it does not need to be deleted and imported again. The fingerprints are
+ * stored next to the module files, in the same way as the {@link CmsModuleMetadataIndex}.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleFingerprints {
+
+    /**
+     * Name of the fingerprints file inside the modules folder.
+     */
+    public static final String FILE_NAME = ".multimoduleimporter.installed";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleFingerprints.class);
+
+    /**
+     * Header of the fingerprints file, changed whenever the format changes.
+     */
+    private static final String HEADER = "# multimoduleimporter installed modules v1";
+
+    /**
+     * Field separator of the fingerprints file.
+     */
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /**
+     * Fingerprints already loaded, by folder.
+     */
+    private static final Map<File, CmsModuleFingerprints> INSTANCES = new HashMap<File, CmsModuleFingerprints>();
+
+    /**
+     * The folder the fingerprints are stored in.
+     */
+    private final File folder;
+
+    /**
+     * The fingerprints file.
+     */
+    private final File file;
+
+    /**
+     * Module name -> { version, checksum }.
+     */
+    private final Map<String, String[]> fingerprints = new TreeMap<String, String[]>();
+
+    /**
+     * <code>true</code> if the fingerprints changed since they were last stored.
+     */
+    private boolean dirty;
+
+    private CmsModuleFingerprints(final File folder) {
+        this.folder = folder;
+        this.file = new File(folder, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Returns the fingerprints stored in a folder, loading them the first time.
+     *
+     * @param folder the modules folder
+     * @return the fingerprints
+     */
+    public static CmsModuleFingerprints getInstance(final File folder) {
+        File key = folder.getAbsoluteFile();
+        synchronized (INSTANCES) {
+            CmsModuleFingerprints instance = INSTANCES.get(key);
+            if (instance == null) {
+                instance = new CmsModuleFingerprints(key);
+                INSTANCES.put(key, instance);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Checks if a module file holds exactly the module that is installed.
+     *
+     * @param installed  the installed module, <code>null</code> if not installed
+     * @param descriptor the descriptor of the module file
+     * @return <code>true</code> if the installed module has the same version and was imported from a
+     * file with the same checksum
+     */
+    public synchronized boolean isUnchanged(final CmsModule installed, final CmsModuleDescriptor descriptor) {
+        if ((installed == null) || !descriptor.isValid()
+                || !installed.getVersion().toString().equals(descriptor.getVersion())) {
+            return false;
+        }
+        String[] fingerprint = fingerprints.get(descriptor.getName());
+        // without fingerprint the module was installed by other means: it may be different
+        return (fingerprint != null) && fingerprint[0].equals(descriptor.getVersion())
+                && fingerprint[1].equals(descriptor.getChecksum());
+    }
+
+    /**
+     * Records the fingerprint of a module just imported. It is only kept in memory until the next
+     * {@link #flush()}.
+     *
+     * @param descriptor the descriptor of the imported module file
+     */
+    public synchronized void record(final CmsModuleDescriptor descriptor) {
+        if (descriptor.isValid() && (descriptor.getChecksum() != null)) {
+            fingerprints.put(descriptor.getName(), new String[] {descriptor.getVersion(), descriptor.getChecksum()});
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forgets the fingerprint of a module, e.g. because it was deleted.
+     *
+     * @param name the module name
+     */
+    public synchronized void remove(final String name) {
+        if (fingerprints.remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Stores the fingerprints if they changed. They are written to a temporary file first, so a
+     * crash never leaves a half written file behind.
+     */
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(folder, FILE_NAME + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, String[]> e : fingerprints.entrySet()) {
+                    writer.write(e.getKey() + FIELD_SEPARATOR + e.getValue()[0] + FIELD_SEPARATOR + e.getValue()[1]);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            LOG.warn("Cannot write module fingerprints " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads the stored fingerprints. Missing or unreadable fingerprints only mean that every module
+     * is imported again.
+     */
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    LOG.info("Ignoring module fingerprints with unknown format " + file);
+                    return;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(FIELD_SEPARATOR, -1);
+                    if (fields.length == 3) {
+                        fingerprints.put(fields[0], new String[] {fields[1], fields[2]});
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot read module fingerprints " + file + ": " + e.getMessage(), e);
+        }
+    }
+}
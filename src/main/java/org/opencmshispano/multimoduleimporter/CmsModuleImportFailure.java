@@ -0,0 +1,61 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipException;
+
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.db.CmsDbSqlException;
+import org.opencms.lock.CmsLockException;
+import org.opencms.security.CmsRoleViolationException;
+import org.opencms.xml.CmsXmlException;
+
+/**
+ * Tells retryable from permanent module import failures.
+ * <p>
+ * A failure is <b>permanent</b> if trying again cannot change the result: the module file is broken
+ * (unreadable zip, invalid manifest), a dependency is missing or the user lacks the permissions.
+ * It is <b>retryable</b> if it comes from the environment at the time of the import: a database
+ * error, a resource locked by someone else, a timeout or an I/O error other than a broken or missing
+ * file. The whole chain of causes is checked; any permanent cause makes the failure permanent, and
+ * a failure with no known cause is permanent too, so a broken bundle is never retried.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportFailure {
+
+    /**
+     * @param failure the failure of an import
+     * @return <code>true</code> if importing the module again may succeed
+     */
+    public static boolean isRetryable(final Throwable failure) {
+        boolean retryable = false;
+        for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (isPermanent(t)) {
+                return false;
+            }
+            retryable |= (t instanceof CmsDbSqlException) || (t instanceof SQLException)
+                    || (t instanceof CmsLockException) || (t instanceof SocketTimeoutException)
+                    || (t instanceof TimeoutException) || (t instanceof IOException);
+        }
+        return retryable;
+    }
+
+    /**
+     * @return <code>true</code> if a failure (not its causes) is permanent
+     */
+    private static boolean isPermanent(final Throwable t) {
+        return (t instanceof CmsConfigurationException) || (t instanceof CmsXmlException)
+                || (t instanceof CmsRoleViolationException) || (t instanceof ZipException)
+                || (t instanceof FileNotFoundException);
+    }
+
+    private CmsModuleImportFailure() {
+    }
+}
@@ -0,0 +1,67 @@
+package org.opencmshispano.multimoduleimporter;
+
+import org.apache.commons.logging.Log;
+import org.opencms.file.CmsObject;
+import org.opencms.main.CmsLog;
+import org.opencms.report.A_CmsReportThread;
+import org.opencms.report.I_CmsReport;
+
+/**
+ * Report thread that follows an import thread already running, instead of starting the import again.
+ * <p>
+ * Used when the import report of a job is opened once more, e.g. reloaded: the report page always
+ * starts the thread it gets, and a {@link CmsModuleMultiImportThread} can run only once. This thread
+ * serves the report of the import and ends with it.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+final class CmsModuleImportFollowThread extends A_CmsReportThread {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleImportFollowThread.class);
+
+    /**
+     * The import thread followed.
+     */
+    private final CmsModuleMultiImportThread followed;
+
+    /**
+     * @param cms      the current cms context
+     * @param followed the import thread to follow
+     */
+    CmsModuleImportFollowThread(final CmsObject cms, final CmsModuleMultiImportThread followed) {
+        super(cms, followed.getName());
+        this.followed = followed;
+    }
+
+    /**
+     * @see org.opencms.report.A_CmsReportThread#getReportUpdate()
+     */
+    @Override
+    public String getReportUpdate() {
+        return followed.getReportUpdate();
+    }
+
+    /**
+     * @see org.opencms.report.A_CmsReportThread#getReport()
+     */
+    @Override
+    public I_CmsReport getReport() {
+        return followed.getReport();
+    }
+
+    @Override
+    public void run() {
+        try {
+            followed.join();
+        } catch (InterruptedException e) {
+            LOG.debug(e.getLocalizedMessage(), e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
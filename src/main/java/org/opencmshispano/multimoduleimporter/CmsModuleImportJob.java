@@ -0,0 +1,201 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.opencms.file.CmsObject;
+import org.opencms.main.CmsLog;
+import org.opencms.main.CmsRuntimeException;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleManager;
+import org.opencms.report.A_CmsReportThread;
+import org.opencms.util.CmsUUID;
+
+/**
+ * A multi-module import waiting to be started or running, kept in the
+ * {@link CmsModuleImportJobRegistry}.
+ * <p>
+ * A job only holds the names of the module files. Their manifests are read when the import thread is
+ * created, through the {@link CmsModuleMetadataIndex} of the folder, so an uploaded bundle costs a few
+ * bytes until it is imported and nothing has to be kept in the HTTP session but the job id.
+ * <p>
+ * The {@link CmsModuleImportPlan plan} of the job is computed the first time it is asked for, usually
+ * right after the upload, and handed to the import thread, which only plans again if the modules
+ * changed in the meantime.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportJob {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleImportJob.class);
+
+    /**
+     * The job id.
+     */
+    private final String id;
+
+    /**
+     * The folder of the module files.
+     */
+    private final File folder;
+
+    /**
+     * Names of the module files.
+     */
+    private final List<String> fileNames;
+
+    /**
+     * When the job was registered.
+     */
+    private final long created;
+
+    /**
+     * Id of the import thread, <code>null</code> until it is created.
+     */
+    private volatile CmsUUID threadId;
+
+    /**
+     * The plan of the import, <code>null</code> until it is asked for.
+     */
+    private CmsModuleImportPlan plan;
+
+    /**
+     * @param folder    the folder of the module files
+     * @param fileNames names of the module files
+     */
+    CmsModuleImportJob(final File folder, final List<String> fileNames) {
+        this.id = new CmsUUID().toString();
+        this.folder = folder;
+        this.fileNames = Collections.unmodifiableList(new ArrayList<String>(fileNames));
+        this.created = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the job id
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the names of the module files
+     */
+    public List<String> getFileNames() {
+        return fileNames;
+    }
+
+    /**
+     * @return when the job was registered
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the id of the import thread, <code>null</code> if it was not created yet
+     */
+    public CmsUUID getThreadId() {
+        return threadId;
+    }
+
+    /**
+     * Reads the descriptors of the module files. Files that disappeared or are not modules any more
+     * are left out.
+     *
+     * @return the descriptors of the module files
+     */
+    public List<CmsModuleDescriptor> getDescriptors() {
+        CmsModuleMetadataIndex index = CmsModuleMetadataIndex.getInstance(folder);
+        List<CmsModuleDescriptor> descriptors = new ArrayList<CmsModuleDescriptor>(fileNames.size());
+        for (String fileName : fileNames) {
+            File file = new File(folder, fileName);
+            CmsModuleDescriptor descriptor = file.exists() ? index.getDescriptor(file) : null;
+            if ((descriptor != null) && descriptor.isValid()) {
+                descriptors.add(descriptor);
+            } else {
+                LOG.error("Module file " + file + " of import job " + id + " is missing or invalid, not imported");
+            }
+        }
+        return descriptors;
+    }
+
+    /**
+     * Plans the import of this job, or returns the plan computed before if it is still current.
+     * Nothing is deleted or imported.
+     *
+     * @return the plan
+     */
+    public synchronized CmsModuleImportPlan getPlan() {
+        CmsModuleManager moduleManager = OpenCms.getModuleManager();
+        boolean skipUnchanged = CmsModuleImportSettings.isSkipUnchanged();
+        boolean deltaImport = CmsModuleImportSettings.isDeltaImport();
+        if ((plan == null) || !plan.isCurrent(moduleManager, skipUnchanged, deltaImport)) {
+            Map<String, CmsModule> modules = new LinkedHashMap<String, CmsModule>();
+            for (CmsModuleDescriptor descriptor : getDescriptors()) {
+                modules.put(descriptor.getFileName(), descriptor.toModule());
+            }
+            plan = CmsModuleImportPlan.create(folder, modules, moduleManager, skipUnchanged, deltaImport);
+            CmsModuleMetadataIndex.getInstance(folder).flush();
+        }
+        return plan;
+    }
+
+    /**
+     * @return the import thread of this job, <code>null</code> if it was not created yet or OpenCms does
+     * not keep it any more
+     */
+    public CmsModuleMultiImportThread getThread() {
+        CmsUUID current = threadId;
+        A_CmsReportThread thread = current == null ? null : OpenCms.getThreadStore().retrieveThread(current);
+        return thread instanceof CmsModuleMultiImportThread ? (CmsModuleMultiImportThread) thread : null;
+    }
+
+    /**
+     * Creates the import thread of this job, with its plan. The thread is not started.
+     * <p>
+     * A job is imported only once: the thread can only be created once.
+     *
+     * @param cms the cms context of the import
+     * @return the thread
+     * @throws IllegalStateException if the thread of this job was already created
+     */
+    public synchronized CmsModuleMultiImportThread createThread(final CmsObject cms) {
+        if (threadId != null) {
+            throw new IllegalStateException("Import job " + id + " was already started");
+        }
+        CmsModuleMultiImportThread thread = new CmsModuleMultiImportThread(cms, getPlan());
+        threadId = thread.getUUID();
+        return thread;
+    }
+
+    /**
+     * Creates the thread of the import report of this job: the import thread the first time, then a
+     * thread that follows it (e.g. when the report page is loaded again). The thread is not started.
+     *
+     * @param cms the cms context of the import
+     * @return the thread
+     * @throws CmsRuntimeException if the import was started and already ended
+     */
+    public synchronized A_CmsReportThread createReportThread(final CmsObject cms) {
+        if (threadId == null) {
+            return createThread(cms);
+        }
+        CmsModuleMultiImportThread thread = getThread();
+        if (thread == null) {
+            throw new CmsRuntimeException(Messages.get().container(Messages.ERR_IMPORT_JOB_STARTED_0));
+        }
+        return new CmsModuleImportFollowThread(cms, thread);
+    }
+}
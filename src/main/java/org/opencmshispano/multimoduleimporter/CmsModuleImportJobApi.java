@@ -0,0 +1,395 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.jsp.PageContext;
+
+import org.apache.commons.logging.Log;
+import org.opencms.json.JSONArray;
+import org.opencms.json.JSONException;
+import org.opencms.json.JSONObject;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.main.CmsLog;
+import org.opencms.main.CmsSystemInfo;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.report.A_CmsReportThread;
+import org.opencms.security.CmsRole;
+import org.opencms.security.CmsRoleViolationException;
+import org.opencms.util.CmsStringUtil;
+import org.opencms.util.CmsUUID;
+
+/**
+ * JSON API to start multi-module imports and follow their progress, for automation.
+ * <p>
+ * Driven by the <code>action</code> parameter:
+ * <ul>
+ * <li><code>plan</code>: returns the {@link CmsModuleImportPlan plan} of a job without starting it:
+ * what is done with every module, with its size and resources, the modules deleted first, the import
+ * waves and the dependency problems. The job is the given <code>job</code>, a new job of the comma
+ * separated <code>files</code> of the server modules folder or, without either, the job of the last
+ * bundle uploaded in this session (see {@link CmsModuleImportJobRegistry}).</li>
+ * <li><code>start</code>: starts the {@link CmsModuleMultiImportThread} of a job, chosen as for
+ * <code>plan</code>, and returns its <code>job</code> id. A job planned before is imported with that
+ * plan unless the modules changed since.</li>
+ * <li><code>progress</code>: returns the progress of a <code>job</code> (see
+ * {@link CmsModuleImportProgress}): phase, modules being processed, modules and bytes done, and the
+ * events after <code>cursor</code>, with the <code>cursor</code> to send next time. With
+ * <code>statuses=true</code> the status of every module is returned as well. A job waiting for
+ * other jobs of the same modules has its position in the queue and the time it has waited.</li>
+ * <li><code>queue</code>: returns the jobs running and waiting (see {@link CmsModuleImportScheduler}),
+ * with their modules, the modules they lock and their wait times.</li>
+ * </ul>
+ * <code>start</code>, and <code>plan</code> with <code>files</code>, create or start a job, so they
+ * must be sent with <code>POST</code>; any other method gets a <code>405</code>. Starting a job
+ * already started gets a <code>409</code>. The jobs run as report threads of OpenCms, so a job
+ * started here can also be followed in the workplace; the id of a thread started in the workplace
+ * can be used as <code>job</code> as well. Every response is a JSON object; errors have an
+ * <code>error</code> message and an HTTP error status. Only users with the
+ * {@link CmsRole#DATABASE_MANAGER} role may use the API.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleImportJobApi {
+
+    /**
+     * The JSP of the API.
+     */
+    public static final String API_URI = "/system/workplace/admin/modules/multi_import_job.jsp";
+
+    /** Action parameter. */
+    public static final String PARAM_ACTION = "action";
+
+    /** Job id parameter. */
+    public static final String PARAM_JOB = "job";
+
+    /** Cursor parameter. */
+    public static final String PARAM_CURSOR = "cursor";
+
+    /** Module files parameter. */
+    public static final String PARAM_FILES = "files";
+
+    /** Parameter to return the status of every module. */
+    public static final String PARAM_STATUSES = "statuses";
+
+    /** Plans a job. */
+    public static final String ACTION_PLAN = "plan";
+
+    /** Starts a job. */
+    public static final String ACTION_START = "start";
+
+    /** Returns the progress of a job. */
+    public static final String ACTION_PROGRESS = "progress";
+
+    /** Returns the jobs running and waiting. */
+    public static final String ACTION_QUEUE = "queue";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleImportJobApi.class);
+
+    /**
+     * The JSP action element.
+     */
+    private final CmsJspActionElement jsp;
+
+    /**
+     * HttpSession object.
+     */
+    private final HttpSession session;
+
+    /**
+     * Public constructor with JSP variables.
+     * <p>
+     *
+     * @param context the JSP page context
+     * @param req     the JSP request
+     * @param res     the JSP response
+     * @param session the HTTP session
+     */
+    public CmsModuleImportJobApi(final PageContext context, final HttpServletRequest req,
+            final HttpServletResponse res, final HttpSession session) {
+        this.jsp = new CmsJspActionElement(context, req, res);
+        this.session = session;
+    }
+
+    /**
+     * Handles a request of the API.
+     *
+     * @return the JSON response
+     */
+    public String handle() {
+        HttpServletRequest request = jsp.getRequest();
+        HttpServletResponse response = jsp.getResponse();
+        JSONObject result = new JSONObject();
+        try {
+            try {
+                OpenCms.getRoleManager().checkRole(jsp.getCmsObject(), CmsRole.DATABASE_MANAGER);
+                String action = request.getParameter(PARAM_ACTION);
+                if (isPostRequired(request, action)
+                        && !CmsModuleChunkedUpload.METHOD_POST.equalsIgnoreCase(request.getMethod())) {
+                    response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+                    response.setHeader("Allow", CmsModuleChunkedUpload.METHOD_POST);
+                    result.put("error", "Action " + action + " requires " + CmsModuleChunkedUpload.METHOD_POST);
+                } else if (ACTION_PLAN.equals(action)) {
+                    plan(request, result);
+                } else if (ACTION_START.equals(action)) {
+                    start(request, result);
+                } else if (ACTION_PROGRESS.equals(action)) {
+                    progress(request, result);
+                } else if (ACTION_QUEUE.equals(action)) {
+                    queue(result);
+                } else {
+                    throw new IllegalArgumentException("Unknown action: " + action);
+                }
+            } catch (CmsRoleViolationException e) {
+                response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                result.put("error", e.getLocalizedMessage(jsp.getCmsObject().getRequestContext().getLocale()));
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                result.put("error", e.getMessage());
+            } catch (IllegalStateException e) {
+                // the job was already started, here or in the workplace
+                response.setStatus(HttpServletResponse.SC_CONFLICT);
+                result.put("error", e.getMessage());
+            }
+        } catch (JSONException e) {
+            // only keys and values that are never null are written
+            LOG.error(e.getLocalizedMessage(), e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Plans an import job without starting it.
+     */
+    private void plan(final HttpServletRequest request, final JSONObject result) throws JSONException {
+        CmsModuleImportJob job = getRequestedJob(request);
+        result.put(PARAM_JOB, job.getId());
+        result.put("plan", toJson(job.getPlan()));
+    }
+
+    /**
+     * Starts an import job.
+     */
+    private void start(final HttpServletRequest request, final JSONObject result) throws JSONException {
+        CmsModuleImportJob job = getRequestedJob(request);
+        // checked and created at once: two concurrent starts of a job can not both get a thread
+        job.createThread(jsp.getCmsObject()).start();
+        result.put(PARAM_JOB, job.getId());
+        result.put("modules", job.getFileNames().size());
+    }
+
+    /**
+     * @return <code>true</code> if the action creates or starts a job: <code>start</code>, and
+     * <code>plan</code> of new files
+     */
+    private static boolean isPostRequired(final HttpServletRequest request, final String action) {
+        return ACTION_START.equals(action) || (ACTION_PLAN.equals(action)
+                && CmsStringUtil.isNotEmptyOrWhitespaceOnly(request.getParameter(PARAM_FILES)));
+    }
+
+    /**
+     * @return the job of a request: the given job, a new job of the given files or the job of the last
+     * bundle uploaded in the session
+     */
+    private CmsModuleImportJob getRequestedJob(final HttpServletRequest request) {
+        String files = request.getParameter(PARAM_FILES);
+        if (CmsStringUtil.isNotEmptyOrWhitespaceOnly(files)) {
+            List<String> fileNames = CmsStringUtil.splitAsList(files, ',', true);
+            checkServerModules(fileNames);
+            return CmsModuleImportJobRegistry.getInstance().register(fileNames);
+        }
+        String id = request.getParameter(PARAM_JOB);
+        if (id == null) {
+            id = (String) session.getAttribute(CmsModuleImportJobRegistry.SESSION_ATT_NAME_JOB);
+            if (id == null) {
+                throw new IllegalArgumentException("No modules to import: no files given and no bundle uploaded");
+            }
+        }
+        CmsModuleImportJob job = CmsModuleImportJobRegistry.getInstance().getJob(id);
+        if (job == null) {
+            throw new IllegalArgumentException("Unknown or expired job: " + id);
+        }
+        return job;
+    }
+
+    /**
+     * Checks that the given files are modules of the server modules folder, according to its index.
+     */
+    private static void checkServerModules(final List<String> fileNames) {
+        File folder = new File(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator
+                + CmsSystemInfo.FOLDER_MODULES);
+        Set<String> known = new HashSet<String>();
+        for (CmsModuleDescriptor descriptor : CmsModuleMetadataIndex.getInstance(folder).getModules()) {
+            known.add(descriptor.getFileName());
+        }
+        for (String fileName : fileNames) {
+            if (!known.contains(fileName)) {
+                throw new IllegalArgumentException("Not a module of the server: " + fileName);
+            }
+        }
+    }
+
+    /**
+     * Returns the progress of a job since a cursor.
+     */
+    private void progress(final HttpServletRequest request, final JSONObject result) throws JSONException {
+        CmsModuleMultiImportThread thread = getJob(request.getParameter(PARAM_JOB));
+        CmsModuleImportProgress progress = thread.getProgress();
+        int cursor = 0;
+        String value = request.getParameter(PARAM_CURSOR);
+        if (value != null) {
+            try {
+                cursor = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + value);
+            }
+        }
+        // the events are read first: the counters are then at least as recent as the last event
+        List<CmsModuleImportProgress.Event> events = progress.getEvents(cursor);
+        JSONArray array = new JSONArray();
+        for (CmsModuleImportProgress.Event event : events) {
+            JSONObject json = new JSONObject();
+            json.put("seq", event.getSeq());
+            json.put("time", event.getTime());
+            json.put("phase", event.getPhase());
+            if (event.getModule() != null) {
+                json.put("module", event.getModule());
+                json.put("status", event.getStatus());
+            }
+            if (event.getMessage() != null) {
+                json.put("message", event.getMessage());
+            }
+            array.put(json);
+        }
+        result.put(PARAM_JOB, request.getParameter(PARAM_JOB));
+        result.put(PARAM_CURSOR, events.isEmpty() ? Math.max(0, cursor) : events.get(events.size() - 1).getSeq() + 1);
+        result.put("phase", progress.getPhase());
+        result.put("finished", progress.isFinished());
+        result.put("current", progress.getCurrent());
+        result.put("done", progress.getDone());
+        result.put("total", progress.getTotal());
+        result.put("bytesDone", progress.getBytesDone());
+        result.put("bytesTotal", progress.getBytesTotal());
+        result.put("events", array);
+        CmsModuleImportScheduler.Ticket ticket = thread.getTicket();
+        if (ticket != null) {
+            result.put("queuePosition", CmsModuleImportScheduler.getInstance().getPosition(ticket));
+            result.put("waited", ticket.getWaitTime());
+        }
+        if (Boolean.valueOf(request.getParameter(PARAM_STATUSES)).booleanValue()) {
+            result.put(PARAM_STATUSES, progress.getStatuses());
+        }
+    }
+
+    /**
+     * Returns the jobs running and waiting.
+     */
+    private static void queue(final JSONObject result) throws JSONException {
+        CmsModuleImportScheduler scheduler = CmsModuleImportScheduler.getInstance();
+        result.put("concurrent", CmsModuleImportSettings.getConcurrentJobs());
+        result.put("depth", scheduler.getQueueDepth());
+        result.put("running", toJson(scheduler.getRunning()));
+        result.put("waiting", toJson(scheduler.getWaiting()));
+    }
+
+    /**
+     * @return the JSON array of some jobs of the queue
+     */
+    private static JSONArray toJson(final List<CmsModuleImportScheduler.Ticket> tickets) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (CmsModuleImportScheduler.Ticket ticket : tickets) {
+            JSONObject json = new JSONObject();
+            json.put("thread", ticket.getJob());
+            if (ticket.getUser() != null) {
+                json.put("user", ticket.getUser());
+            }
+            json.put("queued", ticket.getQueued());
+            json.put("waited", ticket.getWaitTime());
+            json.put("modules", new JSONArray(ticket.getModules()));
+            json.put("locks", new JSONArray(ticket.getLocks()));
+            array.put(json);
+        }
+        return array;
+    }
+
+    /**
+     * @param plan the plan of an import
+     * @return the JSON object of the plan
+     */
+    static JSONObject toJson(final CmsModuleImportPlan plan) throws JSONException {
+        CmsModuleDependencyGraph graph = plan.getGraph();
+        JSONObject json = new JSONObject();
+        json.put("created", plan.getCreated());
+        json.put("complete", graph.isComplete());
+        json.put("bytes", plan.getSize());
+        json.put("resources", plan.getResources());
+        json.put("delete", plan.getDeleteSet());
+        JSONArray levels = new JSONArray();
+        for (List<String> level : plan.getDeleteLevels()) {
+            levels.put(new JSONArray(level));
+        }
+        json.put("deleteLevels", levels);
+        JSONArray waves = new JSONArray();
+        for (List<String> wave : graph.getWaves()) {
+            waves.put(new JSONArray(wave));
+        }
+        json.put("waves", waves);
+        JSONObject missing = new JSONObject();
+        for (Map.Entry<String, List<CmsModuleDependency>> e : graph.getMissing().entrySet()) {
+            JSONArray dependencies = new JSONArray();
+            for (CmsModuleDependency dependency : e.getValue()) {
+                dependencies.put(dependency.getName() + " " + dependency.getVersion());
+            }
+            missing.put(e.getKey(), dependencies);
+        }
+        json.put("missing", missing);
+        json.put("cycles", graph.getCycles());
+        json.put("blocked", graph.getBlocked());
+        JSONArray modules = new JSONArray();
+        for (CmsModuleImportPlan.Entry entry : plan.getEntries()) {
+            JSONObject module = new JSONObject();
+            module.put("name", entry.getName());
+            module.put("file", entry.getFileName());
+            module.put("version", entry.getVersion());
+            if (entry.getInstalledVersion() != null) {
+                module.put("installed", entry.getInstalledVersion());
+            }
+            module.put("action", entry.getAction());
+            module.put("bytes", entry.getSize());
+            module.put("resources", entry.getResources());
+            module.put("resourceBytes", entry.getExpandedSize());
+            modules.put(module);
+        }
+        json.put("modules", modules);
+        return json;
+    }
+
+    /**
+     * @return the import thread of a job id; the id of a thread started in the workplace is accepted too
+     */
+    private static CmsModuleMultiImportThread getJob(final String job) {
+        if ((job == null) || !CmsUUID.isValidUUID(job)) {
+            throw new IllegalArgumentException("Invalid job: " + job);
+        }
+        CmsModuleImportJob registered = CmsModuleImportJobRegistry.getInstance().getJob(job);
+        CmsUUID threadId = registered == null ? new CmsUUID(job) : registered.getThreadId();
+        A_CmsReportThread thread = threadId == null ? null : OpenCms.getThreadStore().retrieveThread(threadId);
+        if (!(thread instanceof CmsModuleMultiImportThread)) {
+            throw new IllegalArgumentException("Unknown job: " + job);
+        }
+        return (CmsModuleMultiImportThread) thread;
+    }
+}
@@ -0,0 +1,110 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencms.main.CmsSystemInfo;
+import org.opencms.main.OpenCms;
+
+/**
+ * Server side registry of the {@link CmsModuleImportJob import jobs}.
+ * <p>
+ * The upload dialogs register a job with the module files of the bundle and keep only its id in the
+ * HTTP session (see {@link #SESSION_ATT_NAME_JOB}), so a replicated session does not carry the
+ * modules. Jobs are kept for {@link #JOB_MAX_AGE} milliseconds after they are registered, long
+ * enough to start them and follow their progress.
+ * <p>
+ * The registry lives in the memory of each server: with several servers, the requests of a session
+ * must go to the server that registered its job.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportJobRegistry {
+
+    /**
+     * Name of the session attribute with the id of the job of the last uploaded bundle.
+     */
+    public static final String SESSION_ATT_NAME_JOB = "multiImportJob";
+
+    /**
+     * Milliseconds a job is kept after it is registered.
+     */
+    public static final long JOB_MAX_AGE = 24L * 60 * 60 * 1000;
+
+    /**
+     * The instance.
+     */
+    private static final CmsModuleImportJobRegistry INSTANCE = new CmsModuleImportJobRegistry();
+
+    /**
+     * Job id -> job, oldest first.
+     */
+    private final Map<String, CmsModuleImportJob> jobs = new LinkedHashMap<String, CmsModuleImportJob>();
+
+    /**
+     * @return the registry
+     */
+    public static CmsModuleImportJobRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a job for module files of the server modules folder.
+     *
+     * @param fileNames names of the module files
+     * @return the job
+     */
+    public CmsModuleImportJob register(final List<String> fileNames) {
+        CmsModuleImportJob job = new CmsModuleImportJob(getModulesFolder(), fileNames);
+        synchronized (jobs) {
+            removeExpired();
+            jobs.put(job.getId(), job);
+        }
+        return job;
+    }
+
+    /**
+     * @param id the job id, may be <code>null</code>
+     * @return the job, <code>null</code> if there is no such job or it expired
+     */
+    public CmsModuleImportJob getJob(final String id) {
+        if (id == null) {
+            return null;
+        }
+        synchronized (jobs) {
+            removeExpired();
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * Removes the jobs older than {@link #JOB_MAX_AGE}.
+     */
+    private void removeExpired() {
+        long oldest = System.currentTimeMillis() - JOB_MAX_AGE;
+        for (Iterator<CmsModuleImportJob> it = jobs.values().iterator(); it.hasNext();) {
+            if (it.next().getCreated() >= oldest) {
+                // the jobs are in the order they were registered
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the server modules folder
+     */
+    private static File getModulesFolder() {
+        return new File(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator
+                + CmsSystemInfo.FOLDER_MODULES);
+    }
+
+    private CmsModuleImportJobRegistry() {
+    }
+}
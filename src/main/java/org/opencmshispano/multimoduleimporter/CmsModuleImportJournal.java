@@ -0,0 +1,185 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+
+/**
+ * Journal of a running {@link CmsModuleMultiImportThread}: the plan of the import and the status of
+ * every module, as of the last checkpoint.
+ * <p>
+ * The journal is written once when the import is planned, with the modules it is going to delete
+ * and import, and once more only if the import thread dies. Every write goes to a temporary file
+ * that replaces the journal, so a crash leaves either the previous or the new checkpoint. The
+ * journal is deleted when the import ends; a journal left behind belongs to an import that was
+ * interrupted, and the next import reports its unfinished modules (see
+ * {@link #recover(File, Collection)}).
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportJournal {
+
+    /**
+     * Folder of the journals, in the modules folder.
+     */
+    public static final String FOLDER = ".journal";
+
+    /**
+     * Extension of a journal.
+     */
+    private static final String EXTENSION = ".journal";
+
+    /**
+     * Extension of a journal already reported as interrupted.
+     */
+    private static final String EXTENSION_INTERRUPTED = ".interrupted";
+
+    /**
+     * Key of the phase in the journal.
+     */
+    private static final String KEY_PHASE = "#phase";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleImportJournal.class);
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * @param modulesFolder the modules folder
+     * @param job           id of the import job
+     */
+    public CmsModuleImportJournal(final File modulesFolder, final String job) {
+        this.file = new File(new File(modulesFolder, FOLDER), job + EXTENSION);
+    }
+
+    /**
+     * Writes a checkpoint.
+     *
+     * @param phase    the phase of the import (see {@link CmsModuleImportProgress#getPhase()})
+     * @param statuses module name -> status
+     */
+    public synchronized void checkpoint(final String phase, final Map<String, String> statuses) {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                writer.write(KEY_PHASE + '\t' + phase + '\n');
+                for (Map.Entry<String, String> e : statuses.entrySet()) {
+                    writer.write(e.getKey() + '\t' + e.getValue() + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+            // renameTo does not replace an existing file on every platform
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            // the import goes on, only without a way to tell how far it got if it is interrupted
+            LOG.error("Cannot write import journal " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes the journal of an import that ended.
+     */
+    public synchronized void delete() {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Cannot delete import journal " + file);
+        }
+    }
+
+    /**
+     * Finds the journals of interrupted imports and marks them as reported.
+     *
+     * @param modulesFolder the modules folder
+     * @param runningJobs   ids of the jobs that are still queued or running
+     * @return job id -> (module name -> status) of the modules the interrupted imports did not finish
+     */
+    public static synchronized Map<String, Map<String, String>> recover(final File modulesFolder,
+            final Collection<String> runningJobs) {
+        Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+        File[] journals = new File(modulesFolder, FOLDER).listFiles();
+        if (journals == null) {
+            return result;
+        }
+        for (File journal : journals) {
+            String name = journal.getName();
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            String job = name.substring(0, name.length() - EXTENSION.length());
+            if (runningJobs.contains(job)) {
+                continue;
+            }
+            try {
+                Map<String, String> unfinished = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, String> e : read(journal).entrySet()) {
+                    if (!e.getKey().equals(KEY_PHASE) && !isFinal(e.getValue())) {
+                        unfinished.put(e.getKey(), e.getValue());
+                    }
+                }
+                result.put(job, unfinished);
+            } catch (IOException e) {
+                LOG.error("Cannot read import journal " + journal + ": " + e.getMessage(), e);
+            }
+            // kept for the administrators, but reported only once
+            File reported = new File(journal.getParentFile(), job + EXTENSION_INTERRUPTED);
+            if (!journal.renameTo(reported)) {
+                LOG.warn("Cannot rename import journal " + journal + " to " + reported);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return key -> value of every line of a journal
+     */
+    private static Map<String, String> read(final File journal) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    entries.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @return <code>true</code> if nothing was left to do for a module with this status
+     */
+    private static boolean isFinal(final String status) {
+        return CmsModuleImportProgress.STATUS_IMPORTED.equals(status)
+                || CmsModuleImportProgress.STATUS_UNCHANGED.equals(status)
+                || CmsModuleImportProgress.STATUS_SKIPPED.equals(status)
+                || CmsModuleImportProgress.STATUS_FAILED.equals(status);
+    }
+}
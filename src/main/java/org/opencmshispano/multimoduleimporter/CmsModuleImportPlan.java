@@ -0,0 +1,496 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleManager;
+import org.opencmshispano.multimoduleimporter.util.ZipDirectory;
+
+/**
+ * Plan of a multi-module import, computed from the parsed module files before anything is deleted
+ * or imported.
+ * <p>
+ * The plan tells, for every module of the bundle, whether it is installed, replaced, updated in
+ * place (see {@link CmsModuleDeltaImporter}), left out because it is unchanged (see
+ * {@link CmsModuleFingerprints}) or skipped because of its dependencies, together with the size of
+ * its file and the number and size of the resources it holds. It also has the installed modules
+ * that are deleted first, in delete order, and the import order grouped in dependency waves (see
+ * {@link CmsModuleDependencyGraph}).
+ * <p>
+ * Planning only reads the manifests already in the {@link CmsModuleMetadataIndex}, the central
+ * directory of the module zips and the module configuration held in memory by OpenCms: the VFS is
+ * never touched, so the plan can be shown for every upload. The {@link CmsModuleImportJob} keeps the
+ * plan and the import thread uses it as long as it is still {@link #isCurrent current}.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportPlan {
+
+    /**
+     * What the import does with a module.
+     */
+    public static final class Entry {
+
+        /**
+         * The descriptor of the module file.
+         */
+        private final CmsModuleDescriptor descriptor;
+
+        /**
+         * Version of the installed module, <code>null</code> if it is not installed.
+         */
+        private final String installedVersion;
+
+        /**
+         * One of the <code>ACTION_*</code> constants.
+         */
+        private final String action;
+
+        /**
+         * Number of resources in the module file, <code>-1</code> if unknown.
+         */
+        private final int resources;
+
+        /**
+         * Size of the resources in the module file, <code>-1</code> if unknown.
+         */
+        private final long expandedSize;
+
+        Entry(final CmsModuleDescriptor descriptor, final String installedVersion, final String action,
+                final int resources, final long expandedSize) {
+            this.descriptor = descriptor;
+            this.installedVersion = installedVersion;
+            this.action = action;
+            this.resources = resources;
+            this.expandedSize = expandedSize;
+        }
+
+        /**
+         * @return the module name
+         */
+        public String getName() {
+            return descriptor.getName();
+        }
+
+        /**
+         * @return the name of the module file
+         */
+        public String getFileName() {
+            return descriptor.getFileName();
+        }
+
+        /**
+         * @return the version of the module file
+         */
+        public String getVersion() {
+            return descriptor.getVersion();
+        }
+
+        /**
+         * @return the version of the installed module, <code>null</code> if it is not installed
+         */
+        public String getInstalledVersion() {
+            return installedVersion;
+        }
+
+        /**
+         * @return what the import does with the module, one of the <code>ACTION_*</code> constants
+         */
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * @return the size of the module file
+         */
+        public long getSize() {
+            return descriptor.getSize();
+        }
+
+        /**
+         * @return the number of resources in the module file, <code>-1</code> if unknown
+         */
+        public int getResources() {
+            return resources;
+        }
+
+        /**
+         * @return the size of the resources in the module file, <code>-1</code> if unknown
+         */
+        public long getExpandedSize() {
+            return expandedSize;
+        }
+    }
+
+    /**
+     * The module is not installed and is imported.
+     */
+    public static final String ACTION_INSTALL = "install";
+
+    /**
+     * The installed module is deleted and imported again.
+     */
+    public static final String ACTION_REPLACE = "replace";
+
+    /**
+     * The installed module is updated resource by resource.
+     */
+    public static final String ACTION_UPDATE = "update";
+
+    /**
+     * The module is installed from an identical file and is left out.
+     */
+    public static final String ACTION_UNCHANGED = "unchanged";
+
+    /**
+     * The module cannot be imported because of its dependencies.
+     */
+    public static final String ACTION_SKIP = "skip";
+
+    /**
+     * Name of the manifest in a module file; not a resource of the module.
+     */
+    private static final String MANIFEST = "manifest.xml";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleImportPlan.class);
+
+    /**
+     * The folder of the module files.
+     */
+    private final File folder;
+
+    /**
+     * Filename -> module, of every module of the bundle.
+     */
+    private final Map<String, CmsModule> modules;
+
+    /**
+     * If unchanged modules are left out.
+     */
+    private final boolean skipUnchanged;
+
+    /**
+     * If installed modules are updated resource by resource.
+     */
+    private final boolean deltaImport;
+
+    /**
+     * Module name -> what is done with it: the modules imported in import order, then the others.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Installed module name -> version, when the plan was computed.
+     */
+    private final Map<String, String> installed = new TreeMap<String, String>();
+
+    /**
+     * The dependency graph of the modules that changed.
+     */
+    private CmsModuleDependencyGraph graph;
+
+    /**
+     * Names of the installed modules that are updated resource by resource.
+     */
+    private final Set<String> deltaModules = new HashSet<String>();
+
+    /**
+     * Names of the installed modules deleted before their import.
+     */
+    private final List<String> deleteSet = new ArrayList<String>();
+
+    /**
+     * When the plan was computed.
+     */
+    private final long created;
+
+    /**
+     * @param folder        the folder of the module files
+     * @param modules       filename -> module of every module of the bundle
+     * @param skipUnchanged if unchanged modules are left out
+     * @param deltaImport   if installed modules are updated resource by resource
+     */
+    private CmsModuleImportPlan(final File folder, final Map<String, CmsModule> modules,
+            final boolean skipUnchanged, final boolean deltaImport) {
+        this.folder = folder;
+        this.modules = Collections.unmodifiableMap(new LinkedHashMap<String, CmsModule>(modules));
+        this.skipUnchanged = skipUnchanged;
+        this.deltaImport = deltaImport;
+        this.created = System.currentTimeMillis();
+    }
+
+    /**
+     * Plans an import.
+     *
+     * @param folder        the folder of the module files
+     * @param modules       filename -> module of every module of the bundle; only the header of the
+     *                      manifest is needed
+     * @param moduleManager the module manager, to check the installed modules
+     * @param skipUnchanged if unchanged modules are left out (see {@link CmsModuleImportSettings#isSkipUnchanged()})
+     * @param deltaImport   if installed modules are updated resource by resource (see
+     *                      {@link CmsModuleImportSettings#isDeltaImport()})
+     * @return the plan
+     */
+    public static CmsModuleImportPlan create(final File folder, final Map<String, CmsModule> modules,
+            final CmsModuleManager moduleManager, final boolean skipUnchanged, final boolean deltaImport) {
+        CmsModuleImportPlan plan = new CmsModuleImportPlan(folder, modules, skipUnchanged, deltaImport);
+        plan.plan(moduleManager);
+        return plan;
+    }
+
+    /**
+     * Computes the plan.
+     */
+    private void plan(final CmsModuleManager moduleManager) {
+        for (String name : moduleManager.getModuleNames()) {
+            CmsModule module = moduleManager.getModule(name);
+            if (module != null) {
+                installed.put(name, module.getVersion().toString());
+            }
+        }
+        CmsModuleMetadataIndex index = CmsModuleMetadataIndex.getInstance(folder);
+        CmsModuleFingerprints fingerprints = CmsModuleFingerprints.getInstance(folder);
+        Map<String, CmsModuleDescriptor> descriptors = new HashMap<String, CmsModuleDescriptor>();
+        Map<String, CmsModule> changed = new LinkedHashMap<String, CmsModule>();
+        List<Entry> unchanged = new ArrayList<Entry>();
+        for (Map.Entry<String, CmsModule> e : modules.entrySet()) {
+            String name = e.getValue().getName();
+            CmsModuleDescriptor descriptor = index.getDescriptor(new File(folder, e.getKey()));
+            descriptors.put(name, descriptor);
+            if (skipUnchanged && fingerprints.isUnchanged(moduleManager.getModule(name), descriptor)) {
+                unchanged.add(createEntry(descriptor, ACTION_UNCHANGED));
+            } else {
+                changed.put(e.getKey(), e.getValue());
+            }
+        }
+        graph = new CmsModuleDependencyGraph(changed.values(), moduleManager);
+        for (String name : graph.getOrder()) {
+            CmsModuleDescriptor descriptor = descriptors.get(name);
+            String action = ACTION_INSTALL;
+            if (installed.containsKey(name)) {
+                // module folders are always replaced
+                if (deltaImport && new File(folder, descriptor.getFileName()).isFile()) {
+                    action = ACTION_UPDATE;
+                    deltaModules.add(name);
+                } else {
+                    action = ACTION_REPLACE;
+                    deleteSet.add(name);
+                }
+            }
+            entries.put(name, createEntry(descriptor, action));
+        }
+        for (Entry entry : unchanged) {
+            entries.put(entry.getName(), entry);
+        }
+        for (CmsModule module : changed.values()) {
+            if (!entries.containsKey(module.getName())) {
+                entries.put(module.getName(), createEntry(descriptors.get(module.getName()), ACTION_SKIP));
+            }
+        }
+    }
+
+    /**
+     * @return the entry of a module, with the resources counted in the module file
+     */
+    private Entry createEntry(final CmsModuleDescriptor descriptor, final String action) {
+        File file = new File(folder, descriptor.getFileName());
+        int[] resources = new int[1];
+        long[] expandedSize = new long[1];
+        try {
+            if (file.isDirectory()) {
+                countFolder(file, resources, expandedSize);
+            } else {
+                countZip(file, resources, expandedSize);
+            }
+        } catch (IOException e) {
+            // the plan is shown anyway; the import reports the broken file
+            LOG.warn("Cannot read the resources of module file " + file + ": " + e.getMessage(), e);
+            resources[0] = -1;
+            expandedSize[0] = -1;
+        }
+        return new Entry(descriptor, installed.get(descriptor.getName()), action, resources[0], expandedSize[0]);
+    }
+
+    /**
+     * Counts the resources of a module zip, from its central directory.
+     */
+    private static void countZip(final File file, final int[] resources, final long[] expandedSize)
+            throws IOException {
+        ZipDirectory zip = ZipDirectory.open(file);
+        try {
+            for (ZipDirectory.Entry entry : zip.getEntries()) {
+                if (!entry.getName().equals(MANIFEST)) {
+                    resources[0]++;
+                    expandedSize[0] += entry.getSize();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Counts the resources of a module folder.
+     */
+    private static void countFolder(final File root, final int[] resources, final long[] expandedSize) {
+        LinkedList<File> pending = new LinkedList<File>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            File[] children = pending.removeFirst().listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    pending.add(child);
+                } else if (child.getParentFile().equals(root) && child.getName().equals(MANIFEST)) {
+                    continue;
+                } else {
+                    expandedSize[0] += child.length();
+                }
+                resources[0]++;
+            }
+        }
+    }
+
+    /**
+     * Checks that nothing the plan was computed from changed: the installed modules, the module files
+     * and the settings.
+     *
+     * @param moduleManager the module manager
+     * @param skipUnchanged if unchanged modules are left out now
+     * @param deltaImport   if installed modules are updated resource by resource now
+     * @return <code>true</code> if planning again would give the same plan
+     */
+    public boolean isCurrent(final CmsModuleManager moduleManager, final boolean skipUnchanged,
+            final boolean deltaImport) {
+        if ((skipUnchanged != this.skipUnchanged) || (deltaImport != this.deltaImport)) {
+            return false;
+        }
+        Set<String> names = moduleManager.getModuleNames();
+        if (names.size() != installed.size()) {
+            return false;
+        }
+        for (String name : names) {
+            CmsModule module = moduleManager.getModule(name);
+            if ((module == null) || !module.getVersion().toString().equals(installed.get(name))) {
+                return false;
+            }
+        }
+        CmsModuleFingerprints fingerprints = CmsModuleFingerprints.getInstance(folder);
+        for (Entry entry : entries.values()) {
+            File file = new File(folder, entry.getFileName());
+            if ((file.lastModified() != entry.descriptor.getLastModified())
+                    || (!file.isDirectory() && (file.length() != entry.getSize()))) {
+                return false;
+            }
+            // the same version may have been imported again from another file
+            if (skipUnchanged && (ACTION_UNCHANGED.equals(entry.getAction()) != fingerprints.isUnchanged(
+                    moduleManager.getModule(entry.getName()), entry.descriptor))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return filename -> module, of every module of the bundle
+     */
+    public Map<String, CmsModule> getModules() {
+        return modules;
+    }
+
+    /**
+     * @return what is done with every module: the modules imported in import order, then the unchanged
+     * modules and the modules skipped
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    /**
+     * @param name a module name
+     * @return what is done with the module, <code>null</code> if it is not in the bundle
+     */
+    public Entry getEntry(final String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return the dependency graph of the modules that changed: the import order and waves, and the
+     * dependency problems
+     */
+    public CmsModuleDependencyGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return the names of the installed modules that are updated resource by resource
+     */
+    public Set<String> getDeltaModules() {
+        return Collections.unmodifiableSet(deltaModules);
+    }
+
+    /**
+     * @return the names of the installed modules that are deleted before their import
+     */
+    public List<String> getDeleteSet() {
+        return Collections.unmodifiableList(deleteSet);
+    }
+
+    /**
+     * @return the installed modules that are deleted before their import, in delete order (see
+     * {@link CmsModuleDependencyGraph#getDeleteLevels(java.util.Collection)})
+     */
+    public List<List<String>> getDeleteLevels() {
+        return graph.getDeleteLevels(deleteSet);
+    }
+
+    /**
+     * @return the size of the files of the modules imported
+     */
+    public long getSize() {
+        long size = 0;
+        for (String name : graph.getOrder()) {
+            size += entries.get(name).getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of resources of the modules imported, not counting the unknown ones
+     */
+    public int getResources() {
+        int resources = 0;
+        for (String name : graph.getOrder()) {
+            resources += Math.max(0, entries.get(name).getResources());
+        }
+        return resources;
+    }
+
+    /**
+     * @return when the plan was computed
+     */
+    public long getCreated() {
+        return created;
+    }
+}
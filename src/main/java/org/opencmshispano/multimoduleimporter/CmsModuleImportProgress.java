@@ -0,0 +1,332 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Structured progress of a {@link CmsModuleMultiImportThread}, for clients that do not read the
+ * HTML report.
+ * <p>
+ * Every change is recorded as an {@link Event} with a sequence number. A client keeps the cursor
+ * returned by {@link #getCursor()} and asks only for the events after it with
+ * {@link #getEvents(int)}, so polling often is cheap. The counters (phase, modules being processed,
+ * modules and bytes done) are kept as well, so a client that starts polling late does not need the
+ * whole history.
+ * <p>
+ * All methods are thread safe: modules of the same wave are imported at the same time.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportProgress {
+
+    /** Phase: the job waits for other jobs of the same modules (see {@link CmsModuleImportScheduler}). */
+    public static final String PHASE_QUEUED = "queued";
+
+    /** Phase: the import is planned. */
+    public static final String PHASE_PLAN = "plan";
+
+    /** Phase: installed modules are deleted. */
+    public static final String PHASE_DELETE = "delete";
+
+    /** Phase: modules are imported (with the pipelined import, deleted too). */
+    public static final String PHASE_IMPORT = "import";
+
+    /** Phase: the job ended. */
+    public static final String PHASE_FINISHED = "finished";
+
+    /** Status: waiting. */
+    public static final String STATUS_PENDING = "pending";
+
+    /** Status: already installed from an identical file, not imported. */
+    public static final String STATUS_UNCHANGED = "unchanged";
+
+    /** Status: cannot be imported because of its dependencies. */
+    public static final String STATUS_SKIPPED = "skipped";
+
+    /** Status: the installed module is being deleted. */
+    public static final String STATUS_DELETING = "deleting";
+
+    /** Status: the installed module was deleted. */
+    public static final String STATUS_DELETED = "deleted";
+
+    /** Status: being imported. */
+    public static final String STATUS_IMPORTING = "importing";
+
+    /** Status: imported. */
+    public static final String STATUS_IMPORTED = "imported";
+
+    /** Status: the import failed. */
+    public static final String STATUS_FAILED = "failed";
+
+    /**
+     * A change of the phase or of the status of a module.
+     */
+    public static final class Event {
+
+        /**
+         * Sequence number, starting at 0.
+         */
+        private final int seq;
+
+        /**
+         * When it happened.
+         */
+        private final long time;
+
+        /**
+         * The phase.
+         */
+        private final String phase;
+
+        /**
+         * The module, <code>null</code> for a change of phase.
+         */
+        private final String module;
+
+        /**
+         * The new status of the module, <code>null</code> for a change of phase.
+         */
+        private final String status;
+
+        /**
+         * Why, if the status needs an explanation; otherwise <code>null</code>.
+         */
+        private final String message;
+
+        Event(final int seq, final String phase, final String module, final String status, final String message) {
+            this.seq = seq;
+            this.time = System.currentTimeMillis();
+            this.phase = phase;
+            this.module = module;
+            this.status = status;
+            this.message = message;
+        }
+
+        /**
+         * @return the sequence number, starting at 0
+         */
+        public int getSeq() {
+            return seq;
+        }
+
+        /**
+         * @return when it happened
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the phase
+         */
+        public String getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return the module, <code>null</code> for a change of phase
+         */
+        public String getModule() {
+            return module;
+        }
+
+        /**
+         * @return the new status of the module, <code>null</code> for a change of phase
+         */
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return why, if the status needs an explanation; otherwise <code>null</code>
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * All events, in order.
+     */
+    private final List<Event> events = new ArrayList<Event>();
+
+    /**
+     * Module name -> status.
+     */
+    private final Map<String, String> statuses = new TreeMap<String, String>();
+
+    /**
+     * Module name -> bytes of its file, of the modules to import.
+     */
+    private final Map<String, Long> sizes = new HashMap<String, Long>();
+
+    /**
+     * Modules being deleted or imported.
+     */
+    private final Set<String> current = new LinkedHashSet<String>();
+
+    /**
+     * The current phase.
+     */
+    private String phase = PHASE_PLAN;
+
+    /**
+     * Modules imported, failed or skipped.
+     */
+    private int done;
+
+    /**
+     * Bytes of the modules imported, failed or skipped.
+     */
+    private long bytesDone;
+
+    /**
+     * Bytes of all modules to import.
+     */
+    private long bytesTotal;
+
+    /**
+     * Adds a module to import.
+     *
+     * @param module name of the module
+     * @param bytes  size of its file
+     */
+    public synchronized void addModule(final String module, final long bytes) {
+        if (sizes.put(module, Long.valueOf(bytes)) == null) {
+            bytesTotal += bytes;
+        }
+        setStatus(module, STATUS_PENDING, null);
+    }
+
+    /**
+     * Starts a phase.
+     *
+     * @param phase the phase
+     */
+    public synchronized void setPhase(final String phase) {
+        if (!phase.equals(this.phase)) {
+            this.phase = phase;
+            events.add(new Event(events.size(), phase, null, null, null));
+        }
+    }
+
+    /**
+     * Changes the status of a module.
+     *
+     * @param module  name of the module
+     * @param status  the new status
+     * @param message why, if the status needs an explanation; otherwise <code>null</code>
+     */
+    public synchronized void setStatus(final String module, final String status, final String message) {
+        String previous = statuses.put(module, status);
+        if (STATUS_DELETING.equals(status) || STATUS_IMPORTING.equals(status)) {
+            current.add(module);
+        } else {
+            current.remove(module);
+        }
+        boolean finished = isFinished(status);
+        boolean wasFinished = isFinished(previous);
+        if (finished && !wasFinished && sizes.containsKey(module)) {
+            done++;
+            bytesDone += sizes.get(module).longValue();
+        }
+        events.add(new Event(events.size(), phase, module, status, message));
+    }
+
+    /**
+     * @return <code>true</code> if a module with this status is done: imported, failed or skipped
+     * because a module it depends on failed
+     */
+    private static boolean isFinished(final String status) {
+        return STATUS_IMPORTED.equals(status) || STATUS_FAILED.equals(status) || STATUS_SKIPPED.equals(status);
+    }
+
+    /**
+     * Ends the job.
+     */
+    public synchronized void finish() {
+        current.clear();
+        setPhase(PHASE_FINISHED);
+    }
+
+    /**
+     * @param cursor the cursor returned by an earlier {@link #getCursor()}, <code>0</code> for all events
+     * @return the events after the cursor
+     */
+    public synchronized List<Event> getEvents(final int cursor) {
+        int from = Math.max(0, Math.min(cursor, events.size()));
+        return new ArrayList<Event>(events.subList(from, events.size()));
+    }
+
+    /**
+     * @return the cursor after the last event
+     */
+    public synchronized int getCursor() {
+        return events.size();
+    }
+
+    /**
+     * @return the current phase
+     */
+    public synchronized String getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return <code>true</code> if the job ended
+     */
+    public synchronized boolean isFinished() {
+        return PHASE_FINISHED.equals(phase);
+    }
+
+    /**
+     * @return the modules being deleted or imported
+     */
+    public synchronized List<String> getCurrent() {
+        return new ArrayList<String>(current);
+    }
+
+    /**
+     * @return the number of modules imported, failed or skipped
+     */
+    public synchronized int getDone() {
+        return done;
+    }
+
+    /**
+     * @return the number of modules to import
+     */
+    public synchronized int getTotal() {
+        return sizes.size();
+    }
+
+    /**
+     * @return the bytes of the module files imported, failed or skipped
+     */
+    public synchronized long getBytesDone() {
+        return bytesDone;
+    }
+
+    /**
+     * @return the bytes of all module files to import
+     */
+    public synchronized long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    /**
+     * @return module name -> status, of every module of the job
+     */
+    public synchronized Map<String, String> getStatuses() {
+        return Collections.unmodifiableMap(new TreeMap<String, String>(statuses));
+    }
+}
@@ -0,0 +1,359 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+
+/**
+ * Queue of the multi-module imports of this server.
+ * <p>
+ * Every {@link CmsModuleMultiImportThread} takes a {@link Ticket} with the names of the modules it
+ * locks (see {@link #getLocks(Collection, Collection)}) and waits until it is admitted before it
+ * deletes or imports anything. A job is admitted when:
+ * <ul>
+ * <li>fewer than {@link CmsModuleImportSettings#getConcurrentJobs()} jobs are running;</li>
+ * <li>no running job locks any of its modules: a module is only handled by one job at a time;</li>
+ * <li>no job queued before it locks any of its modules, so a job is never overtaken by a later job of
+ * the same modules;</li>
+ * <li>the free places are taken first by the jobs queued before it.</li>
+ * </ul>
+ * Jobs with disjoint locks run at the same time; jobs with common locks run one after another, in
+ * the order they were queued.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportScheduler {
+
+    /**
+     * A job in the queue.
+     */
+    public static final class Ticket {
+
+        /**
+         * The job.
+         */
+        private final String job;
+
+        /**
+         * The user that started the job.
+         */
+        private final String user;
+
+        /**
+         * Names of the modules of the job.
+         */
+        private final Set<String> modules;
+
+        /**
+         * Names of the modules the job locks: its modules and those related to them.
+         */
+        private final Set<String> locks;
+
+        /**
+         * When the job was queued.
+         */
+        private final long queued;
+
+        /**
+         * When the job was admitted, <code>0</code> while it waits.
+         */
+        private volatile long started;
+
+        Ticket(final String job, final String user, final Collection<String> modules,
+                final Collection<String> locks) {
+            this.job = job;
+            this.user = user;
+            this.modules = Collections.unmodifiableSet(new HashSet<String>(modules));
+            Set<String> all = new HashSet<String>(modules);
+            all.addAll(locks);
+            this.locks = Collections.unmodifiableSet(all);
+            this.queued = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the job
+         */
+        public String getJob() {
+            return job;
+        }
+
+        /**
+         * @return the user that started the job
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * @return the names of the modules of the job
+         */
+        public Set<String> getModules() {
+            return modules;
+        }
+
+        /**
+         * @return the names of the modules the job locks, its own modules included
+         */
+        public Set<String> getLocks() {
+            return locks;
+        }
+
+        /**
+         * @return when the job was queued
+         */
+        public long getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return <code>true</code> if the job was admitted
+         */
+        public boolean isStarted() {
+            return started != 0;
+        }
+
+        /**
+         * @return milliseconds the job waited, or has been waiting so far
+         */
+        public long getWaitTime() {
+            long end = started;
+            return (end == 0 ? System.currentTimeMillis() : end) - queued;
+        }
+
+        /**
+         * @param other another ticket
+         * @return <code>true</code> if both jobs lock a module in common
+         */
+        boolean overlaps(final Ticket other) {
+            for (String module : other.locks) {
+                if (locks.contains(module)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The instance.
+     */
+    private static final CmsModuleImportScheduler INSTANCE = new CmsModuleImportScheduler();
+
+    /**
+     * The running jobs.
+     */
+    private final List<Ticket> running = new ArrayList<Ticket>();
+
+    /**
+     * The waiting jobs, in the order they were queued.
+     */
+    private final List<Ticket> waiting = new ArrayList<Ticket>();
+
+    /**
+     * @return the scheduler
+     */
+    public static CmsModuleImportScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the names of the modules a job locks:
+     * <ul>
+     * <li>the modules it deletes or imports;</li>
+     * <li>the modules they depend on, which must not be deleted or replaced while they are imported;</li>
+     * <li>the installed modules that depend on the modules it replaces, which must not be imported
+     * while their dependencies are deleted.</li>
+     * </ul>
+     *
+     * @param modules   the modules the job imports, replacing the installed modules of the same name
+     * @param installed the installed modules
+     * @return the names of the modules
+     */
+    public static Set<String> getLocks(final Collection<CmsModule> modules, final Collection<CmsModule> installed) {
+        Set<String> locks = new HashSet<String>();
+        for (CmsModule module : modules) {
+            locks.add(module.getName());
+            for (CmsModuleDependency dependency : module.getDependencies()) {
+                locks.add(dependency.getName());
+            }
+        }
+        Set<String> replaced = new HashSet<String>();
+        for (CmsModule module : modules) {
+            replaced.add(module.getName());
+        }
+        for (CmsModule module : installed) {
+            for (CmsModuleDependency dependency : module.getDependencies()) {
+                if (replaced.contains(dependency.getName())) {
+                    locks.add(module.getName());
+                    break;
+                }
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Queues a job that only locks its own modules.
+     *
+     * @param job     id of the job
+     * @param user    the user that started the job
+     * @param modules names of the modules the job deletes or imports
+     * @return the ticket of the job, to {@link #await(Ticket)} and {@link #release(Ticket)}
+     */
+    public Ticket enqueue(final String job, final String user, final Collection<String> modules) {
+        return enqueue(job, user, modules, modules);
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @param job     id of the job
+     * @param user    the user that started the job
+     * @param modules names of the modules the job deletes or imports
+     * @param locks   names of the modules the job locks (see {@link #getLocks(Collection, Collection)})
+     * @return the ticket of the job, to {@link #await(Ticket)} and {@link #release(Ticket)}
+     */
+    public synchronized Ticket enqueue(final String job, final String user, final Collection<String> modules,
+            final Collection<String> locks) {
+        Ticket ticket = new Ticket(job, user, modules, locks);
+        waiting.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Waits until a queued job is admitted.
+     *
+     * @param ticket the ticket of the job
+     * @throws InterruptedException if the thread is interrupted while waiting; the job leaves the queue
+     */
+    public synchronized void await(final Ticket ticket) throws InterruptedException {
+        try {
+            while (!canStart(ticket)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        waiting.remove(ticket);
+        running.add(ticket);
+        ticket.started = System.currentTimeMillis();
+        // a job behind this one may be admitted too if its modules are disjoint
+        notifyAll();
+    }
+
+    /**
+     * Ends a job, admitted or not.
+     *
+     * @param ticket the ticket of the job
+     */
+    public synchronized void release(final Ticket ticket) {
+        if (!running.remove(ticket)) {
+            waiting.remove(ticket);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @param ticket the ticket of a waiting job
+     * @return <code>true</code> if it would be admitted right now
+     */
+    public synchronized boolean isReady(final Ticket ticket) {
+        return canStart(ticket);
+    }
+
+    /**
+     * @param ticket the ticket of a waiting job
+     * @return the jobs it is waiting for: running or queued before it with common locks
+     */
+    public synchronized List<Ticket> getBlockers(final Ticket ticket) {
+        List<Ticket> blockers = new ArrayList<Ticket>();
+        for (Ticket other : running) {
+            if (ticket.overlaps(other)) {
+                blockers.add(other);
+            }
+        }
+        for (Ticket other : waiting) {
+            if (other == ticket) {
+                break;
+            }
+            if (ticket.overlaps(other)) {
+                blockers.add(other);
+            }
+        }
+        return blockers;
+    }
+
+    /**
+     * @param ticket the ticket of a job
+     * @return its position in the queue, starting at 1; <code>0</code> if it is not waiting
+     */
+    public synchronized int getPosition(final Ticket ticket) {
+        return waiting.indexOf(ticket) + 1;
+    }
+
+    /**
+     * @return the number of waiting jobs
+     */
+    public synchronized int getQueueDepth() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the waiting jobs, in the order they were queued
+     */
+    public synchronized List<Ticket> getWaiting() {
+        return new ArrayList<Ticket>(waiting);
+    }
+
+    /**
+     * @return the running jobs
+     */
+    public synchronized List<Ticket> getRunning() {
+        return new ArrayList<Ticket>(running);
+    }
+
+    /**
+     * @return <code>true</code> if a waiting job can be admitted now
+     */
+    private boolean canStart(final Ticket ticket) {
+        int slots = CmsModuleImportSettings.getConcurrentJobs() - running.size();
+        for (int i = 0; i < waiting.size(); i++) {
+            Ticket other = waiting.get(i);
+            boolean blocked = overlaps(other, running) || overlaps(other, waiting.subList(0, i));
+            if (other == ticket) {
+                return !blocked && (slots > 0);
+            }
+            if (!blocked) {
+                // a job queued before only waits for a free slot: it gets it first
+                slots--;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if a job locks a module in common with any of the others
+     */
+    private static boolean overlaps(final Ticket ticket, final List<Ticket> others) {
+        for (Ticket other : others) {
+            if (ticket.overlaps(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CmsModuleImportScheduler() {
+    }
+}
@@ -0,0 +1,235 @@
+package org.opencmshispano.multimoduleimporter;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleManager;
+
+/**
+ * Settings of the multi-module importer, read from the parameters of its own module.
+ * <p>
+ * The parameters are edited in the module management of the workplace, so they can be changed
+ * without a restart.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleImportSettings {
+
+    /**
+     * Name of this module.
+     */
+    public static final String MODULE_NAME = "org.opencmshispano.multimoduleimporter";
+
+    /**
+     * Parameter with the number of modules of the same dependency level imported at the same time.
+     */
+    public static final String PARAM_IMPORT_THREADS = "import.threads";
+
+    /**
+     * Parameter with the number of modules of the same dependency level deleted at the same time.
+     */
+    public static final String PARAM_DELETE_THREADS = "delete.threads";
+
+    /**
+     * Parameter that, when <code>true</code>, leaves alone the modules already installed from an
+     * identical module file.
+     */
+    public static final String PARAM_SKIP_UNCHANGED = "import.skipUnchanged";
+
+    /**
+     * Parameter that, when <code>true</code>, updates installed modules importing only the resources
+     * that changed instead of deleting and importing the whole module.
+     */
+    public static final String PARAM_DELTA = "import.delta";
+
+    /**
+     * Parameter that, when <code>true</code>, imports every module as soon as it has been deleted,
+     * instead of waiting until all modules are deleted.
+     */
+    public static final String PARAM_PIPELINED = "import.pipelined";
+
+    /**
+     * Parameter with the seconds between two rescans of the server modules folder.
+     */
+    public static final String PARAM_INDEX_RESCAN = "index.rescanInterval";
+
+    /**
+     * Parameter with the number of report lines kept in memory by every import.
+     */
+    public static final String PARAM_REPORT_LINES = "report.lines";
+
+    /**
+     * Parameter with the number of import jobs of different modules that may run at the same time.
+     */
+    public static final String PARAM_CONCURRENT_JOBS = "jobs.concurrent";
+
+    /**
+     * Parameter to hold back the search index updates until the whole batch is imported.
+     */
+    public static final String PARAM_BATCH_MODE = "import.batchMode";
+
+    /**
+     * Parameter that, when <code>true</code>, rebuilds the search indexes of the modules after a batch
+     * instead of updating them with the resources published by the batch.
+     */
+    public static final String PARAM_BATCH_REBUILD_INDEXES = "import.batchRebuildIndexes";
+
+    /**
+     * Parameter with the number of times a module import is tried again after a retryable failure.
+     */
+    public static final String PARAM_RETRIES = "import.retries";
+
+    /**
+     * Parameter that, when <code>true</code>, fails a module that is still installed after its delete,
+     * and skips the modules that depend on it.
+     */
+    public static final String PARAM_FAIL_STILL_INSTALLED = "import.failStillInstalled";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleImportSettings.class);
+
+    /**
+     * @return the number of modules imported at the same time; <code>1</code> (the default) imports
+     * the modules one after another
+     */
+    public static int getImportThreads() {
+        return Math.max(1, getInt(PARAM_IMPORT_THREADS, 1));
+    }
+
+    /**
+     * @return the number of modules whose resources are deleted at the same time; <code>1</code> (the
+     * default) deletes them one after another
+     */
+    public static int getDeleteThreads() {
+        return Math.max(1, getInt(PARAM_DELETE_THREADS, 1));
+    }
+
+    /**
+     * @return <code>true</code> if modules whose version and checksum match the installed module are
+     * not deleted and imported again; <code>false</code> (the default) replaces every module
+     */
+    public static boolean isSkipUnchanged() {
+        return getBoolean(PARAM_SKIP_UNCHANGED);
+    }
+
+    /**
+     * @return <code>true</code> if installed modules are updated resource by resource (see
+     * {@link CmsModuleDeltaImporter}); <code>false</code> (the default) replaces them
+     */
+    public static boolean isDeltaImport() {
+        return getBoolean(PARAM_DELTA);
+    }
+
+    /**
+     * @return <code>true</code> if deletes and imports overlap; <code>false</code> (the default)
+     * deletes all modules before the first import
+     */
+    public static boolean isPipelined() {
+        return getBoolean(PARAM_PIPELINED);
+    }
+
+    /**
+     * @return milliseconds between two rescans of the server modules folder (see
+     * {@link CmsModuleMetadataIndex#watch(long)}), <code>60</code> seconds by default;
+     * <code>0</code> rescans it every time the modules are listed
+     */
+    public static long getIndexRescanInterval() {
+        return Math.max(0, getInt(PARAM_INDEX_RESCAN, 60)) * 1000L;
+    }
+
+    /**
+     * @return the number of report lines kept in memory by every import (see
+     * {@link CmsModuleReportSink}), <code>2000</code> by default
+     */
+    public static int getReportLines() {
+        return Math.max(1, getInt(PARAM_REPORT_LINES, 2000));
+    }
+
+    /**
+     * @return the number of import jobs that may run at the same time, <code>2</code> by default;
+     * jobs with modules in common never run at the same time (see {@link CmsModuleImportScheduler})
+     */
+    public static int getConcurrentJobs() {
+        return Math.max(1, getInt(PARAM_CONCURRENT_JOBS, 2));
+    }
+
+    /**
+     * @return <code>true</code> if the search indexes are updated once after the whole batch (see
+     * {@link CmsModuleBatchMode}); <code>false</code> (the default) updates them after every module
+     */
+    public static boolean isBatchMode() {
+        return getBoolean(PARAM_BATCH_MODE);
+    }
+
+    /**
+     * @return <code>true</code> if the search indexes that overlap the modules are rebuilt after a
+     * batch; <code>false</code> (the default) updates them once with the resources published by it
+     */
+    public static boolean isBatchRebuildIndexes() {
+        return getBoolean(PARAM_BATCH_REBUILD_INDEXES);
+    }
+
+    /**
+     * @return the number of times a module import is tried again after a retryable failure (see
+     * {@link CmsModuleImportFailure}), <code>1</code> by default
+     */
+    public static int getRetries() {
+        return Math.max(0, getInt(PARAM_RETRIES, 1));
+    }
+
+    /**
+     * @return <code>true</code> if a module still installed after its delete fails the import;
+     * <code>false</code> (the default) only warns and skips it, keeping the installed version
+     */
+    public static boolean isFailStillInstalled() {
+        return getBoolean(PARAM_FAIL_STILL_INSTALLED);
+    }
+
+    /**
+     * @param name name of the parameter
+     * @return the value of a boolean parameter of this module, <code>false</code> if not set
+     */
+    static boolean getBoolean(final String name) {
+        String value = getParameter(name);
+        return (value != null) && Boolean.valueOf(value.trim()).booleanValue();
+    }
+
+    /**
+     * @param name         name of the parameter
+     * @param defaultValue value if the parameter is not set or not a number
+     * @return the value of an integer parameter of this module
+     */
+    static int getInt(final String name, final int defaultValue) {
+        String value = getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn(String.format("Invalid value \"%s\" of module parameter %s, using %d", value, name,
+                    Integer.valueOf(defaultValue)));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param name name of the parameter
+     * @return the value of a parameter of this module, <code>null</code> if not set
+     */
+    static String getParameter(final String name) {
+        CmsModuleManager moduleManager = OpenCms.getModuleManager();
+        // no module manager before OpenCms is initialized: the defaults apply
+        CmsModule module = moduleManager == null ? null : moduleManager.getModule(MODULE_NAME);
+        return module == null ? null : module.getParameter(name, null);
+    }
+
+    private CmsModuleImportSettings() {
+    }
+}
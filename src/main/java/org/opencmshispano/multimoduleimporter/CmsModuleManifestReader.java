@@ -0,0 +1,225 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.db.CmsExportPoint;
+import org.opencms.importexport.CmsImportExportManager;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.module.CmsModuleVersion;
+import org.opencmshispano.multimoduleimporter.util.ZipDirectory;
+
+/**
+ * Reads the module header from a module or from its <code>manifest.xml</code> stream.
+ * <p>
+ * The manifest is read with a streaming StAX parser that stops as soon as the
+ * <code>&lt;module&gt;</code> element is closed, so the (possibly huge) list of
+ * <code>&lt;file&gt;</code> entries that follows is never read. The returned module only holds the
+ * header: name, version, descriptive fields and dependencies. That is all the planning of an
+ * import needs; the complete manifest is parsed by OpenCms when the module is actually imported.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleManifestReader {
+
+    /** Manifest element with the module description. */
+    private static final String N_MODULE = "module";
+
+    /** Manifest element with the resources, after the module description. */
+    private static final String N_FILES = "files";
+
+    /** Manifest element of a module dependency. */
+    private static final String N_DEPENDENCY = "dependency";
+
+    /** Module name element. */
+    private static final String N_NAME = "name";
+
+    /** Module nice name element. */
+    private static final String N_NICENAME = "nicename";
+
+    /** Module group element. */
+    private static final String N_GROUP = "group";
+
+    /** Module action class element. */
+    private static final String N_CLASS = "class";
+
+    /** Module description element. */
+    private static final String N_DESCRIPTION = "description";
+
+    /** Module version element. */
+    private static final String N_VERSION = "version";
+
+    /** Module author name element. */
+    private static final String N_AUTHORNAME = "authorname";
+
+    /** Module author email element. */
+    private static final String N_AUTHOREMAIL = "authoremail";
+
+    /** Name attribute of a dependency. */
+    private static final String A_NAME = "name";
+
+    /** Version attribute of a dependency. */
+    private static final String A_VERSION = "version";
+
+    /** Text elements of the module header. */
+    private static final Set<String> HEADER_ELEMENTS = new HashSet<String>(Arrays.asList(N_NAME, N_NICENAME,
+            N_GROUP, N_CLASS, N_DESCRIPTION, N_VERSION, N_AUTHORNAME, N_AUTHOREMAIL));
+
+    /** Factory of the StAX parsers. */
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // manifests never need a DTD; never resolve external entities
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /**
+     * Reads the module header of a module zip file or folder.
+     * <p>
+     * For zip files only the manifest entry is read, found through the central directory of the
+     * module (see {@link ZipDirectory}).
+     *
+     * @param module the module zip file or folder
+     * @return the module header
+     * @throws IOException                upon error reading the module
+     * @throws CmsConfigurationException if the module has no valid manifest
+     */
+    public static CmsModule read(final File module) throws IOException, CmsConfigurationException {
+        if (module.isDirectory()) {
+            File file = new File(module, CmsImportExportManager.EXPORT_MANIFEST);
+            if (!file.isFile()) {
+                throw new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_NO_MANIFEST_1,
+                        module.getName()));
+            }
+            InputStream manifest = new FileInputStream(file);
+            try {
+                return read(manifest, module.getName());
+            } finally {
+                manifest.close();
+            }
+        }
+        ZipDirectory zip = ZipDirectory.open(module);
+        try {
+            ZipDirectory.Entry entry = zip.getEntry(CmsImportExportManager.EXPORT_MANIFEST);
+            if (entry == null) {
+                throw new CmsConfigurationException(Messages.get().container(Messages.ERR_BUNDLE_NO_MANIFEST_1,
+                        module.getName()));
+            }
+            InputStream manifest = zip.getInputStream(entry);
+            try {
+                return read(manifest, module.getName());
+            } finally {
+                manifest.close();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Reads the module header from a manifest, stopping right after the module element. The stream
+     * is not closed.
+     *
+     * @param manifest the <code>manifest.xml</code> contents
+     * @param source   name of the module the manifest belongs to, for error messages
+     * @return the module header
+     * @throws CmsConfigurationException if the manifest is not valid
+     */
+    public static CmsModule read(final InputStream manifest, final String source) throws CmsConfigurationException {
+        Map<String, String> header = new HashMap<String, String>();
+        List<CmsModuleDependency> dependencies = new ArrayList<CmsModuleDependency>();
+        try {
+            XMLStreamReader xml;
+            synchronized (FACTORY) {
+                xml = FACTORY.createXMLStreamReader(manifest);
+            }
+            try {
+                int depth = 0;
+                int moduleDepth = -1;
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String element = xml.getLocalName();
+                        if (moduleDepth < 0) {
+                            if (N_MODULE.equals(element)) {
+                                moduleDepth = depth;
+                            } else if (N_FILES.equals(element)) {
+                                // resources start before any module description
+                                break;
+                            }
+                        } else if ((depth == moduleDepth + 1) && HEADER_ELEMENTS.contains(element)) {
+                            // reads up to the end tag of the element
+                            header.put(element, xml.getElementText().trim());
+                            depth--;
+                        } else if ((depth == moduleDepth + 2) && N_DEPENDENCY.equals(element)) {
+                            dependencies.add(new CmsModuleDependency(xml.getAttributeValue(null, A_NAME),
+                                    new CmsModuleVersion(xml.getAttributeValue(null, A_VERSION))));
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == moduleDepth) {
+                            // the module header is complete, the rest of the manifest is not needed
+                            break;
+                        }
+                        depth--;
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_MANIFEST_INVALID_2, source,
+                    e.getMessage()), e);
+        } catch (RuntimeException e) {
+            // e.g. an invalid dependency version
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_MANIFEST_INVALID_2, source,
+                    e.toString()), e);
+        }
+
+        String name = header.get(N_NAME);
+        if ((name == null) || (name.length() == 0) || (header.get(N_VERSION) == null)) {
+            throw new CmsConfigurationException(Messages.get().container(Messages.ERR_MANIFEST_INVALID_2, source,
+                    "module name or version missing"));
+        }
+        return new CmsModule(name, header.get(N_NICENAME), header.get(N_GROUP), header.get(N_CLASS),
+                header.get(N_DESCRIPTION), new CmsModuleVersion(header.get(N_VERSION)), header.get(N_AUTHORNAME),
+                header.get(N_AUTHOREMAIL), 0L, null, 0L, dependencies, new ArrayList<CmsExportPoint>(),
+                new ArrayList<String>(), new HashMap<String, String>());
+    }
+
+    /**
+     * @param manifest the <code>manifest.xml</code> contents
+     * @return an event reader on the manifest, with the same safe settings used to read the header
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    static XMLEventReader createEventReader(final InputStream manifest) throws XMLStreamException {
+        synchronized (FACTORY) {
+            return FACTORY.createXMLEventReader(manifest);
+        }
+    }
+
+    private CmsModuleManifestReader() {
+    }
+}
@@ -0,0 +1,568 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.importexport.CmsImportExportManager;
+import org.opencms.main.CmsLog;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.module.CmsModuleVersion;
+
+/**
+ * Persistent index of the module files in a folder.
+ * <p>
+ * For every module file the index keeps a {@link CmsModuleDescriptor} with the module name,
+ * version, dependencies, file size and SHA-256 checksum. The index is stored in the folder itself
+ * and rebuilt incrementally: files whose size and modification time did not change are not read at
+ * all, and files whose checksum is already known (e.g. a renamed or touched module) are not parsed
+ * again. Only really new modules have their manifest read. For module folders the checksum covers
+ * the manifest only.
+ * <p>
+ * The index also keeps the list of valid modules in memory. Once {@link #watch(long) watched}, the
+ * folder is rescanned in the background, so {@link #getModules()} never touches the file system.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class CmsModuleMetadataIndex {
+
+    /**
+     * Name of the index file inside the indexed folder.
+     */
+    public static final String INDEX_FILE_NAME = ".multimoduleimporter.index";
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleMetadataIndex.class);
+
+    /**
+     * Header of the index file, changed whenever the format changes.
+     */
+    private static final String INDEX_HEADER = "# multimoduleimporter index v1";
+
+    /**
+     * Field separator of the index file.
+     */
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /**
+     * Separator of the dependencies inside their field.
+     */
+    private static final String DEPENDENCY_SEPARATOR = ";";
+
+    /**
+     * Separator of name and version of a dependency.
+     */
+    private static final String VERSION_SEPARATOR = ":";
+
+    /**
+     * Size of the buffer used to compute the checksums.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Every few rescans the folder is scanned completely, even if it looks unchanged: a module file
+     * overwritten in place does not change the modification date of its folder.
+     */
+    private static final int FULL_RESCAN = 10;
+
+    /**
+     * Orders descriptors by file name.
+     */
+    private static final Comparator<CmsModuleDescriptor> BY_FILE_NAME = new Comparator<CmsModuleDescriptor>() {
+
+        public int compare(final CmsModuleDescriptor d1, final CmsModuleDescriptor d2) {
+            return d1.getFileName().compareTo(d2.getFileName());
+        }
+    };
+
+    /**
+     * Rescans the watched folders.
+     */
+    private static final ScheduledExecutorService WATCHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "multimoduleimporter-index");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Indexes already loaded, by folder.
+     */
+    private static final Map<File, CmsModuleMetadataIndex> INSTANCES = new HashMap<File, CmsModuleMetadataIndex>();
+
+    /**
+     * The indexed folder.
+     */
+    private final File folder;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * File name -> descriptor.
+     */
+    private final Map<String, CmsModuleDescriptor> byFileName = new HashMap<String, CmsModuleDescriptor>();
+
+    /**
+     * Checksum -> descriptor.
+     */
+    private final Map<String, CmsModuleDescriptor> byChecksum = new HashMap<String, CmsModuleDescriptor>();
+
+    /**
+     * <code>true</code> if the index changed since it was last stored.
+     */
+    private boolean dirty;
+
+    /**
+     * Los módulos válidos de la última vista de la carpeta, ordenados por nombre de fichero;
+     * <code>null</code> hasta la primera.
+     */
+    private volatile List<CmsModuleDescriptor> modules;
+
+    /**
+     * Modification date of the folder at the last scan.
+     */
+    private long folderModified;
+
+    /**
+     * Background rescans done, to scan completely every {@link #FULL_RESCAN} rescans.
+     */
+    private int rescans;
+
+    /**
+     * The scheduled rescans, <code>null</code> if the folder is not watched.
+     */
+    private volatile ScheduledFuture<?> watch;
+
+    /**
+     * Milliseconds between two rescans.
+     */
+    private volatile long interval;
+
+    private CmsModuleMetadataIndex(final File folder) {
+        this.folder = folder;
+        this.indexFile = new File(folder, INDEX_FILE_NAME);
+        load();
+    }
+
+    /**
+     * Returns the index of a folder, loading its stored index the first time.
+     *
+     * @param folder the folder with the module files
+     * @return the index of the folder
+     */
+    public static CmsModuleMetadataIndex getInstance(final File folder) {
+        File key = folder.getAbsoluteFile();
+        synchronized (INSTANCES) {
+            CmsModuleMetadataIndex index = INSTANCES.get(key);
+            if (index == null) {
+                index = new CmsModuleMetadataIndex(key);
+                INSTANCES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Brings the index up to date with the folder and returns the descriptors of all modules in it.
+     * <p>
+     * Module zip files and module folders (folders with a <code>manifest.xml</code>) are indexed.
+     *
+     * @return the descriptors of the valid modules, sorted by file name
+     */
+    public synchronized List<CmsModuleDescriptor> refresh() {
+        // read before listing: a change made while listing is seen by the next rescan
+        folderModified = folder.lastModified();
+        String[] names = folder.list();
+        List<CmsModuleDescriptor> result = new ArrayList<CmsModuleDescriptor>();
+        Map<String, CmsModuleDescriptor> seen = new HashMap<String, CmsModuleDescriptor>();
+        if (names != null) {
+            for (String name : names) {
+                File file = new File(folder, name);
+                if (!isModuleCandidate(file)) {
+                    continue;
+                }
+                CmsModuleDescriptor descriptor = update(file, null);
+                seen.put(name, descriptor);
+                if (descriptor.isValid()) {
+                    result.add(descriptor);
+                }
+            }
+        }
+        if (!seen.keySet().containsAll(byFileName.keySet())) {
+            // files were removed
+            byFileName.keySet().retainAll(seen.keySet());
+            byChecksum.clear();
+            for (CmsModuleDescriptor descriptor : byFileName.values()) {
+                byChecksum.put(descriptor.getChecksum(), descriptor);
+            }
+            dirty = true;
+        }
+        store();
+        Collections.sort(result, BY_FILE_NAME);
+        modules = Collections.unmodifiableList(result);
+        return result;
+    }
+
+    /**
+     * Returns the valid modules of the folder as of the last scan. Only the first call scans the
+     * folder; after that the list is kept up to date by the rescans of {@link #watch(long)} and by
+     * the modules added through {@link #getDescriptor(File)}.
+     *
+     * @return the descriptors of the valid modules, sorted by file name
+     */
+    public List<CmsModuleDescriptor> getModules() {
+        List<CmsModuleDescriptor> result = modules;
+        if ((result != null) && (watch != null)) {
+            // no lock: a rescan in progress does not block the caller
+            return result;
+        }
+        return Collections.unmodifiableList(refresh());
+    }
+
+    /**
+     * Rescans the folder in the background every <code>interval</code> milliseconds, replacing the
+     * previous interval. A rescan only reads the files of the folder if the folder changed, and
+     * completely every few rescans; as in {@link #refresh()}, only new or changed modules are read.
+     *
+     * @param interval milliseconds between two rescans; <code>0</code> or less stops watching
+     */
+    public void watch(final long interval) {
+        if ((interval == this.interval) && ((watch != null) == (interval > 0))) {
+            // nothing changes, without waiting for a rescan in progress
+            return;
+        }
+        synchronized (this) {
+            schedule(interval);
+        }
+    }
+
+    /**
+     * Replaces the scheduled rescans.
+     */
+    private void schedule(final long interval) {
+        if ((interval == this.interval) && ((watch != null) == (interval > 0))) {
+            // another caller already did it
+            return;
+        }
+        if (watch != null) {
+            watch.cancel(false);
+            watch = null;
+        }
+        this.interval = interval;
+        if (interval > 0) {
+            watch = WATCHER.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    rescan();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the folder is rescanned in the background
+     */
+    public boolean isWatched() {
+        return watch != null;
+    }
+
+    /**
+     * A background rescan.
+     */
+    private synchronized void rescan() {
+        try {
+            rescans++;
+            if ((folder.lastModified() != folderModified) || ((rescans % FULL_RESCAN) == 0)) {
+                refresh();
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the next rescans
+            LOG.warn("Cannot rescan module folder " + folder + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the descriptor of one module file of the folder, updating the index if needed.
+     * <p>
+     * The change is only kept in memory until the next {@link #refresh()} or {@link #flush()}.
+     *
+     * @param file the module file or folder
+     * @return the descriptor, {@link CmsModuleDescriptor#isValid() invalid} if the file is not a module
+     */
+    public synchronized CmsModuleDescriptor getDescriptor(final File file) {
+        return getDescriptor(file, null);
+    }
+
+    /**
+     * Returns the descriptor of one module file of the folder whose SHA-256 is already known, e.g.
+     * because it was computed while the file was written, so the file is not read again to compute it.
+     *
+     * @param file     the module file
+     * @param checksum the hex encoded SHA-256 of the file, <code>null</code> if unknown
+     * @return the descriptor, {@link CmsModuleDescriptor#isValid() invalid} if the file is not a module
+     * @see #getDescriptor(File)
+     */
+    public synchronized CmsModuleDescriptor getDescriptor(final File file, final String checksum) {
+        CmsModuleDescriptor descriptor = update(file, checksum);
+        List<CmsModuleDescriptor> current = modules;
+        if ((current != null) && (watch != null)) {
+            // keep the list of the watched folder up to date without waiting for the next rescan
+            List<CmsModuleDescriptor> result = new ArrayList<CmsModuleDescriptor>(current.size() + 1);
+            for (CmsModuleDescriptor d : current) {
+                if (!d.getFileName().equals(file.getName())) {
+                    result.add(d);
+                }
+            }
+            if (descriptor.isValid()) {
+                result.add(descriptor);
+                Collections.sort(result, BY_FILE_NAME);
+            }
+            modules = Collections.unmodifiableList(result);
+        }
+        return descriptor;
+    }
+
+    /**
+     * Stores the index if it changed since it was last stored.
+     */
+    public synchronized void flush() {
+        store();
+    }
+
+    /**
+     * Updates the entry of a file, reading or parsing it only if needed.
+     *
+     * @param knownChecksum the SHA-256 of the file, <code>null</code> to compute it
+     */
+    private CmsModuleDescriptor update(final File file, final String knownChecksum) {
+        File content = file.isDirectory() ? new File(file, CmsImportExportManager.EXPORT_MANIFEST) : file;
+        long size = content.length();
+        long lastModified = content.lastModified();
+
+        CmsModuleDescriptor cached = byFileName.get(file.getName());
+        if ((cached != null) && (cached.getSize() == size) && (cached.getLastModified() == lastModified)) {
+            return cached;
+        }
+
+        String checksum = knownChecksum;
+        try {
+            if ((checksum == null) || (content != file)) {
+                checksum = checksum(content);
+            }
+        } catch (IOException e) {
+            LOG.warn(String.format("Cannot read module file %s: %s", file, e.getMessage()), e);
+            return CmsModuleDescriptor.invalid(file.getName(), size, lastModified, null);
+        }
+        CmsModuleDescriptor descriptor = byChecksum.get(checksum);
+        if (descriptor != null) {
+            // same contents under another name or date
+            descriptor = descriptor.forFile(file.getName(), lastModified);
+        } else {
+            try {
+                CmsModule module = CmsModuleManifestReader.read(file);
+                descriptor = CmsModuleDescriptor.fromModule(file.getName(), module, size, lastModified, checksum);
+            } catch (CmsConfigurationException e) {
+                LOG.debug(String.format("File %s is not a module: %s", file, e.getMessage()), e);
+                descriptor = CmsModuleDescriptor.invalid(file.getName(), size, lastModified, checksum);
+            } catch (IOException e) {
+                LOG.debug(String.format("File %s is not a module: %s", file, e.getMessage()), e);
+                descriptor = CmsModuleDescriptor.invalid(file.getName(), size, lastModified, checksum);
+            }
+        }
+        byFileName.put(file.getName(), descriptor);
+        byChecksum.put(checksum, descriptor);
+        dirty = true;
+        return descriptor;
+    }
+
+    /**
+     * @return <code>true</code> if the file may be a module: a zip file or a folder with a manifest
+     */
+    private static boolean isModuleCandidate(final File file) {
+        if (file.isFile()) {
+            return file.getName().endsWith(".zip");
+        }
+        return file.isDirectory() && new File(file, CmsImportExportManager.EXPORT_MANIFEST).exists();
+    }
+
+    /**
+     * @return the hex encoded SHA-256 of the file contents
+     */
+    static String checksum(final File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides SHA-256
+            throw new IllegalStateException(e.getMessage());
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the lower case hex representation of <code>bytes</code>
+     */
+    static String toHex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Loads the stored index. A missing or unreadable index is simply rebuilt.
+     */
+    private void load() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            try {
+                if (!INDEX_HEADER.equals(reader.readLine())) {
+                    LOG.info("Ignoring index with unknown format " + indexFile);
+                    return;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    CmsModuleDescriptor descriptor = parse(line);
+                    if (descriptor != null) {
+                        byFileName.put(descriptor.getFileName(), descriptor);
+                        if (descriptor.getChecksum() != null) {
+                            byChecksum.put(descriptor.getChecksum(), descriptor);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot read module index " + indexFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stores the index if it changed. The index is written to a temporary file first, so a crash
+     * never leaves a half written index behind.
+     */
+    private void store() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(folder, INDEX_FILE_NAME + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                writer.write(INDEX_HEADER);
+                writer.write('\n');
+                for (CmsModuleDescriptor descriptor : byFileName.values()) {
+                    if (descriptor.getChecksum() != null) {
+                        writer.write(format(descriptor));
+                        writer.write('\n');
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Cannot rename " + tmp + " to " + indexFile);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            LOG.warn("Cannot write module index " + indexFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the index line of a descriptor
+     */
+    private static String format(final CmsModuleDescriptor descriptor) {
+        StringBuilder dependencies = new StringBuilder();
+        for (CmsModuleDependency dependency : descriptor.getDependencies()) {
+            if (dependencies.length() > 0) {
+                dependencies.append(DEPENDENCY_SEPARATOR);
+            }
+            dependencies.append(dependency.getName()).append(VERSION_SEPARATOR).append(dependency.getVersion());
+        }
+        return descriptor.getFileName() + FIELD_SEPARATOR + descriptor.getSize() + FIELD_SEPARATOR
+                + descriptor.getLastModified() + FIELD_SEPARATOR + descriptor.getChecksum() + FIELD_SEPARATOR
+                + (descriptor.isValid() ? descriptor.getName() : "") + FIELD_SEPARATOR
+                + (descriptor.isValid() ? descriptor.getVersion() : "") + FIELD_SEPARATOR + dependencies;
+    }
+
+    /**
+     * @return the descriptor of an index line, <code>null</code> if the line is not valid
+     */
+    private static CmsModuleDescriptor parse(final String line) {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        if (fields.length != 7) {
+            return null;
+        }
+        try {
+            long size = Long.parseLong(fields[1]);
+            long lastModified = Long.parseLong(fields[2]);
+            if (fields[4].length() == 0) {
+                return CmsModuleDescriptor.invalid(fields[0], size, lastModified, fields[3]);
+            }
+            List<CmsModuleDependency> dependencies = new ArrayList<CmsModuleDependency>();
+            if (fields[6].length() > 0) {
+                for (String dependency : fields[6].split(DEPENDENCY_SEPARATOR)) {
+                    int pos = dependency.lastIndexOf(VERSION_SEPARATOR);
+                    dependencies.add(new CmsModuleDependency(dependency.substring(0, pos),
+                            new CmsModuleVersion(dependency.substring(pos + 1))));
+                }
+            }
+            return new CmsModuleDescriptor(fields[0], fields[4], fields[5], dependencies, size, lastModified,
+                    fields[3]);
+        } catch (RuntimeException e) {
+            LOG.debug("Ignoring invalid index line: " + line, e);
+            return null;
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package org.opencmshispano.multimoduleimporter;
 
 import org.apache.commons.logging.Log;
-import org.opencms.configuration.CmsConfigurationException;
 import org.opencms.file.CmsObject;
+import org.opencms.file.CmsUser;
+import org.opencms.i18n.CmsMessageContainer;
 import org.opencms.importexport.CmsImportParameters;
+import org.opencms.main.CmsException;
 import org.opencms.main.CmsLog;
 import org.opencms.main.OpenCms;
 import org.opencms.module.CmsModule;
 import org.opencms.module.CmsModuleManager;
+import org.opencms.module.CmsModuleDependency;
 import org.opencms.report.A_CmsReportThread;
-import org.opencms.workplace.threads.CmsModuleDeleteThread;
-import org.opencms.workplace.threads.Messages;
+import org.opencms.report.I_CmsReport;
+import org.opencms.util.CmsStringUtil;
 
 import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Replaces a module.
@@ -35,6 +47,21 @@ public class CmsModuleMultiImportThread extends A_CmsReportThread {
      */
     private static CmsModuleManager moduleManager = OpenCms.getModuleManager();
 
+    /**
+     * Folder of the report logs, in the modules folder.
+     */
+    private static final String REPORTS_FOLDER = ".reports";
+
+    /**
+     * Milliseconds a report log is kept.
+     */
+    private static final long REPORTS_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Milliseconds before the first retry of a failed import; doubled for the second, and so on.
+     */
+    private static final long RETRY_DELAY = 2000L;
+
     /**
      * Unsorted list of all filename -> module to be imported
      */
@@ -46,19 +73,85 @@ public class CmsModuleMultiImportThread extends A_CmsReportThread {
     private final String importPath;
 
     /**
-     * Hilo encargado de eliminar los módulos ya instalados.
+     * Número de módulos de un mismo nivel de dependencias que se importan a la vez.
+     */
+    private final int threads;
+
+    /**
+     * Número de módulos de un mismo nivel de dependencias que se borran a la vez.
+     */
+    private final int deleteThreads;
+
+    /**
+     * Si es <code>true</code>, no se reinstalan los módulos que no han cambiado.
+     */
+    private final boolean skipUnchanged;
+
+    /**
+     * Si es <code>true</code>, el borrado y la importación de los módulos se solapan.
+     */
+    private final boolean pipelined;
+
+    /**
+     * Si es <code>true</code>, los módulos instalados se actualizan recurso a recurso.
+     */
+    private final boolean deltaImport;
+
+    /**
+     * Plan de la importación: el calculado al subir los módulos o, si ya no vale, el calculado al empezar.
+     */
+    private volatile CmsModuleImportPlan plan;
+
+    /**
+     * Si es <code>true</code>, los índices de búsqueda se actualizan una sola vez al terminar el lote.
+     */
+    private final boolean batchMode;
+
+    /**
+     * Número de veces que se reintenta la importación de un módulo tras un fallo no permanente.
+     */
+    private final int retries;
+
+    /**
+     * Si es <code>true</code>, un módulo que sigue instalado tras su borrado falla y se saltan los que
+     * dependen de él.
+     */
+    private final boolean failStillInstalled;
+
+    /**
+     * Grafo de dependencias de los módulos que se importan.
+     */
+    private volatile CmsModuleDependencyGraph graph;
+
+    /**
+     * Módulos que no se importan porque falló un módulo del que dependen.
      */
-    private A_CmsReportThread deleteThread;
+    private final Set<String> doomed = Collections.synchronizedSet(new HashSet<String>());
 
     /**
-     * Fase por la que se encuentra el proceso.
+     * Módulos instalados que se actualizan recurso a recurso en lugar de reemplazarse.
      */
-    private int phase;
+    private Set<String> deltaModules = Collections.emptySet();
 
     /**
-     * Contenido del informe del proceso.
+     * Progreso estructurado de la importación, para los clientes que no leen el informe HTML.
      */
-    private String reportContent;
+    private final CmsModuleImportProgress progress = new CmsModuleImportProgress();
+
+    /**
+     * Informe de memoria acotada; el informe completo se escribe comprimido en disco.
+     */
+    private final CmsModuleReportSink report;
+
+    /**
+     * Turno de este trabajo en la cola de importaciones.
+     */
+    private volatile CmsModuleImportScheduler.Ticket ticket;
+
+    /**
+     * Diario del plan de importación, para saber hasta dónde llegó si se interrumpe.
+     */
+    private CmsModuleImportJournal journal;
 
     /**
      * Creates the module replace thread and sorts the list of modules to be imported considering the declared
@@ -69,15 +162,64 @@ public class CmsModuleMultiImportThread extends A_CmsReportThread {
      * @param modules filename -> cmsmodule
      */
     public CmsModuleMultiImportThread(final CmsObject cms, final Map<String, CmsModule> modules) {
+        this(cms, modules, null);
+    }
+
+    /**
+     * Creates the module replace thread for an import already planned. The plan is computed again
+     * when the import starts if it is no longer {@link CmsModuleImportPlan#isCurrent current}.
+     *
+     * @param cms  the current cms context
+     * @param plan the plan of the import
+     */
+    public CmsModuleMultiImportThread(final CmsObject cms, final CmsModuleImportPlan plan) {
+        this(cms, plan.getModules(), plan);
+    }
+
+    /**
+     * @param cms     the current cms context
+     * @param modules filename -> cmsmodule
+     * @param plan    the plan of the import, <code>null</code> to plan it when it starts
+     */
+    private CmsModuleMultiImportThread(final CmsObject cms, final Map<String, CmsModule> modules,
+            final CmsModuleImportPlan plan) {
 
         super(cms, org.opencms.workplace.threads.Messages.get().getBundle().key(
                 org.opencms.workplace.threads.Messages.GUI_DELETE_MODULE_THREAD_NAME_1));
 
         this.importPath = OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator + "modules/";
         this.modules = modules;
-        phase = 0;
+        this.plan = plan;
+        this.threads = CmsModuleImportSettings.getImportThreads();
+        this.deleteThreads = CmsModuleImportSettings.getDeleteThreads();
+        this.skipUnchanged = CmsModuleImportSettings.isSkipUnchanged();
+        this.deltaImport = CmsModuleImportSettings.isDeltaImport();
+        this.pipelined = CmsModuleImportSettings.isPipelined();
+        this.batchMode = CmsModuleImportSettings.isBatchMode();
+        this.retries = CmsModuleImportSettings.getRetries();
+        this.failStillInstalled = CmsModuleImportSettings.isFailStillInstalled();
 
-        initHtmlReport(cms.getRequestContext().getLocale());
+        this.report = new CmsModuleReportSink(cms.getRequestContext().getLocale(),
+                cms.getRequestContext().getSiteRoot(), CmsModuleImportSettings.getReportLines(),
+                createReportLogFile(new File(importPath, REPORTS_FOLDER)));
+    }
+
+    /**
+     * @return a new log file for the report in the given folder, after deleting the logs older than
+     * {@link #REPORTS_MAX_AGE}
+     */
+    private static File createReportLogFile(final File folder) {
+        File[] logs = folder.listFiles();
+        if (logs != null) {
+            long oldest = System.currentTimeMillis() - REPORTS_MAX_AGE;
+            for (File log : logs) {
+                if (log.isFile() && (log.lastModified() < oldest) && !log.delete()) {
+                    LOG.warn("Cannot delete old report log " + log);
+                }
+            }
+        }
+        String name = "import-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        return new File(folder, name + ".log.gz");
     }
 
     /**
@@ -92,164 +234,612 @@ public class CmsModuleMultiImportThread extends A_CmsReportThread {
     }
 
     /**
-     * @return list of modules topologically sorted if possible
+     * Returns the report lines since the last call, from the start: while the job is queued and
+     * planned too (the phase is in {@link #getProgress()}).
+     *
+     * @see org.opencms.report.A_CmsReportThread#getReportUpdate()
      */
-    private static List<String> createModulesList(Map<String, CmsModule> modules, String importPath) {
-        // (Yet) unsorted list of all module names
-        List<String> moduleNames = new ArrayList<String>(modules.size());
-        for (Map.Entry<String, CmsModule> e : modules.entrySet()) {
-            CmsModule m = e.getValue();
-            moduleNames.add(m.getName());
-        }
+    @Override
+    public String getReportUpdate() {
+        return getReport().getReportUpdate();
+    }
 
-        try {
-            moduleNames = CmsModuleManager.topologicalSort(moduleNames, importPath);
-        } catch (CmsConfigurationException e) {
-            // We'll have to deal with the unsorted list of modules
-            LOG.warn("Error sorting list of modules topologically: " + e.getMessage(), e);
-        }
-        return moduleNames;
+    /**
+     * @return the structured progress of the import
+     */
+    public CmsModuleImportProgress getProgress() {
+        return progress;
     }
 
     /**
-     * @see org.opencms.report.A_CmsReportThread#getReportUpdate()
+     * @see org.opencms.report.A_CmsReportThread#getReport()
      */
     @Override
-    public String getReportUpdate() {
+    public I_CmsReport getReport() {
+        return report;
+    }
 
-        switch (phase) {
-            case 1:
-                return deleteThread.getReportUpdate();
-            case 2:
-                return getReport().getReportUpdate();
-            default:
-                // noop
-        }
-        return "";
+    /**
+     * @return the file the complete report is written to
+     */
+    public File getReportLogFile() {
+        return report.getLogFile();
+    }
+
+    /**
+     * @return the plan of the import, <code>null</code> until it is planned
+     */
+    public CmsModuleImportPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return the ticket of this job in the {@link CmsModuleImportScheduler queue}, <code>null</code>
+     * before the thread runs
+     */
+    public CmsModuleImportScheduler.Ticket getTicket() {
+        return ticket;
     }
 
     @Override
     public void run() {
-        if (LOG.isDebugEnabled()) {
-            LOG.debug(Messages.get().getBundle().key(Messages.LOG_REPLACE_THREAD_START_DELETE_0));
+        Set<String> names = new TreeSet<String>();
+        for (CmsModule module : modules.values()) {
+            names.add(module.getName());
+        }
+        CmsModuleImportScheduler scheduler = CmsModuleImportScheduler.getInstance();
+        CmsUser user = getCms().getRequestContext().getCurrentUser();
+        ticket = scheduler.enqueue(getUUID().toString(), user == null ? null : user.getName(), names,
+                CmsModuleImportScheduler.getLocks(modules.values(), getInstalledModules()));
+        try {
+            report.println(Messages.get().container(Messages.RPT_REPORT_LOG_1, report.getLogFile().getName()),
+                    I_CmsReport.FORMAT_NOTE);
+            if (awaitTurn(scheduler)) {
+                reportInterrupted(scheduler);
+                journal = new CmsModuleImportJournal(new File(importPath), getUUID().toString());
+                CmsModuleBatchMode batch = batchMode ? CmsModuleBatchMode.begin(names) : null;
+                try {
+                    importAll();
+                    journal.delete();
+                } catch (RuntimeException e) {
+                    // the journal is kept: the next import reports the modules left unfinished
+                    checkpoint();
+                    throw e;
+                } finally {
+                    flush();
+                    if (batch != null) {
+                        batch.end(getCms(), report);
+                    }
+                }
+            }
+        } finally {
+            scheduler.release(ticket);
+            progress.finish();
+            report.close();
         }
+    }
 
-        deleteThread = createDeleteThread(modules, moduleManager);
+    /**
+     * @return the installed modules
+     */
+    private static List<CmsModule> getInstalledModules() {
+        CmsModuleManager manager = OpenCms.getModuleManager();
+        List<CmsModule> installed = new ArrayList<CmsModule>();
+        for (String name : manager.getModuleNames()) {
+            CmsModule module = manager.getModule(name);
+            if (module != null) {
+                installed.add(module);
+            }
+        }
+        return installed;
+    }
 
-        // phase 1: delete the existing module
-        phase = 1;
-        deleteThread.start();
+    /**
+     * Reports the modules left unfinished by imports that were interrupted, e.g. by a restart.
+     */
+    private void reportInterrupted(final CmsModuleImportScheduler scheduler) {
+        List<String> jobs = new ArrayList<String>();
+        for (CmsModuleImportScheduler.Ticket t : scheduler.getRunning()) {
+            jobs.add(t.getJob());
+        }
+        for (CmsModuleImportScheduler.Ticket t : scheduler.getWaiting()) {
+            jobs.add(t.getJob());
+        }
+        Map<String, Map<String, String>> interrupted = CmsModuleImportJournal.recover(new File(importPath), jobs);
+        for (Map.Entry<String, Map<String, String>> e : interrupted.entrySet()) {
+            StringBuffer unfinished = new StringBuffer();
+            for (Map.Entry<String, String> m : e.getValue().entrySet()) {
+                if (unfinished.length() > 0) {
+                    unfinished.append(", ");
+                }
+                unfinished.append(m.getKey()).append(" (").append(m.getValue()).append(')');
+            }
+            report.println(Messages.get().container(Messages.RPT_JOURNAL_INTERRUPTED_2, e.getKey(),
+                    unfinished.length() > 0 ? unfinished.toString() : "-"), I_CmsReport.FORMAT_WARNING);
+        }
+    }
+
+    /**
+     * Writes the phase and the status of the modules to the journal: once when the import is planned,
+     * and again only if the import dies.
+     */
+    private void checkpoint() {
+        journal.checkpoint(progress.getPhase(), progress.getStatuses());
+    }
+
+    /**
+     * Stores what was recorded of the imported modules, once when the job ends.
+     */
+    private void flush() {
+        CmsModuleFingerprints.getInstance(new File(importPath)).flush();
+        CmsModuleMetadataIndex.getInstance(new File(importPath)).flush();
+    }
+
+    /**
+     * Waits until no other job handles the modules of this one.
+     *
+     * @return <code>false</code> if the thread was interrupted while waiting
+     */
+    private boolean awaitTurn(final CmsModuleImportScheduler scheduler) {
+        List<CmsModuleImportScheduler.Ticket> blockers = Collections.emptyList();
+        if (!scheduler.isReady(ticket)) {
+            blockers = scheduler.getBlockers(ticket);
+            if (blockers.isEmpty()) {
+                // only the number of jobs running at the same time is exceeded
+                blockers = scheduler.getRunning();
+            }
+        }
+        if (!blockers.isEmpty()) {
+            progress.setPhase(CmsModuleImportProgress.PHASE_QUEUED);
+            StringBuffer jobs = new StringBuffer();
+            for (CmsModuleImportScheduler.Ticket blocker : blockers) {
+                if (jobs.length() > 0) {
+                    jobs.append(", ");
+                }
+                jobs.append(blocker.getJob()).append(" (").append(blocker.getUser()).append(')');
+            }
+            report.println(Messages.get().container(Messages.RPT_JOB_QUEUED_2, Integer.valueOf(blockers.size()),
+                    jobs.toString()), I_CmsReport.FORMAT_NOTE);
+        }
         try {
-            deleteThread.join();
+            scheduler.await(ticket);
         } catch (InterruptedException e) {
-            // should never happen
-            if (LOG.isErrorEnabled()) {
-                LOG.error(e.getLocalizedMessage(), e);
-            }
+            report.println(Messages.get().container(Messages.RPT_JOB_CANCELLED_0), I_CmsReport.FORMAT_ERROR);
+            return false;
         }
+        if (!blockers.isEmpty()) {
+            report.println(Messages.get().container(Messages.RPT_JOB_STARTED_1,
+                    Long.valueOf(ticket.getWaitTime() / 1000)), I_CmsReport.FORMAT_NOTE);
+        }
+        progress.setPhase(CmsModuleImportProgress.PHASE_PLAN);
+        return true;
+    }
 
-        // get remaining report contents
-        reportContent = deleteThread.getReportUpdate();
+    /**
+     * Plans the import, then deletes and imports the modules.
+     */
+    private void importAll() {
         if (LOG.isDebugEnabled()) {
-            LOG.debug(Messages.get().getBundle().key(
-                    Messages.LOG_REPLACE_THREAD_START_IMPORT_0));
+            LOG.debug(org.opencms.workplace.threads.Messages.get().getBundle().key(
+                    org.opencms.workplace.threads.Messages.LOG_REPLACE_THREAD_START_DELETE_0));
         }
 
-        // phase 2: import the new modules
-        phase = 2;
+        // the import is planned before anything is deleted: modules that cannot be imported are kept
+        CmsModuleImportPlan plan = this.plan;
+        if ((plan != null) && !plan.isCurrent(moduleManager, skipUnchanged, deltaImport)) {
+            report.println(Messages.get().container(Messages.RPT_PLAN_OUTDATED_0), I_CmsReport.FORMAT_NOTE);
+            plan = null;
+        }
+        if (plan == null) {
+            plan = CmsModuleImportPlan.create(new File(importPath), modules, moduleManager, skipUnchanged,
+                    deltaImport);
+            this.plan = plan;
+        }
+        graph = plan.getGraph();
+        deltaModules = plan.getDeltaModules();
+        reportPlan(plan);
         Map<String, String> moduleNamesFilenames = createNameFilenameLookupTable(modules);
-        List<String> moduleNames = createModulesList(modules, importPath);
-        importModules(moduleNames, moduleNamesFilenames);
+        for (String moduleName : graph.getOrder()) {
+            progress.addModule(moduleName, plan.getEntry(moduleName).getSize());
+        }
+        checkpoint();
+
+        if (pipelined) {
+            // deletes and imports overlap: the report of this thread shows both
+            progress.setPhase(CmsModuleImportProgress.PHASE_IMPORT);
+            importPipelined(graph, plan.getDeleteSet(), moduleNamesFilenames);
+            return;
+        }
+
+        // phase 1: delete the existing module
+        progress.setPhase(CmsModuleImportProgress.PHASE_DELETE);
+        new CmsModuleDeleteStage(getCms(), moduleManager, plan.getDeleteLevels(), deleteThreads,
+                progress).execute(getReport());
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(org.opencms.workplace.threads.Messages.get().getBundle().key(
+                    org.opencms.workplace.threads.Messages.LOG_REPLACE_THREAD_START_IMPORT_0));
+        }
+
+        // phase 2: import the new modules
+        progress.setPhase(CmsModuleImportProgress.PHASE_IMPORT);
+        if (threads > 1) {
+            importModulesInWaves(graph.getWaves(), moduleNamesFilenames);
+        } else {
+            importModules(graph.getOrder(), moduleNamesFilenames);
+        }
     }
 
     /**
-     * @param modules       list of modules and their filenames to be deleted
-     * @param moduleManager
-     * @return a thread that in its run method will remove <code>modules</code> from OpenCms
+     * Writes the plan to the report: the modules that will not be imported and why, the modules
+     * deleted first and the dependency waves.
+     *
+     * @param plan the plan of the import
      */
-    private A_CmsReportThread createDeleteThread(Map<String, CmsModule> modules, CmsModuleManager moduleManager) {
-        List<String> installedModules = new ArrayList<String>();
-        for (Map.Entry<String, CmsModule> e : modules.entrySet()) {
-            CmsModule m = e.getValue();
-            // Module exists already and must be deleted
-            if (null != moduleManager.getModule(m.getName())) {
-                LOG.trace(String.format("Found module for file \"%s with name \"%s. Recording it for deletion.",
-                        e.getKey(), m.getName()));
-                installedModules.add(m.getName());
-            } else {
-                LOG.trace(String.format("Module for file \"%s with name \"%s not yet installed.",
-                        e.getKey(), m.getName()));
+    private void reportPlan(final CmsModuleImportPlan plan) {
+        I_CmsReport report = getReport();
+        for (CmsModuleImportPlan.Entry entry : plan.getEntries()) {
+            if (CmsModuleImportPlan.ACTION_UNCHANGED.equals(entry.getAction())) {
+                report.println(Messages.get().container(Messages.RPT_MODULE_UNCHANGED_2, entry.getName(),
+                        entry.getVersion()), I_CmsReport.FORMAT_NOTE);
+                progress.setStatus(entry.getName(), CmsModuleImportProgress.STATUS_UNCHANGED, null);
+            }
+        }
+        CmsModuleDependencyGraph graph = plan.getGraph();
+        for (Map.Entry<String, List<CmsModuleDependency>> e : graph.getMissing().entrySet()) {
+            for (CmsModuleDependency dependency : e.getValue()) {
+                CmsMessageContainer message = Messages.get().container(Messages.RPT_MODULE_DEPENDENCY_MISSING_3,
+                        e.getKey(), dependency.getName(), dependency.getVersion().toString());
+                report.println(message, I_CmsReport.FORMAT_ERROR);
+                progress.setStatus(e.getKey(), CmsModuleImportProgress.STATUS_SKIPPED, message.key(report.getLocale()));
             }
         }
-        return new CmsModuleDeleteThread(getCms(), installedModules, true);
+        if (!graph.getCycles().isEmpty()) {
+            CmsMessageContainer message = Messages.get().container(Messages.RPT_MODULE_DEPENDENCY_CYCLE_1,
+                    CmsStringUtil.collectionAsString(graph.getCycles(), ", "));
+            report.println(message, I_CmsReport.FORMAT_ERROR);
+            for (String moduleName : graph.getCycles()) {
+                progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_SKIPPED, message.key(report.getLocale()));
+            }
+        }
+        for (Map.Entry<String, String> e : graph.getBlocked().entrySet()) {
+            CmsMessageContainer message = Messages.get().container(Messages.RPT_MODULE_BLOCKED_2, e.getKey(),
+                    e.getValue());
+            report.println(message, I_CmsReport.FORMAT_WARNING);
+            progress.setStatus(e.getKey(), CmsModuleImportProgress.STATUS_SKIPPED, message.key(report.getLocale()));
+        }
+        if (!plan.getDeleteSet().isEmpty()) {
+            report.println(Messages.get().container(Messages.RPT_PLAN_DELETE_2,
+                    Integer.valueOf(plan.getDeleteSet().size()),
+                    CmsStringUtil.collectionAsString(plan.getDeleteSet(), ", ")), I_CmsReport.FORMAT_NOTE);
+        }
+        report.println(Messages.get().container(Messages.RPT_IMPORT_PLAN_2,
+                Integer.valueOf(graph.getOrder().size()), Integer.valueOf(graph.getWaves().size())),
+                I_CmsReport.FORMAT_NOTE);
+        for (int i = 0; i < graph.getWaves().size(); i++) {
+            report.println(Messages.get().container(Messages.RPT_PLAN_WAVE_2, Integer.valueOf(i + 1),
+                    CmsStringUtil.collectionAsString(graph.getWaves().get(i), ", ")), I_CmsReport.FORMAT_NOTE);
+        }
+        report.println(Messages.get().container(Messages.RPT_PLAN_SIZE_2, Integer.valueOf(plan.getResources()),
+                Long.valueOf(plan.getSize() / 1024)), I_CmsReport.FORMAT_NOTE);
     }
 
     /**
-     * Import all named modules. This method installs each of the modules in <code>moduleNames</code>, if necessary
-     * walking through the list multiple times until all are installed.
+     * Import all named modules, each one exactly once.
      *
-     * @param moduleNames          to import. If possible, this list should be sorted topologically
-     *                             (see {@link CmsModuleManager#topologicalSort(List, String)})
+     * @param moduleNames          to import, in dependency order (see {@link CmsModuleDependencyGraph#getOrder()})
      * @param moduleNamesFilenames <code>moduleName -> filename</code> lookup table used to find the filenames of the modules
      */
     private void importModules(List<String> moduleNames, Map<String, String> moduleNamesFilenames) {
-        // For debugging: count of passes through the list
-        int passes = 0;
-
-        // Iterate through the modules list as many times as necessary until no more modules can be installed.
-        // Successfully installed modules are removed from the list
-        int lastSize = Integer.MAX_VALUE;
-        int curSize = moduleNames.size();
-        boolean lastPass = false;
-        while (!lastPass) {
-            lastPass = (curSize == lastSize); // The previous pass didn't import any package
-            lastSize = moduleNames.size();
-
-            // Next pass through the modules list
-            LOG.debug("Import modules - Pass " + passes + ". Yet " + lastSize + " modules to try to install");
-            Iterator<String> itModuleNames = moduleNames.iterator();
-            while (itModuleNames.hasNext()) {
-                String moduleName = itModuleNames.next();
-                String moduleFilename = moduleNamesFilenames.get(moduleName);
-                try {
-                    boolean importedSuccessfully = importModule(moduleName, moduleFilename);
-                    if (importedSuccessfully) {
-                        itModuleNames.remove();
+        for (String moduleName : moduleNames) {
+            importModule(moduleName, moduleNamesFilenames.get(moduleName), getCms(), getReport());
+        }
+    }
+
+    /**
+     * Import all modules of each wave at the same time, one wave after another.
+     * <p>
+     * Every import gets its own {@link CmsObject} and writes to its own {@link CmsModuleReportBuffer},
+     * copied into the report of this thread as soon as the import ends.
+     *
+     * @param waves                modules to import, grouped in dependency waves (see {@link CmsModuleDependencyGraph#getWaves()})
+     * @param moduleNamesFilenames <code>moduleName -> filename</code> lookup table used to find the filenames of the modules
+     */
+    private void importModulesInWaves(List<List<String>> waves, Map<String, String> moduleNamesFilenames) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (List<String> wave : waves) {
+                if (wave.size() == 1) {
+                    importModules(wave, moduleNamesFilenames);
+                } else {
+                    CompletionService<CmsModuleReportBuffer> completion =
+                            new ExecutorCompletionService<CmsModuleReportBuffer>(executor);
+                    for (String moduleName : wave) {
+                        completion.submit(createImportTask(moduleName, moduleNamesFilenames.get(moduleName)));
                     }
-                } catch (Exception e) {
-                    if (lastPass) {
-                        // Only report errors during import as errors in the last pass (the module cannot be installed)
-                        getReport().println(e);
-                        LOG.error(Messages.get().getBundle().key(Messages.ERR_DB_IMPORT_0), e);
-                    } else {
-                        LOG.debug(String.format("Import modules - Pass %d. Cannot import \"%s\" from %s: %s",
-                                passes, moduleName, moduleFilename, e.getLocalizedMessage()), e);
+                    // the next wave depends on this one: wait for all its modules
+                    for (int i = 0; i < wave.size(); i++) {
+                        completion.take().get().copyTo(getReport());
                     }
                 }
             }
-            curSize = moduleNames.size();
-            passes++;
+        } catch (InterruptedException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the tasks catch their own errors
+            LOG.error(e.getLocalizedMessage(), e);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
+    /**
+     * Deletes and imports the modules at the same time.
+     * <p>
+     * A single worker deletes the installed modules in reverse dependency order (see
+     * {@link CmsModuleDependencyGraph#getDeleteLevels(Collection)}). Each module is imported as soon
+     * as it has been deleted and its dependencies in the import are done, on up to
+     * <code>threads</code> workers. A module is therefore missing only while it is replaced, and
+     * not during the whole delete phase. This thread only schedules the work and copies the reports
+     * of every finished step, so they are not mixed.
+     *
+     * @param graph                the dependency graph of the modules to import
+     * @param installedModules     names of the modules that must be deleted before their import
+     * @param moduleNamesFilenames <code>moduleName -> filename</code> lookup table used to find the filenames of the modules
+     */
+    private void importPipelined(final CmsModuleDependencyGraph graph, final List<String> installedModules,
+            final Map<String, String> moduleNamesFilenames) {
+
+        final BlockingQueue<CmsModuleStep> steps = new LinkedBlockingQueue<CmsModuleStep>();
+        ExecutorService deleter = Executors.newSingleThreadExecutor();
+        ExecutorService importer = Executors.newFixedThreadPool(threads);
+        try {
+            for (List<String> level : graph.getDeleteLevels(installedModules)) {
+                for (final String moduleName : level) {
+                    deleter.execute(new Runnable() {
+
+                        public void run() {
+                            steps.add(deleteModule(moduleName));
+                        }
+                    });
+                }
+            }
+
+            List<String> pending = new ArrayList<String>(graph.getOrder());
+            Set<String> deleted = new HashSet<String>();
+            Set<String> done = new HashSet<String>();
+            while (done.size() < graph.getOrder().size()) {
+                // start every module that is ready
+                Iterator<String> it = pending.iterator();
+                while (it.hasNext()) {
+                    final String moduleName = it.next();
+                    if ((!installedModules.contains(moduleName) || deleted.contains(moduleName))
+                            && done.containsAll(graph.getDependencies(moduleName))) {
+                        it.remove();
+                        final Callable<CmsModuleReportBuffer> task = createImportTask(moduleName,
+                                moduleNamesFilenames.get(moduleName));
+                        importer.execute(new Runnable() {
+
+                            public void run() {
+                                try {
+                                    steps.add(new CmsModuleStep(moduleName, false, task.call()));
+                                } catch (Exception e) {
+                                    // the task catches its own errors; the step must be done anyway
+                                    LOG.error(e.getLocalizedMessage(), e);
+                                    steps.add(new CmsModuleStep(moduleName, false, new CmsModuleReportBuffer(
+                                            getReport().getLocale(), getReport().getSiteRoot())));
+                                }
+                            }
+                        });
+                    }
+                }
+                CmsModuleStep step = steps.take();
+                step.getReport().copyTo(getReport());
+                if (step.isDelete()) {
+                    // even if the delete failed: the import reports the module as still installed
+                    deleted.add(step.getModuleName());
+                } else {
+                    done.add(step.getModuleName());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+            Thread.currentThread().interrupt();
+        } finally {
+            deleter.shutdownNow();
+            importer.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes an installed module before its import, writing to its own report.
+     *
+     * @param moduleName Name of the module to delete
+     * @return the finished step
+     */
+    private CmsModuleStep deleteModule(final String moduleName) {
+        I_CmsReport report = getReport();
+        CmsModuleReportBuffer buffer = new CmsModuleReportBuffer(report.getLocale(), report.getSiteRoot());
+        progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_DELETING, null);
+        try {
+            moduleManager.deleteModule(OpenCms.initCmsObject(getCms()), moduleName, true, buffer);
+        } catch (Exception e) {
+            buffer.println(e);
+            LOG.error(e.getLocalizedMessage(), e);
+        }
+        progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_DELETED, null);
+        return new CmsModuleStep(moduleName, true, buffer);
+    }
+
+    /**
+     * @param moduleName     Name of the module to import
+     * @param moduleFilename The filename of the module to import
+     * @return a task importing the module with its own cms context and report
+     */
+    private Callable<CmsModuleReportBuffer> createImportTask(final String moduleName, final String moduleFilename) {
+        final I_CmsReport report = getReport();
+        return new Callable<CmsModuleReportBuffer>() {
+
+            public CmsModuleReportBuffer call() {
+                CmsModuleReportBuffer buffer = new CmsModuleReportBuffer(report.getLocale(), report.getSiteRoot());
+                try {
+                    // CmsObject is not thread safe: every import has its own copy
+                    importModule(moduleName, moduleFilename, OpenCms.initCmsObject(getCms()), buffer);
+                } catch (CmsException e) {
+                    buffer.println(e);
+                    LOG.error(e.getLocalizedMessage(), e);
+                }
+                return buffer;
+            }
+        };
+    }
+
     /**
      * @param moduleName     Name of the module to import (e.g. <code>my.module</code>)
      * @param moduleFilename The filename of the module to import (e.g. <code>my.module-1.0.1.zip</code>)
+     * @param cms            the cms context of the import
+     * @param report         the report the import writes to
      * @return <code>true</code> if module has been imported; <code>false</code> otherwise (module already installed
      * or exception during module import)
-     * @throws Exception upon error during module import
      */
-    private boolean importModule(String moduleName, final String moduleFilename) throws Exception {
+    private boolean importModule(String moduleName, final String moduleFilename, final CmsObject cms,
+            final I_CmsReport report) {
+        if (doomed.contains(moduleName)) {
+            // reported and marked as skipped when the module it depends on failed
+            return false;
+        }
+        if (!failStillInstalled && !deltaModules.contains(moduleName) && moduleManager.hasModule(moduleName)) {
+            // its delete reported success: the dependents can still be imported against the installed version
+            LOG.warn(String.format("Import module - Skipping module \"%s\" (%s): already installed!",
+                    moduleName, moduleFilename));
+            CmsMessageContainer message = Messages.get().container(Messages.RPT_MODULE_STILL_INSTALLED_1, moduleName);
+            report.println(message, I_CmsReport.FORMAT_WARNING);
+            progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_SKIPPED, message.key(report.getLocale()));
+            return false;
+        }
+        progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_IMPORTING, null);
+        Exception failure = importModuleFile(moduleName, moduleFilename, cms, report);
+        for (int attempt = 1; (failure != null) && canRetry(moduleName, failure, attempt); attempt++) {
+            report.println(Messages.get().container(Messages.RPT_MODULE_RETRY_3, moduleName,
+                    Integer.valueOf(attempt + 1), Integer.valueOf(retries + 1)), I_CmsReport.FORMAT_WARNING);
+            try {
+                Thread.sleep(RETRY_DELAY * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            failure = importModuleFile(moduleName, moduleFilename, cms, report);
+        }
+        if (failure == null) {
+            progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_IMPORTED, null);
+            return true;
+        }
+        progress.setStatus(moduleName, CmsModuleImportProgress.STATUS_FAILED, failure.getLocalizedMessage());
+        skipDependents(moduleName, report);
+        return false;
+    }
+
+    /**
+     * @param attempt number of attempts made so far
+     * @return <code>true</code> if the import of a module that failed is tried again
+     */
+    private boolean canRetry(final String moduleName, final Exception failure, final int attempt) {
+        if ((attempt > retries) || !CmsModuleImportFailure.isRetryable(failure)) {
+            return false;
+        }
+        // a module installed despite the failure cannot be imported again, only updated
+        return deltaModules.contains(moduleName) || !moduleManager.hasModule(moduleName);
+    }
+
+    /**
+     * Marks every module that depends on a failed module, directly or not, as skipped: none of them
+     * can be imported, so none of them is tried.
+     *
+     * @param failed name of the module that failed
+     * @param report the report of the failed module
+     */
+    private void skipDependents(final String failed, final I_CmsReport report) {
+        List<String> skipped = new ArrayList<String>();
+        LinkedList<String> queue = new LinkedList<String>(graph.getDependents(failed));
+        while (!queue.isEmpty()) {
+            String name = queue.removeFirst();
+            if (doomed.add(name)) {
+                skipped.add(name);
+                queue.addAll(graph.getDependents(name));
+            }
+        }
+        if (skipped.isEmpty()) {
+            return;
+        }
+        report.println(Messages.get().container(Messages.RPT_DEPENDENTS_SKIPPED_2, failed,
+                CmsStringUtil.collectionAsString(skipped, ", ")), I_CmsReport.FORMAT_WARNING);
+        for (String name : skipped) {
+            progress.setStatus(name, CmsModuleImportProgress.STATUS_SKIPPED, Messages.get().container(
+                    Messages.RPT_MODULE_DEPENDENCY_FAILED_2, name, failed).key(report.getLocale()));
+        }
+    }
+
+    /**
+     * @return <code>null</code> if the module has been imported, otherwise why it failed
+     * @see #importModule(String, String, CmsObject, I_CmsReport)
+     */
+    private Exception importModuleFile(String moduleName, final String moduleFilename, final CmsObject cms,
+            final I_CmsReport report) {
+        if (deltaModules.contains(moduleName)) {
+            return importDelta(moduleName, moduleFilename, cms, report);
+        }
         CmsModule m = moduleManager.getModule(moduleName);
         if (m != null) {
             LOG.warn(String.format("Import module - Skipping module \"%s\" (%s): already installed!",
                     moduleName, moduleFilename));
-            return false;
+            return new IllegalStateException(String.format("Module %s is already installed", moduleName));
         }
         CmsImportParameters parameters = new CmsImportParameters(
                 importPath + File.separator + moduleFilename, "/", true);
 
-        OpenCms.getImportExportManager().importData(getCms(), getReport(), parameters);
-        return true;
+        try {
+            OpenCms.getImportExportManager().importData(cms, report, parameters);
+            if (!moduleManager.hasModule(moduleName)) {
+                // the import reported its errors without throwing them
+                return new IllegalStateException(String.format("Module %s was not installed by its import",
+                        moduleName));
+            }
+            File file = new File(importPath, moduleFilename);
+            CmsModuleFingerprints.getInstance(file.getParentFile()).record(
+                    CmsModuleMetadataIndex.getInstance(file.getParentFile()).getDescriptor(file));
+            return null;
+        } catch (Exception e) {
+            report.println(e);
+            LOG.error(org.opencms.workplace.threads.Messages.get().getBundle().key(
+                    org.opencms.workplace.threads.Messages.ERR_DB_IMPORT_0), e);
+            return e;
+        }
+    }
+
+    /**
+     * Updates an installed module with the resources that changed (see {@link CmsModuleDeltaImporter}).
+     *
+     * @param moduleName     Name of the module to update
+     * @param moduleFilename The filename of the new module
+     * @param cms            the cms context of the import
+     * @param report         the report the import writes to
+     * @return <code>null</code> if the module has been updated, otherwise why it failed
+     */
+    private Exception importDelta(final String moduleName, final String moduleFilename, final CmsObject cms,
+            final I_CmsReport report) {
+        File file = new File(importPath, moduleFilename);
+        try {
+            new CmsModuleDeltaImporter(cms, report).importDelta(file, modules.get(moduleFilename),
+                    moduleManager.getModule(moduleName));
+            CmsModuleFingerprints.getInstance(file.getParentFile()).record(
+                    CmsModuleMetadataIndex.getInstance(file.getParentFile()).getDescriptor(file));
+            return null;
+        } catch (Exception e) {
+            report.println(e);
+            LOG.error(org.opencms.workplace.threads.Messages.get().getBundle().key(
+                    org.opencms.workplace.threads.Messages.ERR_DB_IMPORT_0), e);
+            return e;
+        }
     }
-}
\ No newline at end of file
+}
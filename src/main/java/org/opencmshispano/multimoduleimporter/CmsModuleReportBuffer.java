@@ -0,0 +1,112 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.opencms.report.A_CmsReport;
+import org.opencms.report.I_CmsReport;
+
+/**
+ * Report that keeps everything written to it, to be copied later into another report.
+ * <p>
+ * Used when several modules are imported at the same time: each import writes to its own buffer and
+ * the buffer is copied into the report of the thread when the import ends, so the output of the
+ * modules is not mixed.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleReportBuffer extends A_CmsReport {
+
+    /**
+     * Marker of a line break in the entries.
+     */
+    private static final Object NEWLINE = new Object();
+
+    /**
+     * What has been written: {@link Line}s, {@link #NEWLINE}s and exceptions.
+     */
+    private final List<Object> entries = new ArrayList<Object>();
+
+    /**
+     * Text written with a format.
+     */
+    private static final class Line {
+
+        /** The text. */
+        private final String value;
+
+        /** The format, see the <code>FORMAT_*</code> constants of {@link I_CmsReport}. */
+        private final int format;
+
+        Line(final String value, final int format) {
+            this.value = value;
+            this.format = format;
+        }
+    }
+
+    /**
+     * @param locale   locale of the messages
+     * @param siteRoot site root of the report
+     */
+    public CmsModuleReportBuffer(final Locale locale, final String siteRoot) {
+        init(locale, siteRoot);
+    }
+
+    /**
+     * Writes everything this report holds to another report, in the same order.
+     *
+     * @param report the report to write to
+     */
+    public synchronized void copyTo(final I_CmsReport report) {
+        for (Object entry : entries) {
+            if (entry == NEWLINE) {
+                report.println();
+            } else if (entry instanceof Throwable) {
+                report.println((Throwable) entry);
+            } else {
+                Line line = (Line) entry;
+                report.print(org.opencms.report.Messages.get().container(
+                        org.opencms.report.Messages.RPT_ARGUMENT_1, line.value), line.format);
+            }
+        }
+    }
+
+    /**
+     * The contents are only available through {@link #copyTo(I_CmsReport)}.
+     *
+     * @see org.opencms.report.I_CmsReport#getReportUpdate()
+     */
+    public String getReportUpdate() {
+        return "";
+    }
+
+    /**
+     * @see org.opencms.report.I_CmsReport#println()
+     */
+    public synchronized void println() {
+        entries.add(NEWLINE);
+    }
+
+    /**
+     * @see org.opencms.report.I_CmsReport#println(java.lang.Throwable)
+     */
+    public synchronized void println(final Throwable t) {
+        addError(t.getMessage());
+        entries.add(t);
+    }
+
+    /**
+     * @see org.opencms.report.A_CmsReport#print(java.lang.String, int)
+     */
+    @Override
+    protected synchronized void print(final String value, final int format) {
+        if (format == FORMAT_ERROR) {
+            addError(value);
+        }
+        entries.add(new Line(value, format));
+    }
+}
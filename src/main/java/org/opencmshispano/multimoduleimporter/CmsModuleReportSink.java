@@ -0,0 +1,279 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.report.A_CmsReport;
+import org.opencms.report.CmsHtmlReport;
+
+/**
+ * Report of a {@link CmsModuleMultiImportThread} that uses a bounded amount of memory, however big
+ * the import.
+ * <p>
+ * The {@link CmsHtmlReport} of OpenCms keeps every line of the report until the thread ends, tens of
+ * MB for a large bundle. This report keeps instead:
+ * <ul>
+ * <li>the last lines in a ring buffer, from which {@link #getReportUpdate()} serves the lines not
+ * read yet. A reader that falls too far behind gets a note with the number of lines it missed;</li>
+ * <li>every line with a headline, a warning, an error or an exception in full, as the summary of
+ * every module. These lines are always served, even if they left the ring buffer unread;</li>
+ * <li>the complete report as text in a gzip compressed log file.</li>
+ * </ul>
+ * The lines are formatted by a {@link CmsHtmlReport}, so they look the same as always. It is
+ * replaced every few lines, so it never holds many of them.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleReportSink extends A_CmsReport {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleReportSink.class);
+
+    /**
+     * Lines formatted by the same {@link CmsHtmlReport} before it is replaced.
+     */
+    private static final int FORMATTER_LINES = 500;
+
+    /**
+     * The last lines, as HTML.
+     */
+    private final String[] ring;
+
+    /**
+     * <code>true</code> for the lines of the ring that belong to the summary.
+     */
+    private final boolean[] important;
+
+    /**
+     * Lines of the summary that left the ring before they were read, as HTML.
+     */
+    private final List<String> unread = new ArrayList<String>();
+
+    /**
+     * The summary lines, as text.
+     */
+    private final List<String> summary = new ArrayList<String>();
+
+    /**
+     * The log file.
+     */
+    private final File logFile;
+
+    /**
+     * The compressed log, <code>null</code> if it cannot be written or is closed.
+     */
+    private Writer log;
+
+    /**
+     * Formats the lines; replaced every {@link #FORMATTER_LINES} lines.
+     */
+    private CmsHtmlReport formatter;
+
+    /**
+     * Lines formatted by the current formatter.
+     */
+    private int formatted;
+
+    /**
+     * The current line, as HTML.
+     */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * The current line, as text.
+     */
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * <code>true</code> if the current line belongs to the summary.
+     */
+    private boolean lineImportant;
+
+    /**
+     * Number of lines written.
+     */
+    private long written;
+
+    /**
+     * Number of lines read with {@link #getReportUpdate()}.
+     */
+    private long read;
+
+    /**
+     * Lines that left the ring before they were read and were not reported as omitted yet.
+     */
+    private long omitted;
+
+    /**
+     * @param locale   locale of the messages
+     * @param siteRoot site root of the report
+     * @param lines    number of lines kept for {@link #getReportUpdate()}
+     * @param logFile  the file the complete report is written to, compressed
+     */
+    public CmsModuleReportSink(final Locale locale, final String siteRoot, final int lines, final File logFile) {
+        init(locale, siteRoot);
+        this.ring = new String[Math.max(1, lines)];
+        this.important = new boolean[ring.length];
+        this.logFile = logFile;
+        this.formatter = new CmsHtmlReport(locale, siteRoot);
+        try {
+            logFile.getParentFile().mkdirs();
+            log = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(logFile)),
+                    "UTF-8"));
+        } catch (IOException e) {
+            LOG.warn("Cannot write report log " + logFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the file the complete report is written to
+     */
+    public File getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * @return the lines with a headline, a warning, an error or an exception, as text
+     */
+    public synchronized List<String> getSummary() {
+        return Collections.unmodifiableList(new ArrayList<String>(summary));
+    }
+
+    /**
+     * Returns the lines written since the last call.
+     *
+     * @see org.opencms.report.I_CmsReport#getReportUpdate()
+     */
+    public synchronized String getReportUpdate() {
+        StringBuilder result = new StringBuilder();
+        for (String html : unread) {
+            result.append(html);
+        }
+        unread.clear();
+        if (omitted > 0) {
+            formatter.print(Messages.get().container(Messages.RPT_REPORT_LINES_OMITTED_2, Long.valueOf(omitted),
+                    logFile.getName()), FORMAT_WARNING);
+            formatter.println();
+            result.append(formatter.getReportUpdate());
+            omitted = 0;
+        }
+        for (long i = read; i < written; i++) {
+            result.append(ring[(int) (i % ring.length)]);
+        }
+        read = written;
+        return result.toString();
+    }
+
+    /**
+     * @see org.opencms.report.I_CmsReport#println()
+     */
+    public synchronized void println() {
+        formatter.println();
+        endLine();
+    }
+
+    /**
+     * @see org.opencms.report.I_CmsReport#println(java.lang.Throwable)
+     */
+    public synchronized void println(final Throwable t) {
+        addError(t.getMessage());
+        formatter.println(t);
+        line.append(formatter.getReportUpdate());
+        text.append(t.toString());
+        lineImportant = true;
+        if (log != null) {
+            // the stack trace only goes to the log file
+            t.printStackTrace(new PrintWriter(log));
+        }
+        endLine();
+    }
+
+    /**
+     * @see org.opencms.report.A_CmsReport#print(java.lang.String, int)
+     */
+    @Override
+    protected synchronized void print(final String value, final int format) {
+        if (format == FORMAT_ERROR) {
+            addError(value);
+        }
+        formatter.print(value, format);
+        line.append(formatter.getReportUpdate());
+        text.append(value);
+        lineImportant |= (format == FORMAT_HEADLINE) || (format == FORMAT_WARNING) || (format == FORMAT_ERROR);
+    }
+
+    /**
+     * Closes the log file. Whatever is written afterwards is only kept in memory.
+     */
+    public synchronized void close() {
+        if (line.length() > 0) {
+            endLine();
+        }
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOG.warn("Cannot write report log " + logFile + ": " + e.getMessage(), e);
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Adds the current line to the ring, the summary and the log file.
+     */
+    private void endLine() {
+        line.append(formatter.getReportUpdate());
+        int pos = (int) (written % ring.length);
+        if (written - read >= ring.length) {
+            // the line it replaces was never read
+            if (important[pos]) {
+                unread.add(ring[pos]);
+            } else {
+                omitted++;
+            }
+            read++;
+        }
+        ring[pos] = line.toString();
+        important[pos] = lineImportant;
+        written++;
+        if (lineImportant) {
+            summary.add(text.toString());
+        }
+        if (log != null) {
+            try {
+                log.write(text.toString());
+                log.write('\n');
+            } catch (IOException e) {
+                LOG.warn("Cannot write report log " + logFile + ": " + e.getMessage(), e);
+                log = null;
+            }
+        }
+        line.setLength(0);
+        text.setLength(0);
+        lineImportant = false;
+        if (++formatted >= FORMATTER_LINES) {
+            // the formatter keeps every line it formatted
+            formatter = new CmsHtmlReport(getLocale(), getSiteRoot());
+            formatted = 0;
+        }
+    }
+
+}
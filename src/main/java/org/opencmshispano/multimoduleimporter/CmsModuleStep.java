@@ -0,0 +1,60 @@
+package org.opencmshispano.multimoduleimporter;
+
+/**
+ * A finished step of a module import: the delete of the installed module or the import of the new
+ * one, with the report it wrote.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+final class CmsModuleStep {
+
+    /**
+     * Name of the module.
+     */
+    private final String moduleName;
+
+    /**
+     * <code>true</code> for a delete, <code>false</code> for an import.
+     */
+    private final boolean delete;
+
+    /**
+     * What the step wrote to its report.
+     */
+    private final CmsModuleReportBuffer report;
+
+    /**
+     * @param moduleName name of the module
+     * @param delete     <code>true</code> for a delete, <code>false</code> for an import
+     * @param report     what the step wrote to its report
+     */
+    CmsModuleStep(final String moduleName, final boolean delete, final CmsModuleReportBuffer report) {
+        this.moduleName = moduleName;
+        this.delete = delete;
+        this.report = report;
+    }
+
+    /**
+     * @return the name of the module
+     */
+    String getModuleName() {
+        return moduleName;
+    }
+
+    /**
+     * @return <code>true</code> for a delete, <code>false</code> for an import
+     */
+    boolean isDelete() {
+        return delete;
+    }
+
+    /**
+     * @return what the step wrote to its report
+     */
+    CmsModuleReportBuffer getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,146 @@
+package org.opencmshispano.multimoduleimporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.opencms.main.CmsLog;
+import org.opencms.module.CmsModule;
+import org.opencms.util.CmsFileUtil;
+import org.opencmshispano.multimoduleimporter.util.GrowingFileInputStream;
+
+/**
+ * Scan of a bundle that is still being uploaded.
+ * <p>
+ * A background thread reads the staging file of a chunked upload as it grows. The inner modules are
+ * found through the local headers of the bundle, so each one is extracted and its manifest read as
+ * soon as its bytes have arrived (see {@link CmsModuleBundleIngester#ingest(java.io.InputStream, File, Map)}).
+ * When the last chunk is written, only the tail of the bundle is left to scan.
+ * <p>
+ * The modules are extracted to a folder of the upload, never to the modules folder: an upload that is
+ * never completed, or a bundle that turns out to be damaged, leaves the installed module files alone.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+final class CmsModuleUploadScan {
+
+    /**
+     * The log object for this class.
+     */
+    private static final Log LOG = CmsLog.getLog(CmsModuleUploadScan.class);
+
+    /**
+     * Milliseconds the scan waits for the next chunk before giving up.
+     */
+    private static final long IDLE_TIMEOUT = 30L * 60 * 1000;
+
+    /**
+     * The staging file, as it is written.
+     */
+    private final GrowingFileInputStream stream;
+
+    /**
+     * The scan.
+     */
+    private final FutureTask<Map<String, CmsModule>> task;
+
+    /**
+     * The folder of the upload the modules are extracted to.
+     */
+    private final File folder;
+
+    /**
+     * Hex encoded SHA-256 of every module extracted, by filename. Read only after the scan.
+     */
+    private final Map<String, String> checksums = new HashMap<String, String>();
+
+    /**
+     * Starts scanning a staging file.
+     *
+     * @param staging the staging file of the upload; it must already exist
+     * @param folder  the folder of the upload the modules are extracted to; anything left in it by a
+     *                previous scan is deleted
+     * @throws IOException if the staging file cannot be opened or the folder cannot be created
+     */
+    CmsModuleUploadScan(final File staging, final File folder) throws IOException {
+        this.folder = folder;
+        // a scan restarted, e.g. after a server restart, reads the bundle from its beginning again
+        CmsFileUtil.purgeDirectory(folder);
+        if (!folder.mkdirs()) {
+            throw new IOException("Cannot create upload folder " + folder);
+        }
+        stream = new GrowingFileInputStream(staging, IDLE_TIMEOUT);
+        task = new FutureTask<Map<String, CmsModule>>(new Callable<Map<String, CmsModule>>() {
+
+            public Map<String, CmsModule> call() throws Exception {
+                try {
+                    return CmsModuleBundleIngester.ingest(stream, folder, checksums);
+                } finally {
+                    stream.close();
+                }
+            }
+        });
+        Thread thread = new Thread(task, "multimoduleimporter-scan-" + staging.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the folder of the upload the modules are extracted to
+     */
+    File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 of every module extracted, by filename; complete once
+     * {@link #finish(long)} returned the modules
+     */
+    Map<String, String> getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Reports that more of the staging file is written.
+     *
+     * @param size bytes of the staging file written so far
+     */
+    void setAvailable(final long size) {
+        stream.setAvailable(size);
+    }
+
+    /**
+     * Stops the scan of an upload that will not be completed.
+     */
+    void abort() {
+        stream.abort();
+    }
+
+    /**
+     * Waits for the scan of the complete bundle.
+     *
+     * @param size the final size of the staging file
+     * @return filename -> module of each inner module, or <code>null</code> if the bundle could not be
+     * scanned as a stream, e.g. because an entry has no sizes in its local header
+     */
+    Map<String, CmsModule> finish(final long size) {
+        stream.complete(size);
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            LOG.warn("Bundle could not be scanned while uploaded, it is scanned again", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package org.opencmshispano.multimoduleimporter;
 
 import org.opencms.jsp.CmsJspActionElement;
-import org.opencms.module.CmsModule;
+import org.opencms.main.CmsRuntimeException;
 import org.opencms.report.I_CmsReportThread;
 import org.opencms.workplace.list.A_CmsListReport;
 
@@ -9,7 +9,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.servlet.jsp.PageContext;
-import java.util.Map;
 
 /**
  * Provides a report for imporintg modules.
@@ -27,8 +26,8 @@ public class CmsModulesListMultiReplaceReport extends A_CmsListReport {
      * Action page.
      */
     public static final String MULTI_IMPORT_ACTION_REPORT = "/system/workplace/admin/modules/reports/multi_import.jsp";
-    /** Modules. */
-    private Map<String, CmsModule> modules;
+    /** The import job of the session. */
+    private CmsModuleImportJob job;
 
     /**
      * Public constructor with JSP action element.
@@ -50,8 +49,8 @@ public class CmsModulesListMultiReplaceReport extends A_CmsListReport {
      */
     public CmsModulesListMultiReplaceReport(final PageContext context, final HttpServletRequest req, final HttpServletResponse res, final HttpSession session) {
         this(new CmsJspActionElement(context, req, res));
-        modules = (Map<String, CmsModule>) session.getAttribute(
-                CmsModulesMultiUploadFromHttp.SESSION_ATT_NAME_MODULES_LIST);
+        job = CmsModuleImportJobRegistry.getInstance().getJob(
+                (String) session.getAttribute(CmsModuleImportJobRegistry.SESSION_ATT_NAME_JOB));
     }
 
     /**
@@ -59,7 +58,12 @@ public class CmsModulesListMultiReplaceReport extends A_CmsListReport {
      */
     public I_CmsReportThread initializeThread() {
 
-        I_CmsReportThread multiImportThread = new CmsModuleMultiImportThread(getCms(), modules);
+        if (job == null) {
+            // the job expired or was registered by another server
+            throw new CmsRuntimeException(Messages.get().container(Messages.ERR_IMPORT_JOB_NOT_FOUND_0));
+        }
+        // a report loaded again follows the import already started
+        I_CmsReportThread multiImportThread = job.createReportThread(getCms());
 
         return multiImportThread;
     }
@@ -2,15 +2,14 @@ package org.opencmshispano.multimoduleimporter;
 
 import org.apache.commons.logging.Log;
 import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.i18n.CmsMessageContainer;
 import org.opencms.jsp.CmsJspActionElement;
 import org.opencms.main.*;
 import org.opencms.module.CmsModule;
-import org.opencms.module.CmsModuleImportExportHandler;
 import org.opencms.workplace.administration.A_CmsImportFromHttp;
 import org.opencms.workplace.tools.CmsToolDialog;
 import org.opencms.workplace.tools.CmsToolManager;
 import org.opencms.workplace.tools.modules.CmsModulesList;
-import org.opencmshispano.multimoduleimporter.util.Unzipper;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -20,7 +19,6 @@ import javax.servlet.jsp.PageContext;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.zip.ZipEntry;
 
 /**
  * Workplace tool dialog that provides support for multi-modules HTTP-uploads.
@@ -28,9 +26,10 @@ import java.util.zip.ZipEntry;
  * The dialog renders the browser's native file upload dialog, allowing the user to select a
  * "multi-package" zip bundle that will be uploaded to the server and unzipped.
  * <p>
- * Upon unzipping, the list of modules contained in the multi-package are read
- * and saved in the {@link CmsModulesMultiUploadFromHttp#SESSION_ATT_NAME_MODULES_LIST session}
- * for further processing by the {@link CmsModulesMultiUploadFromHttp#DIALOG_URI dialog jsp}.
+ * While unzipping, the list of modules contained in the multi-package are read
+ * (see {@link CmsModuleBundleIngester}) and registered as a {@link CmsModuleImportJob job}, whose id is
+ * saved in the {@link CmsModuleImportJobRegistry#SESSION_ATT_NAME_JOB session} for further processing
+ * by the {@link CmsModulesListMultiReplaceReport#MULTI_IMPORT_ACTION_REPORT report jsp}.
  * <p>
  *
  * @author Sergio Raposo Vargas
@@ -44,8 +43,6 @@ public class CmsModulesMultiUploadFromHttp extends A_CmsImportFromHttp {
      * */
     public static final String DIALOG_URI = PATH_WORKPLACE + "admin/modules/modules_multi_import.jsp";
 
-    public static final String SESSION_ATT_NAME_MODULES_LIST = "modulesToImport";
-
     /**
      * The log object for this class.
      * */
@@ -99,42 +96,31 @@ public class CmsModulesMultiUploadFromHttp extends A_CmsImportFromHttp {
             return;
         }
 
-        // Descomprimir el zip
-        Unzipper.unzip(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator + CmsSystemInfo.FOLDER_MODULES
-                + File.separator + filename);
-
-        Enumeration zipEntries = Unzipper.getZipEntries(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator
-                + CmsSystemInfo.FOLDER_MODULES + File.separator + filename);
-        Map<String, CmsModule> modules = new HashMap<String,CmsModule>();
-        List<String> zipElementNames = new ArrayList<String>();
-        CmsConfigurationException exception = null;
-        CmsModule module = null;
-
-        while (zipEntries.hasMoreElements()) {
-            zipElementNames.add(((ZipEntry) zipEntries.nextElement()).getName());
-        }
-        Iterator<String> it = zipElementNames.iterator();
-        while (it.hasNext()) {
-            try {
-                String entryName = it.next();
-                module = CmsModuleImportExportHandler.readModuleFromImport(OpenCms.getSystemInfo().getPackagesRfsPath()
-                        + File.separator + CmsSystemInfo.FOLDER_MODULES + File.separator + entryName);
-                modules.put(entryName, module);
-            } catch (CmsConfigurationException e) {
-                LOG.error(e.getMessage());
-                exception = e;
-            }
-        }
-        if (modules.isEmpty() || exception != null) {
+        // Descomprimir el zip y leer el manifest de cada módulo
+        File folder = new File(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator
+                + CmsSystemInfo.FOLDER_MODULES);
+        File bundle = new File(folder, filename);
+        Map<String, CmsModule> modules;
+        try {
+            modules = CmsModuleBundleIngester.ingest(bundle, folder);
+        } catch (CmsConfigurationException e) {
             // log it
             if (LOG.isErrorEnabled()) {
-                if (exception != null) {
-                    LOG.error(exception.getLocalizedMessage(getLocale()), exception);
-                } else {
-                    LOG.error("Null modules");
-                }
+                LOG.error(e.getLocalizedMessage(getLocale()), e);
             } // then throw to avoid blank page telling nothing due to missing forward
-            throw new CmsRuntimeException(exception.getMessageContainer(), exception);
+            throw new CmsRuntimeException(e.getMessageContainer(), e);
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error(e.getLocalizedMessage(), e);
+            }
+            throw new CmsRuntimeException(Messages.get().container(Messages.ERR_ACTION_MODULE_UPLOAD_1, filename), e);
+        }
+        if (modules.isEmpty()) {
+            CmsMessageContainer message = Messages.get().container(Messages.ERR_BUNDLE_NO_MODULES_1, filename);
+            if (LOG.isErrorEnabled()) {
+                LOG.error(message.key(getLocale()));
+            }
+            throw new CmsRuntimeException(message);
         } else  {
             // refresh the list
             Map objects = (Map) getSettings().getListObject();
@@ -144,11 +130,11 @@ public class CmsModulesMultiUploadFromHttp extends A_CmsImportFromHttp {
             Map param = new HashMap();
             param.put(CmsModulesList.PARAM_MODULE, getParamImportfile());
             param.put(PARAM_STYLE, CmsToolDialog.STYLE_NEW);
-            File f = new File(OpenCms.getSystemInfo().getPackagesRfsPath() + File.separator + CmsSystemInfo.FOLDER_MODULES
-                    + File.separator + filename);
-            f.delete();
+            bundle.delete();
             param.put(PARAM_CLOSELINK, CmsToolManager.linkForToolPath(getJsp(), "/modules"));
-            session.setAttribute(SESSION_ATT_NAME_MODULES_LIST, modules);
+            CmsModuleImportJob job = CmsModuleImportJobRegistry.getInstance().register(
+                    new ArrayList<String>(modules.keySet()));
+            session.setAttribute(CmsModuleImportJobRegistry.SESSION_ATT_NAME_JOB, job.getId());
             getToolManager().jspForwardPage(this, CmsModulesListMultiReplaceReport.MULTI_IMPORT_ACTION_REPORT, param);
         }
     }
@@ -22,10 +22,10 @@ import org.opencms.main.CmsRuntimeException;
 import org.opencms.main.OpenCms;
 import org.opencms.module.CmsModule;
 import org.opencms.module.CmsModuleDependency;
-import org.opencms.module.CmsModuleImportExportHandler;
 import org.opencms.module.CmsModuleManager;
+import org.opencms.util.CmsStringUtil;
 import org.opencms.widgets.CmsDisplayWidget;
-import org.opencms.widgets.CmsSelectWidget;
+import org.opencms.widgets.CmsMultiSelectWidget;
 import org.opencms.widgets.CmsSelectWidgetOption;
 import org.opencms.workplace.CmsWidgetDialog;
 import org.opencms.workplace.CmsWidgetDialogParameter;
@@ -37,6 +37,10 @@ import org.opencms.workplace.tools.modules.CmsModulesList;
 /**
  * Class to upload a module from the server.
  * <p>
+ * Several modules can be selected at once: they are then imported as one batch, in dependency
+ * order, by the {@link CmsModuleMultiImportThread} of the {@link CmsModulesListMultiReplaceReport
+ * multi import report}, just as the modules of an uploaded bundle.
+ * <p>
  * 
  * @author Sergio Raposo Vargas
  * 
@@ -145,13 +149,19 @@ public class CmsModulesMultiUploadFromServer extends CmsWidgetDialog {
      */
     public void actionCommit() throws IOException, ServletException {
 
+        List<String> selected = CmsStringUtil.splitAsList(moduleUpload, ',', true);
+        if (selected.size() > 1) {
+            actionCommitBatch(selected);
+            return;
+        }
+
         List errors = new ArrayList();
         CmsModule module = null;
         try {
             String importpath = OpenCms.getSystemInfo().getPackagesRfsPath();
             importpath = OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(
                     importpath + "modules/" + moduleUpload);
-            module = CmsModuleImportExportHandler.readModuleFromImport(importpath);
+            module = CmsModuleManifestReader.read(new File(importpath));
 
             // check if all dependencies are fulfilled
             List dependencies = OpenCms.getModuleManager().checkDependencies(module,
@@ -173,6 +183,9 @@ public class CmsModulesMultiUploadFromServer extends CmsWidgetDialog {
         } catch (CmsConfigurationException e) {
             errors.add(new CmsRuntimeException(Messages.get().container(Messages.ERR_ACTION_MODULE_UPLOAD_1,
                     moduleUpload), e));
+        } catch (IOException e) {
+            errors.add(new CmsRuntimeException(Messages.get().container(Messages.ERR_ACTION_MODULE_UPLOAD_1,
+                    moduleUpload), e));
         }
 
         if ((module != null) && errors.isEmpty()) {
@@ -200,6 +213,52 @@ public class CmsModulesMultiUploadFromServer extends CmsWidgetDialog {
         setCommitErrors(errors);
     }
 
+    /**
+     * Imports several modules of the server as one batch.
+     * <p>
+     * The modules are taken from the index of the modules folder, so their manifests are not read
+     * again. Their dependencies are not checked here: the import thread plans the whole batch and
+     * reports the modules that cannot be imported.
+     *
+     * @param fileNames the file names of the selected modules
+     */
+    private void actionCommitBatch(final List<String> fileNames) throws IOException, ServletException {
+
+        List errors = new ArrayList();
+        Map<String, CmsModuleDescriptor> descriptors = new HashMap<String, CmsModuleDescriptor>();
+        for (CmsModuleDescriptor descriptor : CmsModuleMetadataIndex.getInstance(getModulesFolder()).getModules()) {
+            descriptors.put(descriptor.getFileName(), descriptor);
+        }
+        for (String fileName : fileNames) {
+            if (!descriptors.containsKey(fileName)) {
+                // removed from the folder since the dialog was shown
+                errors.add(new CmsRuntimeException(Messages.get().container(Messages.ERR_ACTION_MODULE_UPLOAD_1,
+                        fileName)));
+            }
+        }
+
+        if (errors.isEmpty()) {
+
+            // refresh the list
+            Map objects = (Map) getSettings().getListObject();
+            if (objects != null) {
+                objects.remove(CmsModulesList.class.getName());
+            }
+
+            // redirect
+            Map param = new HashMap();
+            param.put(PARAM_STYLE, CmsToolDialog.STYLE_NEW);
+            param.put(PARAM_CLOSELINK, CmsToolManager.linkForToolPath(getJsp(), "/modules"));
+            CmsModuleImportJob job = CmsModuleImportJobRegistry.getInstance().register(fileNames);
+            getJsp().getRequest().getSession().setAttribute(CmsModuleImportJobRegistry.SESSION_ATT_NAME_JOB,
+                    job.getId());
+            getToolManager().jspForwardPage(this, CmsModulesListMultiReplaceReport.MULTI_IMPORT_ACTION_REPORT, param);
+        }
+
+        // set the list of errors to display when saving failed
+        setCommitErrors(errors);
+    }
+
     /**
      * Creates the dialog HTML for all defined widgets of the named dialog (page).
      * <p>
@@ -244,8 +303,9 @@ public class CmsModulesMultiUploadFromServer extends CmsWidgetDialog {
             addWidget(new CmsWidgetDialogParameter(this, "moduleupload", PAGES[0], new CmsDisplayWidget(
                     key(Messages.GUI_MODULES_IMPORT_NOT_AVAILABLE_0))));
         } else {
-            // add the file select box widget
-            addWidget(new CmsWidgetDialogParameter(this, "moduleupload", PAGES[0], new CmsSelectWidget(selectOptions)));
+            // add the file select box widget; several modules are imported as one batch
+            addWidget(new CmsWidgetDialogParameter(this, "moduleupload", PAGES[0], new CmsMultiSelectWidget(
+                    selectOptions)));
         }
     }
 
@@ -259,32 +319,27 @@ public class CmsModulesMultiUploadFromServer extends CmsWidgetDialog {
 
         List result = new ArrayList();
 
-        // get the systems-exportpath
-        String exportpath = OpenCms.getSystemInfo().getPackagesRfsPath();
-        exportpath = OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(exportpath + "modules");
-        File folder = new File(exportpath);
-
-        // get a list of all files
-        String[] list = folder.list();
-        for (int i = 0; i < list.length; i++) {
-            try {
-                File diskFile = new File(exportpath, list[i]);
-                // check if it is a file and ends with zip -> this is a module
-                if (diskFile.isFile() && diskFile.getName().endsWith(".zip")) {
-                    result.add(new CmsSelectWidgetOption(diskFile.getName()));
-                } else if (diskFile.isDirectory() && ((new File(diskFile + File.separator + "manifest.xml")).exists())) {
-                    // this is a folder with manifest file -> this a module
-                    result.add(new CmsSelectWidgetOption(diskFile.getName()));
-                }
-            } catch (Throwable t) {
-                log.info("");
-            }
+        // the index is kept up to date in the background: rendering the dialog does not read the folder
+        CmsModuleMetadataIndex index = CmsModuleMetadataIndex.getInstance(getModulesFolder());
+        index.watch(CmsModuleImportSettings.getIndexRescanInterval());
+        for (CmsModuleDescriptor descriptor : index.getModules()) {
+            result.add(new CmsSelectWidgetOption(descriptor.getFileName()));
         }
 
         Collections.sort(result, new ComparatorSelectWidgetOption());
         return result;
     }
 
+    /**
+     * @return the folder with the modules available on the server
+     */
+    private static File getModulesFolder() {
+
+        // get the systems-exportpath
+        String exportpath = OpenCms.getSystemInfo().getPackagesRfsPath();
+        return new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(exportpath + "modules"));
+    }
+
     /**
      * Gets the module parameter.
      * <p>
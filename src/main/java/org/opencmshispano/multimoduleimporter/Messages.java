@@ -26,6 +26,16 @@ public final class Messages extends A_CmsMessageBundle {
      */
     public static final String GUI_MULTIIMPORTMODULE_ADMIN_TOOL_HELP_0 = "GUI_MULTIIMPORTMODULE_ADMIN_TOOL_HELP_0";
 
+    /**
+     * GUI_MULTIIMPORTMODULE_SERVER_ADMIN_TOOL_NAME_0=Importar varios módulos del servidor.
+     */
+    public static final String GUI_MULTIIMPORTMODULE_SERVER_ADMIN_TOOL_NAME_0 = "GUI_MULTIIMPORTMODULE_SERVER_ADMIN_TOOL_NAME_0";
+
+    /**
+     * Importar a la vez varios módulos disponibles en el servidor, en orden de dependencias.
+     */
+    public static final String GUI_MULTIIMPORTMODULE_SERVER_ADMIN_TOOL_HELP_0 = "GUI_MULTIIMPORTMODULE_SERVER_ADMIN_TOOL_HELP_0";
+
     /**
      * Nombre del recurso que contendrá los mensajes del modulo.
      */
@@ -42,6 +52,172 @@ public final class Messages extends A_CmsMessageBundle {
 
 	public static final String GUI_MODULES_IMPORT_NOT_AVAILABLE_0 = "GUI_MODULES_IMPORT_NOT_AVAILABLE_0";
 
+    /**
+     * "{0}" no es un módulo: no contiene manifest.xml.
+     */
+    public static final String ERR_BUNDLE_NO_MANIFEST_1 = "ERR_BUNDLE_NO_MANIFEST_1";
+
+    /**
+     * El fichero "{0}" no contiene ningún módulo.
+     */
+    public static final String ERR_BUNDLE_NO_MODULES_1 = "ERR_BUNDLE_NO_MODULES_1";
+
+    /**
+     * El fichero "{0}" está dañado y no se ha importado: {1}.
+     */
+    public static final String ERR_BUNDLE_CORRUPT_2 = "ERR_BUNDLE_CORRUPT_2";
+
+    /**
+     * No se encuentra la importación: ha caducado o se inició en otro servidor.
+     */
+    public static final String ERR_IMPORT_JOB_NOT_FOUND_0 = "ERR_IMPORT_JOB_NOT_FOUND_0";
+
+    /**
+     * La importación de estos módulos ya se ha realizado. Vuelva a subir los módulos para importarlos de nuevo.
+     */
+    public static final String ERR_IMPORT_JOB_STARTED_0 = "ERR_IMPORT_JOB_STARTED_0";
+
+    /**
+     * Manifest incorrecto en "{0}": {1}.
+     */
+    public static final String ERR_MANIFEST_INVALID_2 = "ERR_MANIFEST_INVALID_2";
+
+    /**
+     * El módulo "{0}" necesita "{1}" versión {2} o superior, que no está en la importación ni instalado.
+     */
+    public static final String RPT_MODULE_DEPENDENCY_MISSING_3 = "RPT_MODULE_DEPENDENCY_MISSING_3";
+
+    /**
+     * Dependencia circular entre los módulos {0}.
+     */
+    public static final String RPT_MODULE_DEPENDENCY_CYCLE_1 = "RPT_MODULE_DEPENDENCY_CYCLE_1";
+
+    /**
+     * El módulo "{0}" no se importará porque depende de "{1}", que no se puede importar.
+     */
+    public static final String RPT_MODULE_BLOCKED_2 = "RPT_MODULE_BLOCKED_2";
+
+    /**
+     * Se importarán {0} módulos en {1} niveles de dependencias.
+     */
+    public static final String RPT_IMPORT_PLAN_2 = "RPT_IMPORT_PLAN_2";
+
+    /**
+     * El módulo "{0}" versión {1} no ha cambiado y no se vuelve a importar.
+     */
+    public static final String RPT_MODULE_UNCHANGED_2 = "RPT_MODULE_UNCHANGED_2";
+
+    /**
+     * Importación parcial del módulo "{0}": {1} recursos nuevos o modificados, {2} eliminados, {3} sin cambios.
+     */
+    public static final String RPT_DELTA_IMPORT_4 = "RPT_DELTA_IMPORT_4";
+
+    /**
+     * Eliminando {0}, que ya no forma parte del módulo.
+     */
+    public static final String RPT_DELTA_RESOURCE_DELETED_1 = "RPT_DELTA_RESOURCE_DELETED_1";
+
+    /**
+     * Borrando los módulos del nivel {0} ({1} módulos).
+     */
+    public static final String RPT_DELETE_LEVEL_2 = "RPT_DELETE_LEVEL_2";
+
+    /**
+     * Borrando los recursos del módulo "{0}".
+     */
+    public static final String RPT_DELETE_MODULE_RESOURCES_1 = "RPT_DELETE_MODULE_RESOURCES_1";
+
+    /**
+     * Borrando {0}.
+     */
+    public static final String RPT_DELETE_RESOURCE_1 = "RPT_DELETE_RESOURCE_1";
+
+    /**
+     * El informe completo se escribe en {0}.
+     */
+    public static final String RPT_REPORT_LOG_1 = "RPT_REPORT_LOG_1";
+
+    /**
+     * En cola detrás de {0} importación(es): {1}.
+     */
+    public static final String RPT_JOB_QUEUED_2 = "RPT_JOB_QUEUED_2";
+
+    /**
+     * La importación empieza tras esperar {0} s.
+     */
+    public static final String RPT_JOB_STARTED_1 = "RPT_JOB_STARTED_1";
+
+    /**
+     * Importación cancelada mientras esperaba en la cola.
+     */
+    public static final String RPT_JOB_CANCELLED_0 = "RPT_JOB_CANCELLED_0";
+
+    /**
+     * Actualizando una sola vez los índices de búsqueda {0} para el lote ({1} publicaciones retenidas).
+     */
+    public static final String RPT_BATCH_REBUILD_INDEXES_2 = "RPT_BATCH_REBUILD_INDEXES_2";
+
+    /**
+     * Actualizando los índices de búsqueda con {0} de las {1} publicaciones retenidas, las demás se volvieron a publicar después.
+     */
+    public static final String RPT_BATCH_UPDATE_INDEXES_2 = "RPT_BATCH_UPDATE_INDEXES_2";
+
+    /**
+     * Vaciando la caché de JSP.
+     */
+    public static final String RPT_BATCH_CLEAR_FLEX_CACHE_0 = "RPT_BATCH_CLEAR_FLEX_CACHE_0";
+
+    /**
+     * La importación {0} se interrumpió antes de terminar. Módulos sin terminar: {1}.
+     */
+    public static final String RPT_JOURNAL_INTERRUPTED_2 = "RPT_JOURNAL_INTERRUPTED_2";
+
+    /**
+     * Reintentando la importación de {0} (intento {1} de {2}).
+     */
+    public static final String RPT_MODULE_RETRY_3 = "RPT_MODULE_RETRY_3";
+
+    /**
+     * {0} ha fallado: no se importan los módulos que dependen de él: {1}.
+     */
+    public static final String RPT_DEPENDENTS_SKIPPED_2 = "RPT_DEPENDENTS_SKIPPED_2";
+
+    /**
+     * {0} no se importa porque ha fallado {1}, del que depende.
+     */
+    public static final String RPT_MODULE_DEPENDENCY_FAILED_2 = "RPT_MODULE_DEPENDENCY_FAILED_2";
+
+    /**
+     * {0} sigue instalado tras su borrado: no se vuelve a importar, los módulos que dependen de él usan la versión
+     * instalada.
+     */
+    public static final String RPT_MODULE_STILL_INSTALLED_1 = "RPT_MODULE_STILL_INSTALLED_1";
+
+    /**
+     * Los módulos o los módulos instalados han cambiado desde que se planificó la importación, se vuelve a planificar.
+     */
+    public static final String RPT_PLAN_OUTDATED_0 = "RPT_PLAN_OUTDATED_0";
+
+    /**
+     * Se borran {0} módulos instalados antes de importarlos: {1}.
+     */
+    public static final String RPT_PLAN_DELETE_2 = "RPT_PLAN_DELETE_2";
+
+    /**
+     * Nivel de dependencias {0}: {1}.
+     */
+    public static final String RPT_PLAN_WAVE_2 = "RPT_PLAN_WAVE_2";
+
+    /**
+     * Los módulos que se importan contienen {0} recursos, {1} KB comprimidos.
+     */
+    public static final String RPT_PLAN_SIZE_2 = "RPT_PLAN_SIZE_2";
+
+    /**
+     * ... {0} líneas omitidas, ver {1}.
+     */
+    public static final String RPT_REPORT_LINES_OMITTED_2 = "RPT_REPORT_LINES_OMITTED_2";
+
     /**
      * Constructor por defecto de la clase.
      */
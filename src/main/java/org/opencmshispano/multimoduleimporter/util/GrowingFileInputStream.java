@@ -0,0 +1,165 @@
+package org.opencmshispano.multimoduleimporter.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Input stream over a file that is still being written.
+ * <p>
+ * The writer reports with {@link #setAvailable(long)} how many bytes of the file are already
+ * written, and the reader blocks until the bytes it needs are there. When the writer calls
+ * {@link #complete(long)}, the stream ends at the final size. If the writer gives up
+ * ({@link #abort()}) or nothing is written for too long, reading fails.
+ * <p>
+ * Used to read a bundle while it is still being uploaded.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class GrowingFileInputStream extends InputStream {
+
+    /**
+     * The file being read.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Milliseconds a read waits for new bytes before failing.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Bytes of the file that can be read.
+     */
+    private long available;
+
+    /**
+     * Position of the next byte to read.
+     */
+    private long position;
+
+    /**
+     * <code>true</code> once <code>available</code> is the final size of the file.
+     */
+    private boolean complete;
+
+    /**
+     * <code>true</code> if the writer gave up.
+     */
+    private boolean aborted;
+
+    /**
+     * @param file        the file being written; it must already exist
+     * @param idleTimeout milliseconds a read waits for new bytes before failing
+     * @throws IOException if the file cannot be opened
+     */
+    public GrowingFileInputStream(final File file, final long idleTimeout) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Reports that the first <code>size</code> bytes of the file are written.
+     *
+     * @param size bytes written so far
+     */
+    public synchronized void setAvailable(final long size) {
+        if (size > available) {
+            available = size;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reports that the file is complete.
+     *
+     * @param size the final size of the file
+     */
+    public synchronized void complete(final long size) {
+        available = size;
+        complete = true;
+        notifyAll();
+    }
+
+    /**
+     * Reports that the file will never be completed: pending and later reads fail.
+     */
+    public synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until there are bytes to read.
+     *
+     * @return the bytes that can be read without waiting, <code>0</code> at the end of the file
+     */
+    private synchronized long await() throws IOException {
+        long deadline = System.currentTimeMillis() + idleTimeout;
+        while (!aborted && !complete && (position >= available)) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new IOException("No data written for " + idleTimeout + " ms");
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for data");
+            }
+        }
+        if (aborted) {
+            throw new IOException("The file was not completed");
+        }
+        return Math.max(0, available - position);
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long ready = await();
+        if (ready == 0) {
+            return -1;
+        }
+        file.seek(position);
+        int n = file.read(b, off, (int) Math.min(len, ready));
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, available - position));
+    }
+
+    /**
+     * @see java.io.InputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,113 @@
+package org.opencmshispano.multimoduleimporter.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream that copies every byte read from the source stream to a second output stream.
+ * <p>
+ * Used to write an inner module to disk while its contents are being parsed, so that the data is
+ * only read once. Closing this stream closes the copy, but not the source stream, which still
+ * belongs to the caller.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    /**
+     * Size of the buffer used to drain the source stream.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Stream receiving the copy of the data.
+     */
+    private final OutputStream copy;
+
+    /**
+     * @param source the stream to read from
+     * @param copy   the stream receiving every byte read from <code>source</code>
+     */
+    public TeeInputStream(final InputStream source, final OutputStream copy) {
+        super(source);
+        this.copy = copy;
+    }
+
+    /**
+     * @see java.io.FilterInputStream#read()
+     */
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            copy.write(b);
+        }
+        return b;
+    }
+
+    /**
+     * @see java.io.FilterInputStream#read(byte[], int, int)
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            copy.write(b, off, n);
+        }
+        return n;
+    }
+
+    /**
+     * Skipped bytes are read as well, so that they also reach the copy.
+     *
+     * @see java.io.FilterInputStream#skip(long)
+     */
+    @Override
+    public long skip(final long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int len = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (len < 0) {
+                break;
+            }
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads the rest of the source stream, so that the copy is complete.
+     *
+     * @throws IOException upon error reading or writing
+     */
+    public void drain() throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (read(buffer, 0, buffer.length) >= 0) {
+            // the bytes are already copied by read()
+        }
+    }
+
+    /**
+     * @see java.io.FilterInputStream#markSupported()
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Closes the copy. The source stream is left open.
+     *
+     * @see java.io.FilterInputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+        copy.close();
+    }
+}
@@ -1,74 +1,387 @@
 package org.opencmshispano.multimoduleimporter.util;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Enumeration;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import org.opencms.main.CmsSystemInfo;
-import org.opencms.main.OpenCms;
+import java.util.zip.ZipException;
 
 /**
  * Utility class to unzip files.
- * 
+ * <p>
+ * Entries are extracted concurrently on a bounded pool of worker threads. The entries are found
+ * through the central directory read by {@link ZipDirectory}, and every worker reads its
+ * entry with positional reads on the shared {@link FileChannel}: stored entries are copied and
+ * deflated entries are inflated through large buffers and written with
+ * {@link FileChannel#write(ByteBuffer)}.
+ * <p>
+ * Every entry is verified while it is written, without reading it again: the CRC-32 and the size of
+ * the data must match the central directory, and its SHA-256 can be computed on the way. If any
+ * entry is broken the other workers are stopped, and once they have stopped the files already
+ * extracted are deleted.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
  */
 public final class Unzipper {
 
-    public static void unzip(final String filepath) {
-        Enumeration entries;
-        ZipFile zipFile;
+    /**
+     * Maximum number of worker threads.
+     */
+    public static final int MAX_THREADS = 16;
 
-        try {
-            zipFile = new ZipFile(filepath);
+    /**
+     * Size of the read and write buffers of every worker.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Milliseconds to wait for the workers to stop after a broken entry.
+     */
+    private static final long TERMINATION_TIMEOUT = 60000L;
 
-            entries = zipFile.entries();
+    /**
+     * Extracts all entries of a zip file, using one worker per available processor.
+     *
+     * @param zip    the zip file
+     * @param folder the folder the entries are extracted to
+     * @return entry name -> extracted file, in the order of the zip file
+     * @throws IOException upon error reading the zip file or writing an entry
+     */
+    public static Map<String, File> unzip(final File zip, final File folder) throws IOException {
+        return unzip(zip, folder, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+    }
+
+    /**
+     * Extracts all entries of a zip file using one worker per available processor, computing the
+     * SHA-256 of every entry while it is written.
+     *
+     * @param zip     the zip file
+     * @param folder  the folder the entries are extracted to
+     * @param digests receives entry name -> SHA-256 of the extracted data
+     * @return entry name -> extracted file, in the order of the zip file
+     * @throws IOException upon error reading the zip file or writing an entry; a {@link ZipException} if an
+     * entry does not match its CRC-32 or size
+     */
+    public static Map<String, File> unzip(final File zip, final File folder, final Map<String, byte[]> digests)
+            throws IOException {
+        return unzip(zip, folder, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS), digests);
+    }
 
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = (ZipEntry) entries.nextElement();
+    /**
+     * Extracts all entries of a zip file.
+     *
+     * @param zip     the zip file
+     * @param folder  the folder the entries are extracted to
+     * @param threads maximum number of entries extracted at the same time
+     * @return entry name -> extracted file, in the order of the zip file
+     * @throws IOException upon error reading the zip file or writing an entry
+     */
+    public static Map<String, File> unzip(final File zip, final File folder, final int threads) throws IOException {
+        return unzip(zip, folder, threads, null);
+    }
 
+    /**
+     * Extracts all entries of a zip file, computing the SHA-256 of every entry while it is written.
+     *
+     * @param zip     the zip file
+     * @param folder  the folder the entries are extracted to
+     * @param threads maximum number of entries extracted at the same time
+     * @param digests receives entry name -> SHA-256 of the extracted data; <code>null</code> if not needed
+     * @return entry name -> extracted file, in the order of the zip file
+     * @throws IOException upon error reading the zip file or writing an entry; a {@link ZipException} if an
+     * entry does not match its CRC-32 or size
+     */
+    public static Map<String, File> unzip(final File zip, final File folder, final int threads,
+            final Map<String, byte[]> digests) throws IOException {
+        final ZipDirectory directory = ZipDirectory.open(zip);
+        Map<String, File> result = new LinkedHashMap<String, File>();
+        final List<File> written = Collections.synchronizedList(new ArrayList<File>());
+        boolean done = false;
+        try {
+            List<ZipDirectory.Entry> entries = new ArrayList<ZipDirectory.Entry>();
+            for (ZipDirectory.Entry entry : directory.getEntries()) {
+                File target = resolve(folder, entry.getName());
                 if (entry.isDirectory()) {
-                    // Assume directories are stored parents first then children.
-                    // This is not robust, just for demonstration purposes.
-                    (new File(entry.getName())).mkdir();
-                    continue;
+                    target.mkdirs();
+                } else {
+                    target.getParentFile().mkdirs();
+                    result.put(entry.getName(), target);
+                    entries.add(entry);
+                }
+            }
+            // biggest entries first, so that a big module does not start last and extend the run
+            Collections.sort(entries, new Comparator<ZipDirectory.Entry>() {
+
+                public int compare(final ZipDirectory.Entry e1, final ZipDirectory.Entry e2) {
+                    return e1.getCompressedSize() < e2.getCompressedSize() ? 1
+                            : (e1.getCompressedSize() == e2.getCompressedSize() ? 0 : -1);
+                }
+            });
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, entries.size())));
+            try {
+                List<Future<byte[]>> tasks = new ArrayList<Future<byte[]>>(entries.size());
+                for (final ZipDirectory.Entry entry : entries) {
+                    final File target = result.get(entry.getName());
+                    tasks.add(pool.submit(new Callable<byte[]>() {
+
+                        public byte[] call() throws IOException {
+                            written.add(target);
+                            return extract(directory, entry, target, digests != null ? newDigest() : null);
+                        }
+                    }));
+                }
+                for (int i = 0; i < tasks.size(); i++) {
+                    byte[] digest = tasks.get(i).get();
+                    if (digests != null) {
+                        digests.put(entries.get(i).getName(), digest);
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                IOException ioe = new IOException("Error unzipping " + zip);
+                ioe.initCause(e.getCause());
+                throw ioe;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while unzipping " + zip);
+            } finally {
+                pool.shutdownNow();
+                // a worker still writing its entry must not add it after the clean up
+                awaitTermination(pool);
+            }
+            done = true;
+            return result;
+        } finally {
+            directory.close();
+            if (!done) {
+                // nothing of a broken zip is left behind
+                synchronized (written) {
+                    for (File target : written) {
+                        target.delete();
+                    }
                 }
+            }
+        }
+    }
+
+    /**
+     * Waits until the workers of a pool have stopped, even if this thread is interrupted.
+     */
+    private static void awaitTermination(final ExecutorService pool) {
+        boolean interrupted = false;
+        long deadline = System.currentTimeMillis() + TERMINATION_TIMEOUT;
+        long wait = TERMINATION_TIMEOUT;
+        while (!pool.isTerminated() && (wait > 0)) {
+            try {
+                pool.awaitTermination(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            wait = deadline - System.currentTimeMillis();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fails if the worker was stopped because another entry is broken.
+     */
+    private static void checkInterrupted(final ZipDirectory.Entry entry) throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Stopped extracting " + entry.getName());
+        }
+    }
+
+    /**
+     * Writes the data of one entry to its target file and checks its CRC-32 and size.
+     *
+     * @param digest updated with the data of the entry, <code>null</code> if not needed
+     * @return the SHA-256 of the entry, <code>null</code> without digest
+     */
+    private static byte[] extract(final ZipDirectory directory, final ZipDirectory.Entry entry, final File target,
+            final MessageDigest digest) throws IOException {
 
-                copyInputStream(zipFile.getInputStream(entry), new BufferedOutputStream(new FileOutputStream(OpenCms.getSystemInfo().getPackagesRfsPath()
-                        + File.separator + CmsSystemInfo.FOLDER_MODULES + File.separator + entry.getName())));
+        if (entry.isEncrypted()) {
+            throw new ZipException("Encrypted entries are not supported: " + entry.getName());
+        }
+        FileChannel channel = directory.getChannel();
+        long position = directory.getDataOffset(entry);
+        FileChannel out = new FileOutputStream(target).getChannel();
+        CRC32 crc = new CRC32();
+        long size;
+        try {
+            switch (entry.getMethod()) {
+                case ZipEntry.STORED:
+                    if (entry.getCompressedSize() != entry.getSize()) {
+                        throw new ZipException("Invalid size of stored entry " + entry.getName());
+                    }
+                    size = copy(channel, position, entry, out, crc, digest);
+                    break;
+                case ZipEntry.DEFLATED:
+                    size = inflate(channel, position, entry, out, crc, digest);
+                    break;
+                default:
+                    throw new ZipException("Unsupported compression method " + entry.getMethod() + " for entry "
+                            + entry.getName());
             }
+        } finally {
+            out.close();
+        }
+        if (size != entry.getSize()) {
+            throw new ZipException("Invalid size of entry " + entry.getName() + ": " + size + " bytes instead of "
+                    + entry.getSize());
+        }
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException("Invalid CRC-32 of entry " + entry.getName());
+        }
+        return digest != null ? digest.digest() : null;
+    }
 
-            zipFile.close();
-        } catch (IOException ioe) {
-            System.err.println("Unhandled exception:");
-            ioe.printStackTrace();
-            return;
+    /**
+     * Copies the data of a stored entry. The data passes through the heap: its CRC-32 is computed on
+     * the way.
+     *
+     * @return the number of bytes copied
+     */
+    private static long copy(final FileChannel in, final long position, final ZipDirectory.Entry entry,
+            final FileChannel out, final CRC32 crc, final MessageDigest digest) throws IOException {
+
+        byte[] data = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long count = entry.getSize();
+        long done = 0;
+        while (done < count) {
+            checkInterrupted(entry);
+            buffer.clear();
+            buffer.limit((int) Math.min(data.length, count - done));
+            int n = in.read(buffer, position + done);
+            if (n <= 0) {
+                throw new ZipException("Unexpected end of entry " + entry.getName());
+            }
+            update(data, n, crc, digest);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            done += n;
         }
+        return done;
     }
 
-    public static void copyInputStream(final InputStream in, final OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        int len;
+    /**
+     * Inflates the data of a deflated entry.
+     *
+     * @return the number of bytes inflated
+     */
+    private static long inflate(final FileChannel in, final long position, final ZipDirectory.Entry entry,
+            final FileChannel out, final CRC32 crc, final MessageDigest digest) throws IOException {
 
-        while ((len = in.read(buffer)) >= 0) {
-            out.write(buffer, 0, len);
+        byte[] input = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE];
+        ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        Inflater inflater = new Inflater(true);
+        long size = 0;
+        try {
+            long read = 0;
+            boolean padded = false;
+            while (!inflater.finished()) {
+                checkInterrupted(entry);
+                if (inflater.needsInput()) {
+                    if (read < entry.getCompressedSize()) {
+                        inputBuffer.clear();
+                        inputBuffer.limit((int) Math.min(input.length, entry.getCompressedSize() - read));
+                        int n = in.read(inputBuffer, position + read);
+                        if (n < 0) {
+                            throw new ZipException("Unexpected end of entry " + entry.getName());
+                        }
+                        inflater.setInput(input, 0, n);
+                        read += n;
+                    } else if (!padded) {
+                        // an inflater without zlib header may need one extra dummy byte at the very end
+                        inflater.setInput(new byte[1]);
+                        padded = true;
+                    } else {
+                        throw new ZipException("Unexpected end of entry " + entry.getName());
+                    }
+                }
+                int len = inflater.inflate(output);
+                if (len > 0) {
+                    update(output, len, crc, digest);
+                    size += len;
+                    ByteBuffer outputBuffer = ByteBuffer.wrap(output, 0, len);
+                    while (outputBuffer.hasRemaining()) {
+                        out.write(outputBuffer);
+                    }
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("Invalid deflated data in entry " + entry.getName());
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflated data in entry " + entry.getName() + ": " + e.getMessage());
+        } finally {
+            inflater.end();
         }
+        return size;
+    }
 
-        in.close();
-        out.close();
+    /**
+     * Adds the first <code>len</code> bytes of <code>data</code> to the checksums.
+     */
+    private static void update(final byte[] data, final int len, final CRC32 crc, final MessageDigest digest) {
+        crc.update(data, 0, len);
+        if (digest != null) {
+            digest.update(data, 0, len);
+        }
     }
 
-    public static Enumeration getZipEntries(final String filepath) {
+    /**
+     * @return a new SHA-256 digest
+     */
+    private static MessageDigest newDigest() {
         try {
-            return (new ZipFile(filepath)).entries();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides SHA-256
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the file for <code>entryName</code> inside <code>folder</code>, refusing names that escape it
+     */
+    private static File resolve(final File folder, final String entryName) throws IOException {
+        File target = new File(folder, entryName);
+        if (!target.getCanonicalPath().startsWith(folder.getCanonicalPath() + File.separator)) {
+            throw new ZipException("Entry outside of the target folder: " + entryName);
         }
+        return target;
     }
 
     private Unzipper() {
@@ -0,0 +1,487 @@
+package org.opencmshispano.multimoduleimporter.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reader for zip files based on their central directory.
+ * <p>
+ * Only the end of the file and the central directory are read, with positional reads into heap
+ * buffers, so opening even a huge bundle costs one small read, and any entry can then be read by
+ * name without scanning the archive. Nothing is memory-mapped: a mapping would keep the file locked
+ * on Windows until it is garbage collected, long after {@link #close()}, and the bundle could not be
+ * deleted.
+ * ZIP64 archives (more than 65535 entries or entries and offsets beyond 4 GB) are supported.
+ * <p>
+ * Unlike {@link java.util.zip.ZipFile} it exposes where the data of every entry starts, so entries
+ * can be copied with positional reads (or <code>transferTo</code>) from several threads at once.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public final class ZipDirectory implements Closeable {
+
+    /**
+     * An entry of the central directory.
+     */
+    public static final class Entry {
+
+        /** Entry name. */
+        private final String name;
+
+        /** Compression method. */
+        private final int method;
+
+        /** General purpose flags. */
+        private final int flags;
+
+        /** CRC-32 of the uncompressed data. */
+        private final long crc;
+
+        /** Compressed size. */
+        private final long compressedSize;
+
+        /** Uncompressed size. */
+        private final long size;
+
+        /** Offset of the local file header. */
+        private final long localHeaderOffset;
+
+        Entry(final String name, final int method, final int flags, final long crc, final long compressedSize,
+                final long size, final long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * @return the entry name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the compression method ({@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED})
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the CRC-32 of the uncompressed data
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return the compressed size
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return the uncompressed size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return <code>true</code> if the entry is a directory
+         */
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /**
+         * @return <code>true</code> if the entry is encrypted
+         */
+        public boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+    }
+
+    /**
+     * Stream over a range of the zip file, read with positional reads so that several streams can
+     * be open at the same time.
+     */
+    private final class RangeInputStream extends InputStream {
+
+        /** Next position to read. */
+        private long position;
+
+        /** End of the range. */
+        private final long end;
+
+        RangeInputStream(final long position, final long length) {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        /**
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        /**
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new ZipException("Unexpected end of zip file");
+            }
+            position += n;
+            return n;
+        }
+    }
+
+    /** End of central directory signature. */
+    private static final int EOCD_SIG = 0x06054b50;
+
+    /** ZIP64 end of central directory signature. */
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+
+    /** ZIP64 end of central directory locator signature. */
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    /** Central directory file header signature. */
+    private static final int CEN_SIG = 0x02014b50;
+
+    /** Local file header signature. */
+    private static final int LOC_SIG = 0x04034b50;
+
+    /** Size of the end of central directory record without comment. */
+    private static final int EOCD_SIZE = 22;
+
+    /** Size of the ZIP64 end of central directory locator. */
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    /** Size of the fixed part of the ZIP64 end of central directory record. */
+    private static final int ZIP64_EOCD_SIZE = 56;
+
+    /** Size of the fixed part of a central directory file header. */
+    private static final int CEN_SIZE = 46;
+
+    /** Size of the fixed part of a local file header. */
+    private static final int LOC_SIZE = 30;
+
+    /** Maximum length of the zip file comment. */
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    /** Header id of the ZIP64 extended information extra field. */
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    /** Value of a 16 bit field whose real value is in the ZIP64 records. */
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /** Value of a 32 bit field whose real value is in the ZIP64 records. */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /** Size of the inflater input buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Encoding of the entry names, the same {@link java.util.zip.ZipFile} uses. */
+    private static final String NAME_ENCODING = "UTF-8";
+
+    /** The zip file. */
+    private final RandomAccessFile file;
+
+    /** Channel of the zip file. */
+    private final FileChannel channel;
+
+    /** The entries, in central directory order. */
+    private final List<Entry> entries;
+
+    /** Entry name -> entry. */
+    private final Map<String, Entry> index;
+
+    private ZipDirectory(final RandomAccessFile file, final List<Entry> entries) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.entries = entries;
+        this.index = new HashMap<String, Entry>(entries.size() * 2);
+        for (Entry entry : entries) {
+            index.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Opens a zip file and reads its central directory.
+     *
+     * @param zip the zip file
+     * @return the opened zip file, to be closed by the caller
+     * @throws IOException upon error reading the file, or if it is not a zip file
+     */
+    public static ZipDirectory open(final File zip) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(zip, "r");
+        try {
+            return new ZipDirectory(file, readEntries(file.getChannel()));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            // a corrupt directory can make the buffers throw
+            file.close();
+            ZipException ze = new ZipException("Invalid zip file " + zip);
+            ze.initCause(e);
+            throw ze;
+        }
+    }
+
+    /**
+     * @return the entries, in central directory order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @param name the entry name
+     * @return the entry, or <code>null</code> if there is none with that name
+     */
+    public Entry getEntry(final String name) {
+        return index.get(name);
+    }
+
+    /**
+     * @return the channel of the zip file, shared by all readers
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the position where the data of an entry starts, reading its local file header.
+     *
+     * @param entry the entry
+     * @return the position of the first data byte
+     * @throws IOException upon error reading the file or if the local header is invalid
+     */
+    public long getDataOffset(final Entry entry) throws IOException {
+        ByteBuffer loc = read(channel, entry.localHeaderOffset, LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIG) {
+            throw new ZipException("Invalid local header for entry " + entry.getName());
+        }
+        int nameLength = loc.getShort(26) & 0xFFFF;
+        int extraLength = loc.getShort(28) & 0xFFFF;
+        return entry.localHeaderOffset + LOC_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Checks the structure of the zip file without reading the data of its entries: every entry has
+     * a valid local header, a supported compression method and data that ends within the file. A
+     * truncated or spliced zip fails here even if its central directory is intact.
+     *
+     * @throws IOException upon error reading the file; a {@link ZipException} if the structure is invalid
+     */
+    public void verify() throws IOException {
+        long fileSize = channel.size();
+        for (Entry entry : entries) {
+            if (entry.isEncrypted()) {
+                throw new ZipException("Encrypted entries are not supported: " + entry.getName());
+            }
+            if ((entry.getMethod() != ZipEntry.STORED) && (entry.getMethod() != ZipEntry.DEFLATED)) {
+                throw new ZipException("Unsupported compression method " + entry.getMethod() + " for entry "
+                        + entry.getName());
+            }
+            if (getDataOffset(entry) + entry.getCompressedSize() > fileSize) {
+                throw new ZipException("Truncated entry " + entry.getName());
+            }
+        }
+    }
+
+    /**
+     * Opens the uncompressed data of an entry. Several streams may be open at the same time.
+     *
+     * @param entry the entry
+     * @return the uncompressed data, to be closed by the caller
+     * @throws IOException upon error reading the file or if the entry cannot be read
+     */
+    public InputStream getInputStream(final Entry entry) throws IOException {
+        if (entry.isEncrypted()) {
+            throw new ZipException("Encrypted entries are not supported: " + entry.getName());
+        }
+        InputStream data = new RangeInputStream(getDataOffset(entry), entry.getCompressedSize());
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return data;
+            case ZipEntry.DEFLATED:
+                // an inflater without zlib header may need one extra dummy byte at the very end
+                InputStream padded = new SequenceInputStream(data, new ByteArrayInputStream(new byte[1]));
+                return new InflaterInputStream(padded, new Inflater(true), BUFFER_SIZE) {
+
+                    /**
+                     * Also releases the native memory of the inflater.
+                     *
+                     * @see java.util.zip.InflaterInputStream#close()
+                     */
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.getMethod() + " for entry "
+                        + entry.getName());
+        }
+    }
+
+    /**
+     * Closes the zip file.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads the end of the file and the central directory and all entries.
+     */
+    private static List<Entry> readEntries(final FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_COMMENT + ZIP64_LOCATOR_SIZE);
+        long tailStart = fileSize - tailSize;
+        ByteBuffer tail = read(channel, tailStart, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        long count = tail.getShort(eocd + 10) & 0xFFFF;
+        long cenSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cenOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        if ((count == ZIP64_MAGIC_COUNT) || (cenSize == ZIP64_MAGIC) || (cenOffset == ZIP64_MAGIC)) {
+            int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if ((locator >= 0) && (tail.getInt(locator) == ZIP64_LOCATOR_SIG)) {
+                long zip64Offset = tail.getLong(locator + 8);
+                if ((zip64Offset < 0) || (zip64Offset + ZIP64_EOCD_SIZE > fileSize)) {
+                    throw new ZipException("Invalid ZIP64 end of central directory offset");
+                }
+                ByteBuffer zip64 = read(channel, zip64Offset, ZIP64_EOCD_SIZE);
+                if (zip64.getInt(0) != ZIP64_EOCD_SIG) {
+                    throw new ZipException("Invalid ZIP64 end of central directory");
+                }
+                count = zip64.getLong(32);
+                cenSize = zip64.getLong(40);
+                cenOffset = zip64.getLong(48);
+            }
+        }
+        if ((cenOffset < 0) || (cenSize < 0) || (cenOffset + cenSize > fileSize)) {
+            throw new ZipException("Invalid central directory offset");
+        }
+        if ((cenSize > Integer.MAX_VALUE) || (count > Integer.MAX_VALUE)) {
+            throw new ZipException("Central directory too big");
+        }
+
+        ByteBuffer cen = read(channel, cenOffset, (int) cenSize);
+        List<Entry> entries = new ArrayList<Entry>((int) count);
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (cen.getInt(pos) != CEN_SIG) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int flags = cen.getShort(pos + 8) & 0xFFFF;
+            int method = cen.getShort(pos + 10) & 0xFFFF;
+            long crc = cen.getInt(pos + 16) & ZIP64_MAGIC;
+            long compressedSize = cen.getInt(pos + 20) & ZIP64_MAGIC;
+            long size = cen.getInt(pos + 24) & ZIP64_MAGIC;
+            int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = cen.getInt(pos + 42) & ZIP64_MAGIC;
+            byte[] name = new byte[nameLength];
+            cen.position(pos + CEN_SIZE);
+            cen.get(name);
+
+            // the real values of saturated fields follow, in this order, in the ZIP64 extra field
+            int extra = pos + CEN_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = cen.getShort(extra) & 0xFFFF;
+                int length = cen.getShort(extra + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA) {
+                    int field = extra + 4;
+                    int fieldEnd = Math.min(field + length, extraEnd);
+                    if ((size == ZIP64_MAGIC) && (field + 8 <= fieldEnd)) {
+                        size = cen.getLong(field);
+                        field += 8;
+                    }
+                    if ((compressedSize == ZIP64_MAGIC) && (field + 8 <= fieldEnd)) {
+                        compressedSize = cen.getLong(field);
+                        field += 8;
+                    }
+                    if ((localHeaderOffset == ZIP64_MAGIC) && (field + 8 <= fieldEnd)) {
+                        localHeaderOffset = cen.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+            if ((localHeaderOffset < 0) || (localHeaderOffset >= fileSize) || (compressedSize < 0)) {
+                throw new ZipException("Invalid central directory entry " + new String(name, NAME_ENCODING));
+            }
+            entries.add(new Entry(new String(name, NAME_ENCODING), method, flags, crc, compressedSize, size,
+                    localHeaderOffset));
+            pos = extraEnd + commentLength;
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a region of the file into a little endian heap buffer, without moving the position of the
+     * channel.
+     */
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of zip file");
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,306 @@
+package org.opencmshispano.multimoduleimporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencms.configuration.CmsConfigurationException;
+import org.opencms.module.CmsModule;
+
+/**
+ * Tests of {@link CmsModuleBundleIngester}: the integrity checks of a bundle, read from a file and
+ * as a stream, and the clean up of a bundle that fails them.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleBundleIngesterTest {
+
+    /** The module of the test bundles. */
+    private static final byte[] MODULE = module("org.opencmshispano.test", "1.0.2");
+
+    /** The bundle file of a test. */
+    private File bundle;
+
+    /** The folder the modules are extracted to. */
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        bundle = File.createTempFile("bundle", ".zip");
+        folder = new File(bundle.getPath() + ".d");
+        assertTrue(folder.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(folder);
+        bundle.delete();
+    }
+
+    @Test
+    public void ingestsABundleFile() throws Exception {
+        write(bundle(MODULE, false, null));
+
+        Map<String, CmsModule> modules = CmsModuleBundleIngester.ingest(bundle, folder);
+
+        assertEquals(Collections.singleton("test.zip"), modules.keySet());
+        assertEquals("org.opencmshispano.test", modules.get("test.zip").getName());
+        assertEquals(MODULE.length, new File(folder, "test.zip").length());
+        // registered with the checksum computed while extracting
+        CmsModuleDescriptor descriptor = CmsModuleMetadataIndex.getInstance(folder).getDescriptor(
+                new File(folder, "test.zip"));
+        assertEquals(hex(sha256(MODULE)), descriptor.getChecksum());
+    }
+
+    @Test
+    public void ingestsABundleStream() throws Exception {
+        Map<String, String> checksums = new HashMap<String, String>();
+
+        Map<String, CmsModule> modules = CmsModuleBundleIngester.ingest(new ByteArrayInputStream(bundle(MODULE,
+                true, null)), folder, checksums);
+
+        assertEquals("org.opencmshispano.test", modules.get("test.zip").getName());
+        assertEquals(Collections.singletonMap("test.zip", hex(sha256(MODULE))), checksums);
+        assertEquals(MODULE.length, new File(folder, "test.zip").length());
+    }
+
+    @Test
+    public void acceptsMatchingChecksums() throws Exception {
+        byte[] bytes = bundle(MODULE, false, hex(sha256(MODULE)) + "  test.zip\n");
+        write(bytes);
+
+        assertEquals(1, CmsModuleBundleIngester.ingest(bundle, folder).size());
+        assertEquals(1, CmsModuleBundleIngester.ingest(new ByteArrayInputStream(bytes), folder,
+                new HashMap<String, String>()).size());
+        // the checksum file is not a module
+        assertFalse(new File(folder, CmsModuleBundleIngester.CHECKSUMS).exists());
+    }
+
+    @Test
+    public void rejectsChecksumsThatDoNotMatch() throws Exception {
+        assertRejected(bundle(MODULE, false, hex(sha256(new byte[1])) + " *test.zip\n"));
+    }
+
+    @Test
+    public void rejectsModulesListedButMissing() throws Exception {
+        String sums = hex(sha256(MODULE)) + "  test.zip\n" + hex(sha256(MODULE)) + "  other.zip\n";
+        assertRejected(bundle(MODULE, false, sums));
+    }
+
+    @Test
+    public void rejectsModulesNotListed() throws Exception {
+        assertRejected(bundle(MODULE, false, "# no modules\n"));
+    }
+
+    @Test
+    public void rejectsModulesThatDoNotMatchTheirCrc() throws Exception {
+        byte[] bytes = bundle(MODULE, true, null);
+        // the module is stored as is: damage its manifest
+        bytes[indexOf(bytes, "1.0.2".getBytes())] = '7';
+        assertRejected(bytes);
+    }
+
+    @Test
+    public void rejectsModulesThatAreNoWellFormedZip() throws Exception {
+        byte[] module = MODULE.clone();
+        module[indexOf(module, new byte[] {0x50, 0x4b, 0x01, 0x02})] = 'X';
+        assertRejected(bundle(module, true, null));
+    }
+
+    @Test
+    public void keepsTheModulesOfTheFolderWhenTheBundleIsDamaged() throws Exception {
+        byte[] installed = module("org.opencmshispano.test", "1.0");
+        FileOutputStream out = new FileOutputStream(new File(folder, "test.zip"));
+        try {
+            out.write(installed);
+        } finally {
+            out.close();
+        }
+        write(bundle(MODULE, false, hex(sha256(new byte[1])) + "  test.zip\n"));
+
+        try {
+            CmsModuleBundleIngester.ingest(bundle, folder);
+            fail("a damaged bundle file was ingested");
+        } catch (CmsConfigurationException e) {
+            // expected
+        }
+        assertEquals(installed.length, new File(folder, "test.zip").length());
+        assertEquals(0, new File(folder, CmsModuleChunkedUpload.STAGING_FOLDER).list().length);
+    }
+
+    /**
+     * Checks that a bundle is rejected, as a file and as a stream, and that no module is left.
+     */
+    private void assertRejected(final byte[] bytes) throws IOException {
+        write(bytes);
+        try {
+            CmsModuleBundleIngester.ingest(bundle, folder);
+            fail("a damaged bundle file was ingested");
+        } catch (CmsConfigurationException e) {
+            assertTrue(e.getCause() instanceof ZipException);
+        }
+        assertNoModules();
+        try {
+            CmsModuleBundleIngester.ingest(new ByteArrayInputStream(bytes), folder, new HashMap<String, String>());
+            fail("a damaged bundle stream was ingested");
+        } catch (ZipException e) {
+            // expected
+        } catch (CmsConfigurationException e) {
+            fail(e.getMessage());
+        }
+        assertNoModules();
+    }
+
+    /**
+     * Checks that no module was left in the folder.
+     */
+    private void assertNoModules() {
+        List<String> left = new ArrayList<String>();
+        for (String name : folder.list()) {
+            if (name.endsWith(".zip") || name.equals(CmsModuleBundleIngester.CHECKSUMS)) {
+                left.add(name);
+            }
+        }
+        assertEquals(Collections.<String>emptyList(), left);
+    }
+
+    /**
+     * @param module    the module, written as <code>test.zip</code>
+     * @param stored    <code>true</code> to store the module instead of deflating it
+     * @param checksums the checksum file of the bundle, <code>null</code> for none
+     * @return a bundle
+     */
+    private static byte[] bundle(final byte[] module, final boolean stored, final String checksums)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        ZipEntry entry = new ZipEntry("test.zip");
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(module);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(module.length);
+            entry.setCompressedSize(module.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(module);
+        out.closeEntry();
+        if (checksums != null) {
+            out.putNextEntry(new ZipEntry(CmsModuleBundleIngester.CHECKSUMS));
+            out.write(checksums.getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a module with one JSP, stored so that its manifest can be found in the bundle
+     */
+    private static byte[] module(final String name, final String version) {
+        String manifest = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<export>\n"
+                + "<info><export_version>7</export_version></info>\n"
+                + "<module><name>" + name + "</name><version>" + version + "</version><dependencies/></module>\n"
+                + "<files>\n<file><source>system/modules/" + name + "/a.jsp</source><destination>system/modules/"
+                + name + "/a.jsp</destination><type>jsp</type></file>\n</files>\n</export>\n";
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutputStream out = new ZipOutputStream(bytes);
+            out.setLevel(0);
+            out.putNextEntry(new ZipEntry("manifest.xml"));
+            out.write(manifest.getBytes("UTF-8"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("system/modules/" + name + "/a.jsp"));
+            out.write("<p/>".getBytes("UTF-8"));
+            out.closeEntry();
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the position of the first occurrence of <code>part</code> in <code>bytes</code>
+     */
+    private static int indexOf(final byte[] bytes, final byte[] part) {
+        for (int i = 0; i <= bytes.length - part.length; i++) {
+            int j = 0;
+            while ((j < part.length) && (bytes[i + j] == part[j])) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not found");
+    }
+
+    /**
+     * @return the SHA-256 of the data
+     */
+    private static byte[] sha256(final byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the data, hex encoded
+     */
+    private static String hex(final byte[] data) {
+        return CmsModuleMetadataIndex.toHex(data);
+    }
+
+    /**
+     * Writes the test bundle.
+     */
+    private void write(final byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(bundle);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes a file or a folder with its contents.
+     */
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
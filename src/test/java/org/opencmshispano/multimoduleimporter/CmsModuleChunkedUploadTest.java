@@ -0,0 +1,99 @@
+package org.opencmshispano.multimoduleimporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencms.json.JSONException;
+import org.opencms.json.JSONObject;
+import org.opencms.util.CmsFileUtil;
+
+/**
+ * Tests of the staging of the chunks of a {@link CmsModuleChunkedUpload}: resuming after a wrong
+ * offset or a short last chunk, and restarting when more than the size of the bundle was received.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleChunkedUploadTest {
+
+    /** The modules folder of a test. */
+    private File folder;
+
+    /** The upload of a test. */
+    private CmsModuleChunkedUpload upload;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = File.createTempFile("chunkedupload", "");
+        assertTrue(folder.delete() && folder.mkdir());
+        upload = new CmsModuleChunkedUpload(folder);
+    }
+
+    @After
+    public void tearDown() {
+        CmsFileUtil.purgeDirectory(folder);
+    }
+
+    @Test
+    public void resumesFromTheBytesReceived() throws IOException, JSONException {
+        String id = upload.start(new JSONObject());
+
+        assertEquals(HttpServletResponse.SC_OK, receive(id, 0, 10, -1));
+        // the connection dropped after 5 bytes of the last chunk
+        assertEquals(HttpServletResponse.SC_CONFLICT, receive(id, 10, 5, 20));
+        assertEquals(15, staged(id));
+        // a chunk sent again from an offset already written
+        assertEquals(HttpServletResponse.SC_CONFLICT, receive(id, 10, 10, 20));
+        assertEquals(15, staged(id));
+
+        assertEquals(HttpServletResponse.SC_OK, receive(id, 15, 5, 20));
+        assertEquals(20, staged(id));
+    }
+
+    @Test
+    public void restartsWhenMoreThanTheSizeWasReceived() throws IOException, JSONException {
+        String id = upload.start(new JSONObject());
+        assertEquals(HttpServletResponse.SC_OK, receive(id, 0, 10, -1));
+
+        assertEquals(HttpServletResponse.SC_CONFLICT, receive(id, 10, 10, 15));
+        assertEquals(0, staged(id));
+        // the old bytes are gone, so the bundle is sent again from 0
+        assertEquals(HttpServletResponse.SC_CONFLICT, receive(id, 20, 15, 15));
+        assertEquals(HttpServletResponse.SC_OK, receive(id, 0, 15, 15));
+        assertEquals(15, staged(id));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownUploads() throws IOException, JSONException {
+        receive("00000000-0000-0000-0000-000000000000", 0, 10, -1);
+    }
+
+    /**
+     * Sends a chunk of <code>length</code> bytes.
+     *
+     * @param size the size of the bundle for the last chunk, <code>-1</code> for the others
+     * @return the HTTP status of the response
+     */
+    private int receive(final String id, final long offset, final int length, final long size)
+            throws IOException, JSONException {
+        return upload.receive(id, offset, new ByteArrayInputStream(new byte[length]), size, new JSONObject());
+    }
+
+    /**
+     * @return the bytes staged for an upload
+     */
+    private long staged(final String id) {
+        return new File(new File(folder, CmsModuleChunkedUpload.STAGING_FOLDER), id + ".part").length();
+    }
+}
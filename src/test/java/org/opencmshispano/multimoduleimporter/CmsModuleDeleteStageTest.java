@@ -0,0 +1,120 @@
+package org.opencmshispano.multimoduleimporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+import org.opencms.file.CmsObject;
+import org.opencms.main.CmsException;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleManager;
+import org.opencms.report.I_CmsReport;
+
+/**
+ * Tests of {@link CmsModuleDeleteStage} with one thread: the modules are deleted by the module
+ * manager, level after level.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleDeleteStageTest {
+
+    @Test
+    public void deletesLevelAfterLevelThroughTheModuleManager() {
+        CmsModuleImportProgress progress = new CmsModuleImportProgress();
+        RecordingModuleManager manager = new RecordingModuleManager(progress, null);
+
+        new CmsModuleDeleteStage(null, manager, levels(Arrays.asList("c", "d"), Arrays.asList("b"),
+                Arrays.asList("a")), 1, progress).execute(report());
+
+        assertEquals(Arrays.asList("c", "d", "b", "a"), manager.deleted);
+        // a module of a later level is not touched while an earlier level is deleted
+        assertNull(manager.statusesOfA.get(0));
+        assertNull(manager.statusesOfA.get(2));
+        assertEquals(CmsModuleImportProgress.STATUS_DELETING, manager.statusesOfA.get(3));
+        for (String name : Arrays.asList("a", "b", "c", "d")) {
+            assertEquals(CmsModuleImportProgress.STATUS_DELETED, progress.getStatuses().get(name));
+        }
+    }
+
+    @Test
+    public void keepsDeletingAfterAFailure() {
+        CmsModuleImportProgress progress = new CmsModuleImportProgress();
+        RecordingModuleManager manager = new RecordingModuleManager(progress, "b");
+
+        new CmsModuleDeleteStage(null, manager, levels(Arrays.asList("b", "c"), Arrays.asList("a")), 1,
+                progress).execute(report());
+
+        assertEquals(Arrays.asList("b", "c", "a"), manager.deleted);
+        // the import reports the module that is still installed
+        assertEquals(CmsModuleImportProgress.STATUS_DELETED, progress.getStatuses().get("b"));
+    }
+
+    @Test
+    public void doesNothingWithoutLevels() {
+        CmsModuleImportProgress progress = new CmsModuleImportProgress();
+        RecordingModuleManager manager = new RecordingModuleManager(progress, null);
+
+        new CmsModuleDeleteStage(null, manager, levels(), 4, progress).execute(report());
+
+        assertTrue(manager.deleted.isEmpty());
+        assertTrue(progress.getStatuses().isEmpty());
+    }
+
+    /**
+     * @return the given levels
+     */
+    private static List<List<String>> levels(final List<String>... levels) {
+        return new ArrayList<List<String>>(Arrays.asList(levels));
+    }
+
+    /**
+     * @return a report for the stage
+     */
+    private static I_CmsReport report() {
+        return new CmsModuleReportBuffer(Locale.ENGLISH, "/");
+    }
+
+    /**
+     * Module manager that records the modules deleted instead of deleting them.
+     */
+    private static final class RecordingModuleManager extends CmsModuleManager {
+
+        /** Names of the modules deleted, in order. */
+        private final List<String> deleted = new ArrayList<String>();
+
+        /** Status of the module "a" when every module was deleted. */
+        private final List<String> statusesOfA = new ArrayList<String>();
+
+        /** The progress of the stage. */
+        private final CmsModuleImportProgress progress;
+
+        /** Name of the module whose delete fails, or <code>null</code>. */
+        private final String failing;
+
+        RecordingModuleManager(final CmsModuleImportProgress progress, final String failing) {
+            super(Collections.<CmsModule>emptyList());
+            this.progress = progress;
+            this.failing = failing;
+        }
+
+        @Override
+        public synchronized void deleteModule(final CmsObject cms, final String moduleName, final boolean replace,
+                final I_CmsReport report) throws CmsException {
+            deleted.add(moduleName);
+            statusesOfA.add(progress.getStatuses().get("a"));
+            if (moduleName.equals(failing)) {
+                throw new IllegalStateException("Cannot delete " + moduleName);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.opencmshispano.multimoduleimporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the decision of {@link CmsModuleDeltaImporter} on whether a resource of the manifest
+ * changed, from its date, structure id and size alone.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleDeltaImporterTest {
+
+    /** Date of last modification of the test resources. */
+    private static final long DATE = 1388534400000L;
+
+    /** Structure id of the test resources. */
+    private static final String UUID = "0b2d6a88-5c12-11e3-9bb5-b1ed3ee14ab4";
+
+    @Test
+    public void unchangedWhenDateUuidAndSizeMatch() {
+        assertEquals(Boolean.FALSE, CmsModuleDeltaImporter.isChanged(file(DATE, UUID), DATE, UUID, false, 10, 10));
+    }
+
+    @Test
+    public void changedWhenTheDateDiffers() {
+        assertEquals(Boolean.TRUE, CmsModuleDeltaImporter.isChanged(file(DATE, UUID), DATE + 1, UUID, false, 10, 10));
+    }
+
+    @Test
+    public void changedWhenTheResourceWasReplaced() {
+        assertEquals(Boolean.TRUE, CmsModuleDeltaImporter.isChanged(file(DATE, UUID), DATE,
+                "0b2d6a88-5c12-11e3-9bb5-000000000000", true, 0, -1));
+    }
+
+    @Test
+    public void changedWhenTheSizeDiffers() {
+        assertEquals(Boolean.TRUE, CmsModuleDeltaImporter.isChanged(file(DATE, UUID), DATE, UUID, false, 10, 11));
+    }
+
+    @Test
+    public void changedWhenTheContentIsMissing() {
+        assertEquals(Boolean.TRUE, CmsModuleDeltaImporter.isChanged(file(DATE, UUID), DATE, UUID, false, 10, -1));
+    }
+
+    @Test
+    public void foldersAreComparedByDate() {
+        Map<String, String> folder = file(DATE, null);
+        folder.remove("source");
+
+        assertEquals(Boolean.FALSE, CmsModuleDeltaImporter.isChanged(folder, DATE, UUID, true, 0, -1));
+    }
+
+    @Test
+    public void contentDecidesWithoutAStructureId() {
+        assertNull(CmsModuleDeltaImporter.isChanged(file(DATE, null), DATE, UUID, false, 10, 10));
+    }
+
+    @Test
+    public void changedWithoutADate() {
+        Map<String, String> fields = file(DATE, UUID);
+        fields.remove("datelastmodified");
+
+        assertEquals(Boolean.TRUE, CmsModuleDeltaImporter.isChanged(fields, DATE, UUID, false, 10, 10));
+    }
+
+    /**
+     * @return the fields of a <code>&lt;file&gt;</code> element with content
+     */
+    private static Map<String, String> file(final long date, final String uuid) {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("source", "system/modules/test/file.txt");
+        fields.put("destination", "system/modules/test/file.txt");
+        fields.put("datelastmodified", String.valueOf(date));
+        if (uuid != null) {
+            fields.put("uuidstructure", uuid);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,148 @@
+package org.opencmshispano.multimoduleimporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opencms.db.CmsExportPoint;
+import org.opencms.module.CmsModule;
+import org.opencms.module.CmsModuleDependency;
+import org.opencms.module.CmsModuleManager;
+import org.opencms.module.CmsModuleVersion;
+
+/**
+ * Tests of {@link CmsModuleDependencyGraph}: import waves, missing and circular dependencies,
+ * blocked modules and delete levels.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleDependencyGraphTest {
+
+    @Test
+    public void groupsModulesInWaves() {
+        CmsModuleDependencyGraph graph = graph(modules(module("c", "1.0", "a", "b"), module("b", "1.0", "a"),
+                module("a", "1.0"), module("d", "1.0")), installed());
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "d"), Arrays.asList("b"), Arrays.asList("c")),
+                graph.getWaves());
+        assertEquals(Arrays.asList("a", "d", "b", "c"), graph.getOrder());
+        assertEquals(new ArrayList<String>(Arrays.asList("b", "c")),
+                new ArrayList<String>(graph.getDependents("a")));
+        assertTrue(graph.isComplete());
+    }
+
+    @Test
+    public void acceptsDependenciesOnInstalledModules() {
+        CmsModuleDependencyGraph graph = graph(modules(module("b", "1.0", "a:2.0")), installed(module("a", "2.1")));
+
+        assertEquals(Arrays.asList(Arrays.asList("b")), graph.getWaves());
+        assertTrue(graph.getDependencies("b").isEmpty());
+        assertTrue(graph.isComplete());
+    }
+
+    @Test
+    public void reportsMissingDependenciesAndBlocksTheirDependents() {
+        // "a" needs a newer "x" than the installed one, "b" needs "a"
+        CmsModuleDependencyGraph graph = graph(modules(module("a", "1.0", "x:2.0"), module("b", "1.0", "a"),
+                module("c", "1.0")), installed(module("x", "1.5")));
+
+        assertEquals(Collections.singleton("a"), graph.getMissing().keySet());
+        assertEquals("x", graph.getMissing().get("a").get(0).getName());
+        assertEquals(Collections.singletonMap("b", "a"), graph.getBlocked());
+        assertEquals(Arrays.asList(Arrays.asList("c")), graph.getWaves());
+        assertFalse(graph.isComplete());
+    }
+
+    @Test
+    public void reportsCyclesAndBlocksTheirDependents() {
+        CmsModuleDependencyGraph graph = graph(modules(module("a", "1.0", "b"), module("b", "1.0", "a"),
+                module("c", "1.0", "a"), module("d", "1.0")), installed());
+
+        assertEquals(new ArrayList<String>(Arrays.asList("a", "b")), new ArrayList<String>(graph.getCycles()));
+        assertEquals(Collections.singletonMap("c", "a"), graph.getBlocked());
+        assertEquals(Arrays.asList(Arrays.asList("d")), graph.getWaves());
+        assertFalse(graph.isComplete());
+    }
+
+    @Test
+    public void deletesDependentsBeforeTheirDependencies() {
+        CmsModuleDependencyGraph graph = graph(modules(module("a", "1.0"), module("b", "1.0", "a"),
+                module("c", "1.0", "b"), module("d", "1.0"), module("e", "1.0", "a")), installed());
+
+        List<List<String>> levels = graph.getDeleteLevels(Arrays.asList("a", "b", "c", "d", "e"));
+
+        // within a level, the modules imported first are deleted first
+        assertEquals(Arrays.asList(Arrays.asList("d", "e", "c"), Arrays.asList("b"), Arrays.asList("a")), levels);
+    }
+
+    @Test
+    public void deleteLevelsOnlyHoldTheGivenModules() {
+        CmsModuleDependencyGraph graph = graph(modules(module("a", "1.0"), module("b", "1.0", "a"),
+                module("c", "1.0", "b")), installed());
+
+        assertEquals(Arrays.asList(Arrays.asList("c"), Arrays.asList("a")),
+                graph.getDeleteLevels(Arrays.asList("a", "c")));
+    }
+
+    /**
+     * @return the graph of the given modules, with the given installed modules
+     */
+    private static CmsModuleDependencyGraph graph(final List<CmsModule> modules,
+            final Map<String, CmsModule> installed) {
+        CmsModuleManager moduleManager = new CmsModuleManager(new ArrayList<CmsModule>()) {
+
+            @Override
+            public CmsModule getModule(final String name) {
+                return installed.get(name);
+            }
+        };
+        return new CmsModuleDependencyGraph(modules, moduleManager);
+    }
+
+    /**
+     * @return the modules, as a list
+     */
+    private static List<CmsModule> modules(final CmsModule... modules) {
+        return Arrays.asList(modules);
+    }
+
+    /**
+     * @return module name -> module, of the installed modules
+     */
+    private static Map<String, CmsModule> installed(final CmsModule... modules) {
+        Map<String, CmsModule> installed = new HashMap<String, CmsModule>();
+        for (CmsModule module : modules) {
+            installed.put(module.getName(), module);
+        }
+        return installed;
+    }
+
+    /**
+     * @param name         the module name
+     * @param version      the module version
+     * @param dependencies the dependencies, as <code>name</code> (any version) or <code>name:version</code>
+     * @return the module header
+     */
+    static CmsModule module(final String name, final String version, final String... dependencies) {
+        List<CmsModuleDependency> list = new ArrayList<CmsModuleDependency>();
+        for (String dependency : dependencies) {
+            int separator = dependency.indexOf(':');
+            String dependencyName = separator < 0 ? dependency : dependency.substring(0, separator);
+            String dependencyVersion = separator < 0 ? "0.0" : dependency.substring(separator + 1);
+            list.add(new CmsModuleDependency(dependencyName, new CmsModuleVersion(dependencyVersion)));
+        }
+        return new CmsModule(name, name, null, null, null, new CmsModuleVersion(version), null, null, 0L, null, 0L,
+                list, new ArrayList<CmsExportPoint>(), new ArrayList<String>(), new HashMap<String, String>());
+    }
+}
@@ -0,0 +1,154 @@
+package org.opencmshispano.multimoduleimporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opencms.module.CmsModule;
+
+/**
+ * Tests of {@link CmsModuleImportScheduler}: which jobs run at the same time, the order of the queue
+ * and the modules every job locks. With no module configuration, two jobs may run at the same time.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class CmsModuleImportSchedulerTest {
+
+    /** The scheduler, shared by the whole server. */
+    private final CmsModuleImportScheduler scheduler = CmsModuleImportScheduler.getInstance();
+
+    /** The tickets of a test, released after it. */
+    private final List<CmsModuleImportScheduler.Ticket> tickets = new ArrayList<CmsModuleImportScheduler.Ticket>();
+
+    @After
+    public void tearDown() {
+        for (CmsModuleImportScheduler.Ticket ticket : tickets) {
+            scheduler.release(ticket);
+        }
+    }
+
+    @Test
+    public void runsDisjointJobsAtTheSameTime() throws InterruptedException {
+        CmsModuleImportScheduler.Ticket a = enqueue("a", "x");
+        CmsModuleImportScheduler.Ticket b = enqueue("b", "y");
+
+        assertTrue(scheduler.isReady(a));
+        scheduler.await(a);
+        assertTrue(scheduler.isReady(b));
+        scheduler.await(b);
+
+        assertTrue(a.isStarted() && b.isStarted());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void runsOverlappingJobsOneAfterAnother() throws InterruptedException {
+        CmsModuleImportScheduler.Ticket a = enqueue("a", "x", "y");
+        scheduler.await(a);
+        CmsModuleImportScheduler.Ticket b = enqueue("b", "y", "z");
+
+        assertFalse(scheduler.isReady(b));
+        assertEquals(Collections.singletonList(a), scheduler.getBlockers(b));
+        assertEquals(1, scheduler.getPosition(b));
+
+        scheduler.release(a);
+        assertTrue(scheduler.isReady(b));
+    }
+
+    @Test
+    public void neverLetsALaterJobOvertakeAnEarlierOneOfTheSameModules() throws InterruptedException {
+        CmsModuleImportScheduler.Ticket a = enqueue("a", "x");
+        scheduler.await(a);
+        CmsModuleImportScheduler.Ticket b = enqueue("b", "x", "y");
+        CmsModuleImportScheduler.Ticket c = enqueue("c", "y");
+
+        assertEquals(Arrays.asList(b), scheduler.getBlockers(c));
+        assertFalse(scheduler.isReady(c));
+
+        // "c" does not overlap "a", but it waits for "b", queued before it
+        scheduler.release(a);
+        assertTrue(scheduler.isReady(b));
+        assertFalse(scheduler.isReady(c));
+    }
+
+    @Test
+    public void givesFreeSlotsToTheJobsQueuedFirst() throws InterruptedException {
+        CmsModuleImportScheduler.Ticket a = enqueue("a", "x");
+        scheduler.await(a);
+        // blocked by "a": it does not take the free slot
+        CmsModuleImportScheduler.Ticket b = enqueue("b", "x");
+        CmsModuleImportScheduler.Ticket c = enqueue("c", "y");
+        CmsModuleImportScheduler.Ticket d = enqueue("d", "z");
+
+        assertFalse(scheduler.isReady(b));
+        assertTrue(scheduler.isReady(c));
+        // the only free slot goes to "c"
+        assertFalse(scheduler.isReady(d));
+        assertEquals(Collections.<CmsModuleImportScheduler.Ticket>emptyList(), scheduler.getBlockers(d));
+    }
+
+    @Test
+    public void leavesTheQueueWhenReleasedWhileWaiting() throws InterruptedException {
+        CmsModuleImportScheduler.Ticket a = enqueue("a", "x");
+        scheduler.await(a);
+        CmsModuleImportScheduler.Ticket b = enqueue("b", "x");
+        CmsModuleImportScheduler.Ticket c = enqueue("c", "x");
+
+        scheduler.release(b);
+
+        assertEquals(1, scheduler.getPosition(c));
+        assertEquals(Collections.singletonList(a), scheduler.getBlockers(c));
+    }
+
+    @Test
+    public void locksDependenciesAndInstalledDependents() {
+        List<CmsModule> modules = Arrays.asList(CmsModuleDependencyGraphTest.module("x", "2.0", "y"));
+        List<CmsModule> installed = Arrays.asList(CmsModuleDependencyGraphTest.module("x", "1.0", "y"),
+                CmsModuleDependencyGraphTest.module("z", "1.0", "x"),
+                CmsModuleDependencyGraphTest.module("w", "1.0", "y"));
+
+        assertEquals(new HashSet<String>(Arrays.asList("x", "y", "z")),
+                CmsModuleImportScheduler.getLocks(modules, installed));
+    }
+
+    @Test
+    public void serializesJobsThatOnlyShareLocks() throws InterruptedException {
+        // "a" imports "x", which depends on "y"; "b" replaces "y"
+        CmsModuleImportScheduler.Ticket a = enqueue(Arrays.asList("x"), Arrays.asList("x", "y"));
+        scheduler.await(a);
+        CmsModuleImportScheduler.Ticket b = enqueue(Arrays.asList("y"), Arrays.asList("y"));
+
+        assertEquals(Collections.singleton("x"), a.getModules());
+        assertFalse(scheduler.isReady(b));
+        assertEquals(Collections.singletonList(a), scheduler.getBlockers(b));
+    }
+
+    /**
+     * Queues a job that only locks its own modules.
+     */
+    private CmsModuleImportScheduler.Ticket enqueue(final String job, final String... modules) {
+        CmsModuleImportScheduler.Ticket ticket = scheduler.enqueue(job, "test", Arrays.asList(modules));
+        tickets.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Queues a job with the given locks.
+     */
+    private CmsModuleImportScheduler.Ticket enqueue(final List<String> modules, final List<String> locks) {
+        CmsModuleImportScheduler.Ticket ticket = scheduler.enqueue("job" + tickets.size(), "test", modules, locks);
+        tickets.add(ticket);
+        return ticket;
+    }
+}
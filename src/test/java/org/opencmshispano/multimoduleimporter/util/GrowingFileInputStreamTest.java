@@ -0,0 +1,156 @@
+package org.opencmshispano.multimoduleimporter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link GrowingFileInputStream}: reads that wait for the writer, the end of the file, and
+ * the writer giving up or going idle.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class GrowingFileInputStreamTest {
+
+    /** Milliseconds a test waits for the reader thread. */
+    private static final long JOIN_TIMEOUT = 10000;
+
+    /** The file being written. */
+    private File file;
+
+    /** The stream of a test. */
+    private GrowingFileInputStream stream;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("growing", ".part");
+        stream = new GrowingFileInputStream(file, JOIN_TIMEOUT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        stream.close();
+        file.delete();
+    }
+
+    @Test
+    public void readsOnlyTheBytesReportedAsWritten() throws IOException {
+        append("0123456789");
+        stream.setAvailable(4);
+
+        byte[] buffer = new byte[10];
+        assertEquals(4, stream.read(buffer, 0, buffer.length));
+        assertEquals("0123", new String(buffer, 0, 4));
+        assertEquals(0, stream.available());
+
+        // a smaller size reported later does not take back what was available
+        stream.setAvailable(2);
+        stream.setAvailable(6);
+        assertEquals(2, stream.available());
+    }
+
+    @Test
+    public void endsAtTheFinalSize() throws IOException {
+        append("0123456789");
+        stream.complete(10);
+
+        byte[] buffer = new byte[16];
+        assertEquals(10, stream.read(buffer, 0, buffer.length));
+        assertEquals(-1, stream.read(buffer, 0, buffer.length));
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void waitsUntilMoreIsWritten() throws Exception {
+        Reader reader = new Reader(stream);
+        reader.start();
+        Thread.sleep(100);
+        assertTrue("the read did not wait", reader.isAlive());
+
+        append("abc");
+        stream.setAvailable(3);
+        reader.join(JOIN_TIMEOUT);
+
+        assertFalse(reader.isAlive());
+        assertNull(reader.error);
+        assertEquals("abc", reader.read);
+    }
+
+    @Test
+    public void failsAPendingReadWhenTheWriterGivesUp() throws Exception {
+        Reader reader = new Reader(stream);
+        reader.start();
+        Thread.sleep(100);
+
+        stream.abort();
+        reader.join(JOIN_TIMEOUT);
+
+        assertFalse(reader.isAlive());
+        assertTrue(reader.error instanceof IOException);
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenNothingIsWrittenForTooLong() throws IOException {
+        GrowingFileInputStream idle = new GrowingFileInputStream(file, 50);
+        try {
+            idle.read();
+        } finally {
+            idle.close();
+        }
+    }
+
+    /**
+     * Appends text to the file.
+     */
+    private void append(final String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads once from the stream in the background.
+     */
+    private static final class Reader extends Thread {
+
+        /** The stream. */
+        private final GrowingFileInputStream stream;
+
+        /** What was read. */
+        private volatile String read;
+
+        /** The error of the read, if any. */
+        private volatile Throwable error;
+
+        Reader(final GrowingFileInputStream stream) {
+            this.stream = stream;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] buffer = new byte[16];
+                int n = stream.read(buffer, 0, buffer.length);
+                read = new String(buffer, 0, n);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.opencmshispano.multimoduleimporter.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link Unzipper}: extraction, SHA-256 of the entries, CRC-32 and size checks and the
+ * clean up of a zip that fails.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class UnzipperTest {
+
+    /** Content of the test entries. */
+    private static final byte[] CONTENT = "the content of an entry, long enough to be deflated a bit".getBytes();
+
+    /** The zip file of a test. */
+    private File zip;
+
+    /** The folder the zip is extracted to. */
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        zip = File.createTempFile("unzipper", ".zip");
+        folder = new File(zip.getPath() + ".d");
+        assertTrue(folder.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(folder);
+        zip.delete();
+    }
+
+    @Test
+    public void extractsEntriesWithTheirDigests() throws IOException {
+        write(zip());
+        Map<String, byte[]> digests = new HashMap<String, byte[]>();
+
+        Map<String, File> files = Unzipper.unzip(zip, folder, 2, digests);
+
+        assertEquals(Arrays.asList("a/deflated.txt", "stored.txt"), Arrays.asList(files.keySet().toArray()));
+        for (Map.Entry<String, File> e : files.entrySet()) {
+            assertEquals(new File(folder, e.getKey()), e.getValue());
+            assertArrayEquals(CONTENT, read(e.getValue()));
+            assertArrayEquals(sha256(CONTENT), digests.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void rejectsDataThatDoesNotMatchTheCrc() throws IOException {
+        byte[] bytes = zip();
+        // a byte of the stored entry, which is written as is
+        bytes[indexOf(bytes, CONTENT) + 3] ^= 1;
+        write(bytes);
+        assertUnzipFails();
+    }
+
+    @Test
+    public void rejectsEntriesThatDoNotMatchTheirSize() throws IOException {
+        byte[] bytes = zip();
+        // the uncompressed size of the deflated entry, the second of the central directory
+        byte[] signature = new byte[] {0x50, 0x4b, 0x01, 0x02};
+        int cen = indexOf(bytes, signature, indexOf(bytes, signature) + 1);
+        bytes[cen + 24]++;
+        write(bytes);
+        assertUnzipFails();
+    }
+
+    @Test
+    public void keepsFilesThatWereThereBefore() throws IOException {
+        byte[] bytes = zip();
+        bytes[indexOf(bytes, CONTENT) + 3] ^= 1;
+        write(bytes);
+        File other = new File(folder, "other.txt");
+        FileOutputStream out = new FileOutputStream(other);
+        out.close();
+
+        assertUnzipFails();
+        assertTrue(other.isFile());
+    }
+
+    @Test
+    public void leavesNothingOfTheOtherWorkersBehind() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        byte[] data = new byte[1024 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 7));
+        }
+        for (int i = 0; i < 8; i++) {
+            out.putNextEntry(new ZipEntry("big" + i + ".bin"));
+            out.write(data, 0, data.length - i);
+            out.closeEntry();
+        }
+        ZipEntry stored = new ZipEntry("stored.txt");
+        store(stored);
+        out.putNextEntry(stored);
+        out.write(CONTENT);
+        out.closeEntry();
+        out.close();
+        byte[] zipped = bytes.toByteArray();
+        zipped[indexOf(zipped, CONTENT) + 3] ^= 1;
+        write(zipped);
+
+        try {
+            Unzipper.unzip(zip, folder, 4);
+            fail("a damaged zip was extracted");
+        } catch (ZipException e) {
+            assertEquals(0, folder.listFiles().length);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEntriesOutsideTheFolder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        out.putNextEntry(new ZipEntry("../escaped.txt"));
+        out.write(CONTENT);
+        out.close();
+        write(bytes.toByteArray());
+
+        Unzipper.unzip(zip, folder, 1);
+    }
+
+    /**
+     * Extracts the test zip and checks that it fails and leaves no extracted entry behind.
+     */
+    private void assertUnzipFails() throws IOException {
+        try {
+            Unzipper.unzip(zip, folder, 2, new HashMap<String, byte[]>());
+            fail("a damaged zip was extracted");
+        } catch (ZipException e) {
+            assertFalse(new File(folder, "stored.txt").exists());
+            assertFalse(new File(folder, "a/deflated.txt").exists());
+        }
+    }
+
+    /**
+     * @return a zip with a deflated entry in a folder and a stored entry, both with {@link #CONTENT}
+     */
+    private static byte[] zip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        out.putNextEntry(new ZipEntry("a/"));
+        out.closeEntry();
+        out.putNextEntry(new ZipEntry("a/deflated.txt"));
+        out.write(CONTENT);
+        out.closeEntry();
+        ZipEntry stored = new ZipEntry("stored.txt");
+        store(stored);
+        out.putNextEntry(stored);
+        out.write(CONTENT);
+        out.closeEntry();
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sets an entry with {@link #CONTENT} to be stored.
+     */
+    private static void store(final ZipEntry entry) {
+        CRC32 crc = new CRC32();
+        crc.update(CONTENT);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(CONTENT.length);
+        entry.setCompressedSize(CONTENT.length);
+        entry.setCrc(crc.getValue());
+    }
+
+    /**
+     * @return the position of the first occurrence of <code>part</code> in <code>bytes</code>
+     */
+    private static int indexOf(final byte[] bytes, final byte[] part) {
+        return indexOf(bytes, part, 0);
+    }
+
+    /**
+     * @return the position of the first occurrence of <code>part</code> in <code>bytes</code> from
+     * <code>from</code> on
+     */
+    private static int indexOf(final byte[] bytes, final byte[] part, final int from) {
+        for (int i = from; i <= bytes.length - part.length; i++) {
+            int j = 0;
+            while ((j < part.length) && (bytes[i + j] == part[j])) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not found");
+    }
+
+    /**
+     * @return the SHA-256 of the data
+     */
+    private static byte[] sha256(final byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the test zip.
+     */
+    private void write(final byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(zip);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the contents of a file
+     */
+    private static byte[] read(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes a file or a folder with its contents.
+     */
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
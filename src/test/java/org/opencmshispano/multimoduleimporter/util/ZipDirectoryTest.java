@@ -0,0 +1,265 @@
+package org.opencmshispano.multimoduleimporter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link ZipDirectory}: the central directory, ZIP64 records included, and
+ * {@link ZipDirectory#verify()}.
+ * <p>
+ *
+ * @author Sergio Raposo Vargas
+ * @version $Revision: 1.0 $
+ * @since 9.0.1
+ */
+public class ZipDirectoryTest {
+
+    /** Content of the test entries. */
+    private static final byte[] CONTENT = "hello, module".getBytes();
+
+    /** Value of a saturated 32 bit field. */
+    private static final int MAGIC = 0xFFFFFFFF;
+
+    /** The zip file of a test. */
+    private File zip;
+
+    @Before
+    public void setUp() throws IOException {
+        zip = File.createTempFile("zipdirectory", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        zip.delete();
+    }
+
+    @Test
+    public void readsEntriesWrittenByZipOutputStream() throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        out.putNextEntry(new ZipEntry("folder/"));
+        out.closeEntry();
+        out.putNextEntry(new ZipEntry("folder/deflated.txt"));
+        out.write(CONTENT);
+        out.closeEntry();
+        ZipEntry stored = new ZipEntry("stored.txt");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(CONTENT.length);
+        stored.setCompressedSize(CONTENT.length);
+        stored.setCrc(crc(CONTENT));
+        out.putNextEntry(stored);
+        out.write(CONTENT);
+        out.closeEntry();
+        out.close();
+
+        ZipDirectory directory = ZipDirectory.open(zip);
+        try {
+            assertEquals(3, directory.getEntries().size());
+            assertTrue(directory.getEntry("folder/").isDirectory());
+            ZipDirectory.Entry deflated = directory.getEntry("folder/deflated.txt");
+            assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+            assertEquals(CONTENT.length, deflated.getSize());
+            assertEquals(crc(CONTENT), deflated.getCrc());
+            assertEquals(new String(CONTENT), read(directory, deflated));
+            assertEquals(new String(CONTENT), read(directory, directory.getEntry("stored.txt")));
+            assertNull(directory.getEntry("missing.txt"));
+            directory.verify();
+        } finally {
+            directory.close();
+        }
+    }
+
+    @Test
+    public void readsZip64Records() throws IOException {
+        write(build(ZipEntry.STORED, 0, CONTENT.length, true));
+
+        ZipDirectory directory = ZipDirectory.open(zip);
+        try {
+            assertEquals(1, directory.getEntries().size());
+            ZipDirectory.Entry entry = directory.getEntry("a.txt");
+            // the saturated sizes and offset are read from the ZIP64 extra field
+            assertEquals(CONTENT.length, entry.getSize());
+            assertEquals(CONTENT.length, entry.getCompressedSize());
+            assertEquals(crc(CONTENT), entry.getCrc());
+            assertEquals(new String(CONTENT), read(directory, entry));
+            directory.verify();
+        } finally {
+            directory.close();
+        }
+    }
+
+    @Test
+    public void verifyRejectsTruncatedEntries() throws IOException {
+        // the central directory claims more data than the file holds
+        write(build(ZipEntry.STORED, 0, 1000000, false));
+        assertVerifyFails();
+    }
+
+    @Test
+    public void verifyRejectsTruncatedZip64Entries() throws IOException {
+        write(build(ZipEntry.STORED, 0, 1000000, true));
+        assertVerifyFails();
+    }
+
+    @Test
+    public void verifyRejectsUnsupportedMethods() throws IOException {
+        // method 12 is bzip2
+        write(build(12, 0, CONTENT.length, false));
+        assertVerifyFails();
+    }
+
+    @Test
+    public void verifyRejectsEncryptedEntries() throws IOException {
+        write(build(ZipEntry.STORED, 1, CONTENT.length, false));
+        assertVerifyFails();
+    }
+
+    @Test
+    public void verifyRejectsInvalidLocalHeaders() throws IOException {
+        byte[] bytes = build(ZipEntry.STORED, 0, CONTENT.length, false);
+        bytes[0] = 'X';
+        write(bytes);
+        assertVerifyFails();
+    }
+
+    @Test(expected = ZipException.class)
+    public void rejectsFilesThatAreNoZip() throws IOException {
+        write("not a zip file".getBytes());
+        ZipDirectory.open(zip).close();
+    }
+
+    /**
+     * Opens the test zip and checks that its verification fails.
+     */
+    private void assertVerifyFails() throws IOException {
+        ZipDirectory directory = ZipDirectory.open(zip);
+        try {
+            directory.verify();
+            fail("verify() accepted an invalid zip");
+        } catch (ZipException e) {
+            assertFalse(e.getMessage().length() == 0);
+        } finally {
+            directory.close();
+        }
+    }
+
+    /**
+     * Builds a zip with a single entry <code>a.txt</code> with {@link #CONTENT}, byte by byte.
+     *
+     * @param method         the compression method of the central directory
+     * @param flags          the general purpose flags of the central directory
+     * @param compressedSize the compressed size of the central directory
+     * @param zip64          <code>true</code> to write the sizes, offsets and counts in ZIP64 records
+     */
+    private static byte[] build(final int method, final int flags, final long compressedSize, final boolean zip64)
+            throws IOException {
+
+        byte[] name = "a.txt".getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ByteBuffer loc = buffer(30 + name.length);
+        loc.putInt(0x04034b50).putShort((short) 20).putShort((short) 0).putShort((short) ZipEntry.STORED);
+        loc.putInt(0).putInt((int) crc(CONTENT)).putInt(CONTENT.length).putInt(CONTENT.length);
+        loc.putShort((short) name.length).putShort((short) 0).put(name);
+        out.write(loc.array());
+        out.write(CONTENT);
+
+        long cenOffset = out.size();
+        int extraLength = zip64 ? 4 + 24 : 0;
+        ByteBuffer cen = buffer(46 + name.length + extraLength);
+        cen.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) flags);
+        cen.putShort((short) method).putInt(0).putInt((int) crc(CONTENT));
+        cen.putInt(zip64 ? MAGIC : (int) compressedSize).putInt(zip64 ? MAGIC : CONTENT.length);
+        cen.putShort((short) name.length).putShort((short) extraLength).putShort((short) 0);
+        cen.putShort((short) 0).putShort((short) 0).putInt(0).putInt(zip64 ? MAGIC : 0);
+        cen.put(name);
+        if (zip64) {
+            // size, compressed size and local header offset, in this order
+            cen.putShort((short) 1).putShort((short) 24);
+            cen.putLong(CONTENT.length).putLong(compressedSize).putLong(0);
+        }
+        out.write(cen.array());
+        long cenSize = out.size() - cenOffset;
+
+        if (zip64) {
+            long zip64Offset = out.size();
+            ByteBuffer record = buffer(56);
+            record.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0);
+            record.putLong(1).putLong(1).putLong(cenSize).putLong(cenOffset);
+            out.write(record.array());
+            ByteBuffer locator = buffer(20);
+            locator.putInt(0x07064b50).putInt(0).putLong(zip64Offset).putInt(1);
+            out.write(locator.array());
+        }
+        ByteBuffer eocd = buffer(22);
+        eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+        eocd.putShort((short) (zip64 ? 0xFFFF : 1)).putShort((short) (zip64 ? 0xFFFF : 1));
+        eocd.putInt(zip64 ? MAGIC : (int) cenSize).putInt(zip64 ? MAGIC : (int) cenOffset).putShort((short) 0);
+        out.write(eocd.array());
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a little endian buffer of the given size
+     */
+    private static ByteBuffer buffer(final int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return the CRC-32 of the data
+     */
+    private static long crc(final byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the test zip.
+     */
+    private void write(final byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(zip);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the uncompressed data of an entry, as text
+     */
+    private static String read(final ZipDirectory directory, final ZipDirectory.Entry entry) throws IOException {
+        InputStream in = directory.getInputStream(entry);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+}